@@ -1,22 +1,70 @@
 package com.vidal.handyWarup;
 
+import com.vidal.handyWarup.errors.TemporaryCopyException;
+
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static java.util.Collections.singletonList;
+import static java.util.Collections.unmodifiableList;
 
 public class AddCommand implements Command {
 
    private final Path relativeSource;
-   private final Path relativeTarget;
+   private final List<Path> relativeTargets;
+   private final FsDeepCopy deepCopy;
 
 
    public AddCommand(Path relativeSource, Path relativeTarget) {
+      this(relativeSource, relativeTarget, new FsDeepCopy());
+   }
+
+   public AddCommand(Path relativeSource, Path relativeTarget, FsDeepCopy deepCopy) {
+      this(relativeSource, singletonList(relativeTarget), deepCopy);
+   }
+
+   /**
+    * Adds the same content at several paths: the source is extracted once to the first target,
+    * which is then copied to the other ones.
+    */
+   public AddCommand(Path relativeSource, List<Path> relativeTargets, FsDeepCopy deepCopy) {
+      if (relativeTargets.isEmpty()) {
+         throw new IllegalArgumentException("At least one target is expected");
+      }
       this.relativeSource = relativeSource;
-      this.relativeTarget = relativeTarget;
+      this.relativeTargets = unmodifiableList(new ArrayList<>(relativeTargets));
+      this.deepCopy = deepCopy;
    }
 
    @Override
    public void accept(Path sourceRoot, Path targetRoot) {
-      Path source = sourceRoot.resolve(relativeSource);
-      Path target = targetRoot.resolve(relativeTarget);
-      new FsDeepCopy().accept(source, target);
+      Path source = RelativePaths.resolve(sourceRoot, relativeSource);
+      for (Path relativeTarget : relativeTargets) {
+         Path target = targetRoot.resolve(relativeTarget);
+         createParentDirectories(target);
+         deepCopy.accept(source, target);
+         source = target;
+      }
+   }
+
+   @Override
+   public Collection<Path> targets() {
+      return relativeTargets;
+   }
+
+   private static void createParentDirectories(Path target) {
+      Path parent = target.getParent();
+      if (parent == null || Files.isDirectory(parent)) {
+         return;
+      }
+      try {
+         Files.createDirectories(parent);
+      } catch (IOException e) {
+         throw new TemporaryCopyException("Could not create " + parent, e);
+      }
    }
 }
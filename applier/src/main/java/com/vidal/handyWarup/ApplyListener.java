@@ -0,0 +1,135 @@
+package com.vidal.handyWarup;
+
+import java.nio.file.Path;
+
+/**
+ * Receives timings and I/O counters while updates are applied, e.g. to tune parallelism and staging.
+ *
+ * Callbacks are made from the threads doing the work, several of them at a time: implementations must be thread-safe
+ * and return quickly. I/O is reported in batches of files rather than file by file, and is not attributed to a target
+ * when several targets are updated at once.
+ *
+ * @see HandyWarup#withListener(ApplyListener)
+ * @see ApplySummary
+ */
+public interface ApplyListener {
+
+   /**
+    * Listener that ignores everything.
+    */
+   ApplyListener NONE = new ApplyListener() {
+   };
+
+   /**
+    * @param subject target of the phase, or update archive for {@link ApplyPhase#OPEN}
+    */
+   default void phaseStarted(Path subject, ApplyPhase phase) {
+   }
+
+   /**
+    * Called whether the phase succeeded or not.
+    *
+    * @param subject target of the phase, or update archive for {@link ApplyPhase#OPEN}
+    * @param nanos duration of the phase
+    */
+   default void phaseEnded(Path subject, ApplyPhase phase, long nanos) {
+   }
+
+   /**
+    * Called after each successful command.
+    *
+    * @param target updated target
+    * @param nanos duration of the command
+    */
+   default void commandExecuted(Path target, Command command, long nanos) {
+   }
+
+   /**
+    * Files copied from a target, to stage it or to back up the paths a command touches.
+    */
+   default void filesCopied(int files, long bytes) {
+   }
+
+   /**
+    * Files hard linked rather than copied, by {@link Staging#HARD_LINKS}.
+    */
+   default void filesLinked(int files) {
+   }
+
+   /**
+    * Files copied from an update archive to a target.
+    */
+   default void filesExtracted(int files, long bytes) {
+   }
+
+   /**
+    * Files deleted, from a target or a discarded stage.
+    */
+   default void filesDeleted(int files, long bytes) {
+   }
+
+   /**
+    * Called when no reverse patch is written for a target although {@link HandyWarup#withReversePatches reverse patches}
+    * are requested, because the target is a packed archive or its interrupted update is resumed.
+    *
+    * @param target updated target
+    */
+   default void reversePatchSkipped(Path target) {
+   }
+
+   /**
+    * @return a listener that notifies this listener, then the specified one
+    */
+   default ApplyListener andThen(ApplyListener next) {
+      ApplyListener first = this;
+      return new ApplyListener() {
+         @Override
+         public void phaseStarted(Path subject, ApplyPhase phase) {
+            first.phaseStarted(subject, phase);
+            next.phaseStarted(subject, phase);
+         }
+
+         @Override
+         public void phaseEnded(Path subject, ApplyPhase phase, long nanos) {
+            first.phaseEnded(subject, phase, nanos);
+            next.phaseEnded(subject, phase, nanos);
+         }
+
+         @Override
+         public void commandExecuted(Path target, Command command, long nanos) {
+            first.commandExecuted(target, command, nanos);
+            next.commandExecuted(target, command, nanos);
+         }
+
+         @Override
+         public void filesCopied(int files, long bytes) {
+            first.filesCopied(files, bytes);
+            next.filesCopied(files, bytes);
+         }
+
+         @Override
+         public void filesLinked(int files) {
+            first.filesLinked(files);
+            next.filesLinked(files);
+         }
+
+         @Override
+         public void filesExtracted(int files, long bytes) {
+            first.filesExtracted(files, bytes);
+            next.filesExtracted(files, bytes);
+         }
+
+         @Override
+         public void filesDeleted(int files, long bytes) {
+            first.filesDeleted(files, bytes);
+            next.filesDeleted(files, bytes);
+         }
+
+         @Override
+         public void reversePatchSkipped(Path target) {
+            first.reversePatchSkipped(target);
+            next.reversePatchSkipped(target);
+         }
+      };
+   }
+}
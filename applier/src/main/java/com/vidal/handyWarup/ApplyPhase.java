@@ -0,0 +1,58 @@
+package com.vidal.handyWarup;
+
+/**
+ * Phases of the application of an update to a target, as reported to an {@link ApplyListener}.
+ */
+public enum ApplyPhase {
+
+   /**
+    * Interrupted updates of the target are resolved and their leftovers deleted.
+    */
+   RECOVER,
+
+   /**
+    * The target is isolated: copied, linked, or given an undo journal. Runs while the update is opened.
+    */
+   STAGE,
+
+   /**
+    * The update archive is opened and its batch parsed. Happens once for all the targets of an update.
+    */
+   OPEN,
+
+   /**
+    * The update is planned against the target, to {@link Staging#AUTO choose} how to stage it.
+    */
+   PLAN,
+
+   /**
+    * The target is hashed to find which commands of the manifest of the update are pending.
+    */
+   CHECK,
+
+   /**
+    * The commands of the batch are executed against the stage.
+    */
+   EXECUTE,
+
+   /**
+    * The result is checked against the manifest of the update.
+    */
+   VERIFY,
+
+   /**
+    * The {@link HandyWarup#withReversePatches(java.util.function.Function) reverse patch} of the update is written
+    * next to the target, to be moved to its file once the update has been committed.
+    */
+   REVERSE,
+
+   /**
+    * The stage replaces the target.
+    */
+   COMMIT,
+
+   /**
+    * The stage is discarded after a failure.
+    */
+   ROLLBACK
+}
@@ -0,0 +1,195 @@
+package com.vidal.handyWarup;
+
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link ApplyListener} that accumulates timings and I/O counters, and formats them into a report.
+ *
+ * Phase durations are summed over targets: phases of several targets, as well as staging and opening,
+ * overlap in time. Throughput is computed over the elapsed time, from the first phase start to the last phase end.
+ */
+public class ApplySummary implements ApplyListener {
+
+   private static final ApplyPhase[] PHASES = ApplyPhase.values();
+
+   private final LongAdder[] phaseNanos = adders(PHASES.length);
+   private final ConcurrentMap<String, CommandTimings> commands = new ConcurrentHashMap<>();
+   private final LongAdder copiedFiles = new LongAdder();
+   private final LongAdder copiedBytes = new LongAdder();
+   private final LongAdder linkedFiles = new LongAdder();
+   private final LongAdder extractedFiles = new LongAdder();
+   private final LongAdder extractedBytes = new LongAdder();
+   private final LongAdder deletedFiles = new LongAdder();
+   private final LongAdder deletedBytes = new LongAdder();
+   private final LongAdder skippedReversePatches = new LongAdder();
+   private final AtomicLong firstStart = new AtomicLong(Long.MAX_VALUE);
+   private final AtomicLong lastEnd = new AtomicLong(Long.MIN_VALUE);
+
+   @Override
+   public void phaseStarted(Path subject, ApplyPhase phase) {
+      firstStart.accumulateAndGet(System.nanoTime(), Math::min);
+   }
+
+   @Override
+   public void phaseEnded(Path subject, ApplyPhase phase, long nanos) {
+      phaseNanos[phase.ordinal()].add(nanos);
+      lastEnd.accumulateAndGet(System.nanoTime(), Math::max);
+   }
+
+   @Override
+   public void commandExecuted(Path target, Command command, long nanos) {
+      commands.computeIfAbsent(command.getClass().getSimpleName(), kind -> new CommandTimings()).add(nanos);
+   }
+
+   @Override
+   public void filesCopied(int files, long bytes) {
+      copiedFiles.add(files);
+      copiedBytes.add(bytes);
+   }
+
+   @Override
+   public void filesLinked(int files) {
+      linkedFiles.add(files);
+   }
+
+   @Override
+   public void filesExtracted(int files, long bytes) {
+      extractedFiles.add(files);
+      extractedBytes.add(bytes);
+   }
+
+   @Override
+   public void filesDeleted(int files, long bytes) {
+      deletedFiles.add(files);
+      deletedBytes.add(bytes);
+   }
+
+   @Override
+   public void reversePatchSkipped(Path target) {
+      skippedReversePatches.increment();
+   }
+
+   /**
+    * @return total duration of the specified phase, over all targets
+    */
+   public long phaseNanos(ApplyPhase phase) {
+      return phaseNanos[phase.ordinal()].sum();
+   }
+
+   /**
+    * @return number of executed commands
+    */
+   public long commandCount() {
+      return commands.values().stream().mapToLong(timings -> timings.count.sum()).sum();
+   }
+
+   public long copiedBytes() {
+      return copiedBytes.sum();
+   }
+
+   public long extractedBytes() {
+      return extractedBytes.sum();
+   }
+
+   public long deletedBytes() {
+      return deletedBytes.sum();
+   }
+
+   /**
+    * @return number of targets for which no reverse patch was written, although reverse patches were requested
+    */
+   public long skippedReversePatches() {
+      return skippedReversePatches.sum();
+   }
+
+   /**
+    * @return a human readable report of the phases, commands and I/O
+    */
+   public String report() {
+      StringBuilder report = new StringBuilder("Phases (summed over targets):\n");
+      for (ApplyPhase phase : PHASES) {
+         long nanos = phaseNanos(phase);
+         if (nanos > 0) {
+            report.append(format("  %-10s %10.1f ms%n", phase.name().toLowerCase(Locale.ROOT), millis(nanos)));
+         }
+      }
+
+      long executed = commandCount();
+      long executing = phaseNanos(ApplyPhase.EXECUTE);
+      report.append(format("Commands: %d in %.1f ms (%.0f/s)%n", executed, millis(executing), perSecond(executed, executing)));
+      Map<String, CommandTimings> byKind = new TreeMap<>(commands);
+      byKind.forEach((kind, timings) -> {
+         long count = timings.count.sum();
+         report.append(format("  %-16s %8d   mean %8.3f ms   max %8.3f ms%n",
+               kind, count, millis(timings.nanos.sum()) / count, millis(timings.max.get())));
+      });
+
+      report.append("I/O:\n");
+      report.append(format("  copied     %8d files %10s%n", copiedFiles.sum(), bytes(copiedBytes.sum())));
+      report.append(format("  linked     %8d files%n", linkedFiles.sum()));
+      report.append(format("  extracted  %8d files %10s%n", extractedFiles.sum(), bytes(extractedBytes.sum())));
+      report.append(format("  deleted    %8d files %10s%n", deletedFiles.sum(), bytes(deletedBytes.sum())));
+      if (skippedReversePatches.sum() > 0) {
+         report.append(format("Reverse patches skipped: %d%n", skippedReversePatches.sum()));
+      }
+
+      long elapsed = Math.max(0, lastEnd.get() - firstStart.get());
+      long written = copiedBytes.sum() + extractedBytes.sum();
+      report.append(format("Throughput: %s/s written over %.1f ms", bytes((long) perSecond(written, elapsed)), millis(elapsed)));
+      return report.toString();
+   }
+
+   @Override
+   public String toString() {
+      return report();
+   }
+
+   private static LongAdder[] adders(int count) {
+      LongAdder[] adders = new LongAdder[count];
+      for (int i = 0; i < count; i++) {
+         adders[i] = new LongAdder();
+      }
+      return adders;
+   }
+
+   private static String format(String format, Object... arguments) {
+      return String.format(Locale.ROOT, format, arguments);
+   }
+
+   private static double millis(long nanos) {
+      return nanos / 1e6;
+   }
+
+   private static double perSecond(long amount, long nanos) {
+      return nanos <= 0 ? 0 : amount * (double) TimeUnit.SECONDS.toNanos(1) / nanos;
+   }
+
+   private static String bytes(long bytes) {
+      if (bytes < 1024) {
+         return bytes + " B";
+      }
+      int unit = (63 - Long.numberOfLeadingZeros(bytes)) / 10;
+      return format("%.1f %ciB", bytes / (double) (1L << (10 * unit)), " KMGTPE".charAt(unit));
+   }
+
+   private static class CommandTimings {
+      private final LongAdder count = new LongAdder();
+      private final LongAdder nanos = new LongAdder();
+      private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+      void add(long duration) {
+         count.increment();
+         nanos.add(duration);
+         max.accumulate(duration);
+      }
+   }
+}
@@ -0,0 +1,189 @@
+package com.vidal.handyWarup;
+
+import com.vidal.handyWarup.errors.ArchiveUpdateException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.Collections.singletonList;
+
+/**
+ * Adds, replaces and removes entries of an archive (typically a jar) nested in the target.
+ *
+ * The archive is rebuilt next to itself: entries that are not modified are copied without being
+ * decompressed, replaced entries keep their position and added entries are appended.
+ * Consecutive commands on the same archive are {@link #merge(ArchiveCommand) merged},
+ * so that the archive is rebuilt only once.
+ *
+ * In a batch, entries are designated as {@code archive!/entry}, e.g. {@code WEB-INF/lib/lib.jar!/a/B.class}.
+ */
+public class ArchiveCommand implements Command {
+
+   static final String SEPARATOR = "!/";
+
+   private final Path relativeArchive;
+   /**
+    * Payload of each modified entry, relative to the update root, or {@code null} for removed entries.
+    */
+   private final Map<String, Path> entries = new LinkedHashMap<>();
+
+   private ArchiveCommand(Path relativeArchive) {
+      this.relativeArchive = relativeArchive;
+   }
+
+   /**
+    * @param relativeSource payload of the entry, ignored for directory entries
+    * @param nestedTarget {@code archive!/entry} path of the added or replaced entry
+    */
+   public static ArchiveCommand put(Path relativeSource, String nestedTarget) {
+      int separator = separator(nestedTarget);
+      ArchiveCommand command = new ArchiveCommand(Paths.get(nestedTarget.substring(0, separator)));
+      command.entries.put(nestedTarget.substring(separator + SEPARATOR.length()), relativeSource);
+      return command;
+   }
+
+   /**
+    * @param nestedTarget {@code archive!/entry} path of the removed entry
+    */
+   public static ArchiveCommand remove(String nestedTarget) {
+      int separator = separator(nestedTarget);
+      ArchiveCommand command = new ArchiveCommand(Paths.get(nestedTarget.substring(0, separator)));
+      command.entries.put(nestedTarget.substring(separator + SEPARATOR.length()), null);
+      return command;
+   }
+
+   public static boolean isNested(String path) {
+      return path.contains(SEPARATOR);
+   }
+
+   /**
+    * @return {@code true} if the specified command modifies the same archive and has been merged into this one
+    */
+   public boolean merge(ArchiveCommand other) {
+      if (!relativeArchive.equals(other.relativeArchive)) {
+         return false;
+      }
+      other.entries.forEach(this.entries::put);
+      return true;
+   }
+
+   @Override
+   public void accept(Path sourceRoot, Path targetRoot) {
+      Path archive = targetRoot.resolve(relativeArchive);
+      Path rebuilt = archive.resolveSibling("." + archive.getFileName() + ".handy-warup-archive");
+      try {
+         try (RawZipFile source = new RawZipFile(archive);
+              RawZipWriter out = new RawZipWriter(rebuilt)) {
+            Map<String, Path> pending = new LinkedHashMap<>(entries);
+            for (RawZipFile.Entry entry : source.entries()) {
+               if (!pending.containsKey(entry.name())) {
+                  out.copy(source, entry);
+                  continue;
+               }
+               Path payload = pending.remove(entry.name());
+               if (payload != null) {
+                  write(out, entry.name(), sourceRoot, payload);
+               }
+            }
+            for (Map.Entry<String, Path> entry : pending.entrySet()) {
+               if (entry.getValue() != null) {
+                  write(out, entry.getKey(), sourceRoot, entry.getValue());
+               }
+            }
+         }
+         FileTransfer.copyAttributes(archive, rebuilt);
+         Files.move(rebuilt, archive, REPLACE_EXISTING);
+      } catch (IOException e) {
+         throw new ArchiveUpdateException("Could not update archive " + archive, e);
+      } finally {
+         deleteQuietly(rebuilt);
+      }
+   }
+
+   /**
+    * @return {@code true} if the archive already holds the result of this command: added and replaced entries
+    * have the size and checksum of their payload, and removed entries are missing
+    */
+   public boolean isApplied(Path sourceRoot, Path targetRoot) {
+      Path archive = targetRoot.resolve(relativeArchive);
+      if (!Files.isRegularFile(archive, LinkOption.NOFOLLOW_LINKS)) {
+         return false;
+      }
+      try (RawZipFile current = new RawZipFile(archive)) {
+         Map<String, RawZipFile.Entry> existing = new HashMap<>();
+         current.entries().forEach(entry -> existing.put(entry.name(), entry));
+         for (Map.Entry<String, Path> entry : entries.entrySet()) {
+            RawZipFile.Entry found = existing.get(entry.getKey());
+            if (entry.getValue() == null ? found != null : found == null || !holds(found, sourceRoot, entry.getValue())) {
+               return false;
+            }
+         }
+         return true;
+      } catch (IOException e) {
+         // not an archive, or a corrupted one: updating it reports why
+         return false;
+      }
+   }
+
+   @Override
+   public Collection<Path> targets() {
+      return singletonList(relativeArchive);
+   }
+
+   private static void write(RawZipWriter out, String name, Path sourceRoot, Path relativePayload) throws IOException {
+      if (name.endsWith("/")) {
+         out.write(name, new ByteArrayInputStream(new byte[0]), System.currentTimeMillis());
+         return;
+      }
+      Path payload = RelativePaths.resolve(sourceRoot, relativePayload);
+      try (InputStream in = Files.newInputStream(payload)) {
+         out.write(name, in, Files.getLastModifiedTime(payload).toMillis());
+      }
+   }
+
+   private static boolean holds(RawZipFile.Entry entry, Path sourceRoot, Path relativePayload) throws IOException {
+      if (entry.isDirectory()) {
+         return true;
+      }
+      Path payload = RelativePaths.resolve(sourceRoot, relativePayload);
+      if (entry.size != Files.size(payload)) {
+         return false;
+      }
+      CRC32 crc = new CRC32();
+      try (InputStream in = new CheckedInputStream(Files.newInputStream(payload), crc)) {
+         byte[] buffer = new byte[8192];
+         while (in.read(buffer) >= 0) {
+            // checksum computed while reading
+         }
+      }
+      return entry.crc == crc.getValue();
+   }
+
+   private static int separator(String nestedPath) {
+      int separator = nestedPath.indexOf(SEPARATOR);
+      if (separator <= 0) {
+         throw new IllegalArgumentException("Not a nested archive entry: " + nestedPath);
+      }
+      return separator;
+   }
+
+   private static void deleteQuietly(Path path) {
+      try {
+         Files.deleteIfExists(path);
+      } catch (IOException e) {
+         // best effort: a leftover can only be a partially rebuilt archive
+      }
+   }
+}
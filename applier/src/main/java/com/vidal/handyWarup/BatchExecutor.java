@@ -0,0 +1,161 @@
+package com.vidal.handyWarup;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Executes the commands of a batch concurrently, as long as they touch disjoint subtrees of the target.
+ *
+ * A command waits for every earlier command that touches one of its {@link Command#targets() targets},
+ * one of their ancestors or one of their descendants, so that, for instance, the removal of a directory
+ * always happens before the addition of a file beneath it. Dependencies are computed in a single pass
+ * over the batch, with a tree of the targets seen so far.
+ *
+ * Once a command fails, no other command is started, running ones are waited for,
+ * and the failure of the earliest failed command in batch order is rethrown.
+ */
+class BatchExecutor {
+
+   private static final CompletableFuture<Void> READY = CompletableFuture.completedFuture(null);
+
+   private final ForkJoinPool pool;
+
+   public BatchExecutor(ForkJoinPool pool) {
+      this.pool = pool;
+   }
+
+   public void execute(List<Command> commands, Consumer<Command> action) {
+      execute(commands, command -> READY, action);
+   }
+
+   /**
+    * @param ready completes once the specified command may be executed, as far as the caller is concerned:
+    *              the command still waits for the earlier commands it depends on
+    */
+   public void execute(List<Command> commands, Function<Command, CompletableFuture<?>> ready, Consumer<Command> action) {
+      List<Set<Integer>> dependencies = dependencies(commands);
+      List<CompletableFuture<Void>> executions = new ArrayList<>(commands.size());
+      AtomicBoolean failed = new AtomicBoolean();
+      for (int i = 0; i < commands.size(); i++) {
+         Command command = commands.get(i);
+         CompletableFuture<?>[] prerequisites = Stream.concat(
+                     dependencies.get(i).stream().map(executions::get),
+                     Stream.of(ready.apply(command)))
+               .toArray(CompletableFuture<?>[]::new);
+         executions.add(CompletableFuture.allOf(prerequisites).thenRunAsync(() -> {
+            if (failed.get()) {
+               return;
+            }
+            try {
+               action.accept(command);
+            } catch (RuntimeException | Error e) {
+               failed.set(true);
+               throw e;
+            }
+         }, pool));
+      }
+      rethrowFirstFailure(executions);
+   }
+
+   private static void rethrowFirstFailure(List<CompletableFuture<Void>> executions) {
+      RuntimeException failure = null;
+      for (CompletableFuture<Void> execution : executions) {
+         try {
+            execution.join();
+         } catch (CompletionException e) {
+            if (failure == null) {
+               failure = unwrap(e);
+            }
+         }
+      }
+      if (failure != null) {
+         throw failure;
+      }
+   }
+
+   private static RuntimeException unwrap(CompletionException exception) {
+      Throwable cause = exception.getCause();
+      if (cause instanceof RuntimeException) {
+         return (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+         throw (Error) cause;
+      }
+      return exception;
+   }
+
+   /**
+    * @return for each command, the indexes of the earlier commands it must wait for
+    */
+   static List<Set<Integer>> dependencies(List<Command> commands) {
+      Node root = new Node();
+      List<Set<Integer>> result = new ArrayList<>(commands.size());
+      for (int i = 0; i < commands.size(); i++) {
+         Set<Integer> dependencies = new LinkedHashSet<>();
+         for (Path target : commands.get(i).targets()) {
+            root.register(target.normalize(), i, dependencies);
+         }
+         dependencies.remove(i);
+         result.add(dependencies);
+      }
+      return result;
+   }
+
+   /**
+    * Node of the tree of the paths touched by the commands registered so far.
+    *
+    * Registering a command on a path makes it depend on the last command registered on the path
+    * or on one of its ancestors, and on all the commands still registered beneath the path.
+    * The latter are then forgotten: any later command that conflicts with them also conflicts with
+    * the new command, which already waits for them.
+    */
+   private static class Node {
+      private final Map<String, Node> children = new HashMap<>();
+      private int lastCommand = -1;
+
+      void register(Path path, int command, Set<Integer> dependencies) {
+         Node node = this;
+         for (Path name : path) {
+            if (node.lastCommand >= 0) {
+               dependencies.add(node.lastCommand);
+            }
+            if (name.toString().isEmpty()) {
+               continue;
+            }
+            node = node.children.computeIfAbsent(name.toString(), key -> new Node());
+         }
+         if (node.lastCommand >= 0) {
+            dependencies.add(node.lastCommand);
+         }
+         node.collectDescendants(dependencies);
+         node.children.clear();
+         node.lastCommand = command;
+      }
+
+      private void collectDescendants(Collection<Integer> dependencies) {
+         Deque<Node> queue = new ArrayDeque<>(children.values());
+         while (!queue.isEmpty()) {
+            Node node = queue.poll();
+            if (node.lastCommand >= 0) {
+               dependencies.add(node.lastCommand);
+            }
+            queue.addAll(node.children.values());
+         }
+      }
+   }
+}
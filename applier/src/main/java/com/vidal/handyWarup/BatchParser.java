@@ -0,0 +1,322 @@
+package com.vidal.handyWarup;
+
+import com.vidal.handyWarup.errors.CommandParsingException;
+import com.vidal.handyWarup.errors.HandyWarupException;
+import com.vidal.handyWarup.errors.NoUpdateDescriptorException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Reads the commands of an update, from either of its batch formats.
+ *
+ * The text format ({@code batch.warup}) has one command per line:
+ * <pre>
+ * add --from=/source --to=/target
+ * replace --from=/source --to=/target
+ * add --blob=&lt;sha-256&gt; --to=/target --to=/other/target
+ * patch --from=/delta --to=/target
+ * rm --from=/target
+ * </pre>
+ * Leading slashes are optional. Lines are decoded as UTF-8, then split by hand rather than matched against
+ * regular expressions.
+ *
+ * The binary format ({@code batch.warupb}) starts with the {@code HWB1} magic, followed by records made of
+ * a one byte opcode and of its operands: strings are UTF-8 bytes prefixed with their unsigned LEB128 length,
+ * hashes are 32 raw bytes and target lists are prefixed with their LEB128 count. A zero opcode ends the batch.
+ * When it is stored uncompressed, the binary batch is memory-mapped straight from the update archive.
+ * The binary batch takes precedence when both formats are present.
+ */
+class BatchParser {
+
+   static final String TEXT_BATCH = "batch.warup";
+   static final String BINARY_BATCH = "batch.warupb";
+
+   static final byte[] MAGIC = {'H', 'W', 'B', '1'};
+   static final int END = 0;
+   static final int ADD = 1;
+   static final int REPLACE = 2;
+   static final int RM = 3;
+   static final int PATCH = 4;
+   static final int BLOB = 5;
+
+   private static final String[] VERBS = {null, "add", "replace", "rm", "patch", "add"};
+   private static final String FROM = "--from=";
+   private static final String BLOB_OPTION = "--blob=";
+   private static final String TO = " --to=";
+   private static final int HASH_LENGTH = 32;
+
+   private final Map<String, Function<Line, Command>> commandFactory;
+
+   /**
+    * @param commandFactory command factories by verb
+    */
+   public BatchParser(Map<String, Function<Line, Command>> commandFactory) {
+      this.commandFactory = commandFactory;
+   }
+
+   /**
+    * @return {@code true} if the specified zip entry name is a batch
+    */
+   public static boolean isBatch(String entryName) {
+      return TEXT_BATCH.equals(entryName) || BINARY_BATCH.equals(entryName);
+   }
+
+   /**
+    * @param zippedDiff update archive
+    * @param patchRoot root of the update archive, opened as a file system
+    */
+   public List<Command> parse(File zippedDiff, Path patchRoot) {
+      return commands(lines(zippedDiff, patchRoot));
+   }
+
+   /**
+    * @return the command of each line, in batch order
+    */
+   public List<Command> commands(List<Line> lines) {
+      List<Command> commands = new ArrayList<>(lines.size());
+      lines.forEach(line -> commands.add(create(line)));
+      return commands;
+   }
+
+   /**
+    * @param zippedDiff update archive, {@code null} if the update is not read from a file
+    * @param patchRoot root of the update archive, opened as a file system
+    * @return the batch of the update, before commands are created
+    */
+   public static List<Line> lines(File zippedDiff, Path patchRoot) {
+      Path binaryBatch = patchRoot.resolve(BINARY_BATCH);
+      if (Files.isRegularFile(binaryBatch)) {
+         return parseBinary(read(zippedDiff, binaryBatch));
+      }
+      Path textBatch = patchRoot.resolve(TEXT_BATCH);
+      if (Files.isRegularFile(textBatch)) {
+         return parseText(textBatch);
+      }
+      throw new NoUpdateDescriptorException("could not find patch file");
+   }
+
+   private static List<Line> parseText(Path batchFile) {
+      List<Line> lines = new ArrayList<>();
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(batchFile), UTF_8))) {
+         String line;
+         while ((line = reader.readLine()) != null) {
+            lines.add(line(line));
+         }
+         return lines;
+      } catch (IOException e) {
+         throw new HandyWarupException(e);
+      }
+   }
+
+   Command parseLine(String line) {
+      return create(line(line));
+   }
+
+   private static Line line(String line) {
+      int space = line.indexOf(' ');
+      String verb = space < 0 ? line : line.substring(0, space);
+      String options = space < 0 ? "" : line.substring(space + 1);
+      Line parsed;
+      switch (verb) {
+         case "add":
+         case "replace":
+            parsed = options.startsWith(BLOB_OPTION) ? blobLine(verb, options) : fromToLine(verb, options);
+            break;
+         case "patch":
+            parsed = fromToLine(verb, options);
+            break;
+         case "rm":
+            parsed = options.startsWith(FROM)
+                  ? new Line(verb, trimSlash(options.substring(FROM.length())), null, Collections.<String>emptyList())
+                  : null;
+            break;
+         default:
+            parsed = null;
+            break;
+      }
+      if (parsed == null) {
+         throw new CommandParsingException("Line could not be parsed: " + line);
+      }
+      return parsed;
+   }
+
+   private static Line fromToLine(String verb, String options) {
+      int to = options.lastIndexOf(TO);
+      if (!options.startsWith(FROM) || to < FROM.length()) {
+         return null;
+      }
+      return new Line(verb,
+            trimSlash(options.substring(FROM.length(), to)),
+            null,
+            Collections.singletonList(trimSlash(options.substring(to + TO.length()))));
+   }
+
+   private static Line blobLine(String verb, String options) {
+      int to = options.indexOf(TO);
+      if (to < 0) {
+         return null;
+      }
+      String hash = options.substring(BLOB_OPTION.length(), to);
+      if (!isHash(hash)) {
+         return null;
+      }
+      List<String> targets = new ArrayList<>();
+      int start = to + TO.length();
+      int next;
+      while ((next = options.indexOf(TO, start)) >= 0) {
+         targets.add(trimSlash(options.substring(start, next)));
+         start = next + TO.length();
+      }
+      targets.add(trimSlash(options.substring(start)));
+      return new Line(verb, null, hash, targets);
+   }
+
+   private static List<Line> parseBinary(ByteBuffer batch) {
+      try {
+         for (byte expected : MAGIC) {
+            if (batch.get() != expected) {
+               throw new CommandParsingException("Unsupported binary batch format");
+            }
+         }
+         List<Line> lines = new ArrayList<>();
+         int opcode;
+         while ((opcode = batch.get() & 0xFF) != END) {
+            lines.add(binaryLine(opcode, batch));
+         }
+         return lines;
+      } catch (BufferUnderflowException e) {
+         throw new CommandParsingException("Truncated binary batch");
+      }
+   }
+
+   private static Line binaryLine(int opcode, ByteBuffer batch) {
+      switch (opcode) {
+         case ADD:
+         case REPLACE:
+         case PATCH:
+            String source = readString(batch);
+            return new Line(VERBS[opcode], source, null, Collections.singletonList(readString(batch)));
+         case RM:
+            return new Line(VERBS[opcode], readString(batch), null, Collections.<String>emptyList());
+         case BLOB:
+            String hash = readHash(batch);
+            int count = (int) readVarint(batch);
+            List<String> targets = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+               targets.add(readString(batch));
+            }
+            return new Line(VERBS[opcode], null, hash, targets);
+         default:
+            throw new CommandParsingException("Unknown binary batch opcode " + opcode);
+      }
+   }
+
+   private Command create(Line line) {
+      Function<Line, Command> factory = commandFactory.get(line.verb);
+      if (factory == null) {
+         throw new CommandParsingException("Unknown command " + line.verb);
+      }
+      return factory.apply(line);
+   }
+
+   private static ByteBuffer read(File zippedDiff, Path batch) {
+      if (zippedDiff != null) {
+         try (RawZipFile zipFile = new RawZipFile(zippedDiff.toPath())) {
+            for (RawZipFile.Entry entry : zipFile.entries()) {
+               if (BINARY_BATCH.equals(entry.name()) && entry.isStored()) {
+                  return zipFile.map(entry);
+               }
+            }
+         } catch (IOException e) {
+            // not mappable (e.g. zip64 archive): read through the zip file system instead
+         }
+      }
+      try {
+         return ByteBuffer.wrap(Files.readAllBytes(batch));
+      } catch (IOException e) {
+         throw new HandyWarupException(e);
+      }
+   }
+
+   private static String readString(ByteBuffer batch) {
+      byte[] bytes = new byte[(int) readVarint(batch)];
+      batch.get(bytes);
+      return new String(bytes, UTF_8);
+   }
+
+   private static String readHash(ByteBuffer batch) {
+      char[] hex = new char[HASH_LENGTH * 2];
+      for (int i = 0; i < HASH_LENGTH; i++) {
+         int b = batch.get() & 0xFF;
+         hex[2 * i] = Character.forDigit(b >> 4, 16);
+         hex[2 * i + 1] = Character.forDigit(b & 0xF, 16);
+      }
+      return new String(hex);
+   }
+
+   private static long readVarint(ByteBuffer batch) {
+      long result = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+         int b = batch.get() & 0xFF;
+         result |= (long) (b & 0x7F) << shift;
+         if ((b & 0x80) == 0) {
+            return result;
+         }
+      }
+      throw new CommandParsingException("Malformed varint in binary batch");
+   }
+
+   private static boolean isHash(String hash) {
+      if (hash.length() != HASH_LENGTH * 2) {
+         return false;
+      }
+      for (int i = 0; i < hash.length(); i++) {
+         char c = hash.charAt(i);
+         if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private static String trimSlash(String path) {
+      return path.startsWith("/") ? path.substring(1) : path;
+   }
+
+   /**
+    * Parsed command, independent of the batch format.
+    */
+   static class Line {
+      final String verb;
+      /**
+       * Source path for {@code add}, {@code replace} and {@code patch}, removed path for {@code rm}.
+       */
+      final String source;
+      /**
+       * Hex encoded SHA-256 of the blob to add, if any.
+       */
+      final String blob;
+      final List<String> targets;
+
+      Line(String verb, String source, String blob, List<String> targets) {
+         this.verb = verb;
+         this.source = source;
+         this.blob = blob;
+         this.targets = targets;
+      }
+   }
+}
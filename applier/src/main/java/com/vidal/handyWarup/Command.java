@@ -1,7 +1,13 @@
 package com.vidal.handyWarup;
 
 import java.nio.file.Path;
+import java.util.Collection;
 import java.util.function.BiConsumer;
 
 public interface Command extends BiConsumer<Path, Path> {
+
+   /**
+    * @return paths, relative to the target root, that this command creates, overwrites or deletes
+    */
+   Collection<Path> targets();
 }
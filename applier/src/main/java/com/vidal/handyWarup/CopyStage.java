@@ -0,0 +1,171 @@
+package com.vidal.handyWarup;
+
+import com.vidal.handyWarup.errors.TargetCommitException;
+import com.vidal.handyWarup.errors.TemporaryCopyException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Date;
+
+import static java.nio.file.Files.createTempDirectory;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+
+/**
+ * Applies commands to a full copy of the target.
+ *
+ * The copy is created next to the target whenever possible, so that committing
+ * boils down to two directory renames. Otherwise, the target is deleted and the copy
+ * is copied back over it.
+ *
+ * A copy left by an interrupted update can be resumed: committing it then completes an interrupted swap.
+ */
+class CopyStage implements Stage {
+
+   private final Path target;
+   private final Path copy;
+   private final FsDeepCopy deepCopy;
+   private final FsDeepRemove deepRemove;
+
+   public CopyStage(Path target, FsDeepCopy deepCopy, FsDeepRemove deepRemove) {
+      this(target, deepCopy, deepCopy, deepRemove);
+   }
+
+   /**
+    * @param snapshot copier used to create the copy of the target
+    */
+   public CopyStage(Path target, FsDeepCopy snapshot, FsDeepCopy deepCopy, FsDeepRemove deepRemove) {
+      this.target = target.toAbsolutePath();
+      this.deepCopy = deepCopy;
+      this.deepRemove = deepRemove;
+      this.copy = copyTarget(this.target, snapshot, deepRemove);
+   }
+
+   private CopyStage(Path target, Path copy, FsDeepCopy deepCopy, FsDeepRemove deepRemove) {
+      this.target = target.toAbsolutePath();
+      this.copy = copy;
+      this.deepCopy = deepCopy;
+      this.deepRemove = deepRemove;
+   }
+
+   /**
+    * Resumes the stage of an interrupted update from its copy of the target.
+    */
+   public static CopyStage resume(Path target, Path copy, FsDeepCopy deepCopy, FsDeepRemove deepRemove) {
+      return new CopyStage(target, copy, deepCopy, deepRemove);
+   }
+
+   @Override
+   public Path root() {
+      return copy;
+   }
+
+   @Override
+   public Path workspace() {
+      return copy;
+   }
+
+   @Override
+   public void beforeCommand(Command command) {
+   }
+
+   @Override
+   public Path commit() {
+      if (!Files.exists(copy)) {
+         // the copy was already swapped with the target
+         return target;
+      }
+      if (!Files.exists(target)) {
+         // the swap was interrupted once the target was renamed
+         moveCopy();
+         return target;
+      }
+      if (!swap()) {
+         deepRemove.accept(target);
+         deepCopy.accept(copy, target);
+         deepRemove.accept(copy);
+      }
+      return target;
+   }
+
+   @Override
+   public void rollback() {
+      if (Files.exists(copy)) {
+         deepRemove.accept(copy);
+      }
+   }
+
+   /**
+    * @return the copy of the target; a partial copy is deleted if the copy fails or is stopped
+    */
+   private static Path copyTarget(Path targetDirectory, FsDeepCopy snapshot, FsDeepRemove deepRemove) {
+      Path tempDirectory;
+      try {
+         tempDirectory = stagingDirectory(targetDirectory);
+      } catch (IOException e) {
+         throw new TemporaryCopyException(e.getMessage(), e);
+      }
+      try {
+         snapshot.accept(targetDirectory, tempDirectory);
+      } catch (RuntimeException e) {
+         try {
+            deepRemove.accept(tempDirectory);
+         } catch (RuntimeException cleanup) {
+            e.addSuppressed(cleanup);
+         }
+         throw e;
+      }
+      return tempDirectory;
+   }
+
+   private static Path stagingDirectory(Path targetDirectory) throws IOException {
+      Path parent = targetDirectory.getParent();
+      if (parent != null) {
+         try {
+            return createTempDirectory(parent, "." + targetDirectory.getFileName() + ".handy-warup-");
+         } catch (IOException e) {
+            // parent is not writable, fall back to the default temporary directory
+         }
+      }
+      return createTempDirectory("handy-warup-" + new Date().getTime());
+   }
+
+   /**
+    * Replaces the target with its copy through atomic renames.
+    *
+    * @return {@code false} if the target could not be renamed, and was therefore left untouched
+    */
+   private boolean swap() {
+      Path previous = target.resolveSibling("." + target.getFileName() + ".handy-warup-previous-" + new Date().getTime());
+      try {
+         Files.move(target, previous, ATOMIC_MOVE);
+      } catch (IOException e) {
+         return false;
+      }
+      try {
+         Files.move(copy, target, ATOMIC_MOVE);
+      } catch (IOException e) {
+         restore(previous, e);
+         return false;
+      }
+      deepRemove.accept(previous);
+      return true;
+   }
+
+   private void moveCopy() {
+      try {
+         Files.move(copy, target, ATOMIC_MOVE);
+      } catch (IOException e) {
+         throw new TargetCommitException("Could not move " + copy + " to " + target, e);
+      }
+   }
+
+   private void restore(Path previous, IOException cause) {
+      try {
+         Files.move(previous, target, ATOMIC_MOVE);
+      } catch (IOException e) {
+         e.addSuppressed(cause);
+         throw new TargetCommitException("Could not restore " + target + " from " + previous, e);
+      }
+   }
+}
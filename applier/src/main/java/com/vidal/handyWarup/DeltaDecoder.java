@@ -0,0 +1,217 @@
+package com.vidal.handyWarup;
+
+import com.vidal.handyWarup.errors.DeltaPatchException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Rewrites a file by applying a binary delta to its current content.
+ *
+ * The current file is first checked against the length and checksum the delta expects. The delta is then read
+ * sequentially, source ranges are read from the current file, and the result is written next to it before replacing it,
+ * with the permissions and owner of the current file. See the generator's {@code DeltaEncoder} for the format.
+ */
+public class DeltaDecoder implements BiConsumer<Path, Path> {
+
+   private static final byte[] MAGIC = {'H', 'W', 'D', '1'};
+   private static final int END = 0;
+   private static final int COPY = 1;
+   private static final int INSERT = 2;
+   private static final int BUFFER_SIZE = 64 * 1024;
+
+   @Override
+   public void accept(Path delta, Path target) {
+      Path patched = target.resolveSibling("." + target.getFileName() + ".handy-warup-delta");
+      try {
+         try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(delta)));
+              SeekableByteChannel source = Files.newByteChannel(target);
+              OutputStream out = new BufferedOutputStream(Files.newOutputStream(patched))) {
+            decode(in, source, out, target);
+         }
+         FileTransfer.copyAttributes(target, patched);
+         Files.move(patched, target, REPLACE_EXISTING);
+      } catch (IOException e) {
+         throw new DeltaPatchException("Could not apply delta " + delta + " to " + target, e);
+      } finally {
+         deleteQuietly(patched);
+      }
+   }
+
+   /**
+    * Reads the header of a delta, without applying it.
+    *
+    * @return the length of the file the delta applies to, then the length of the file it produces
+    */
+   static long[] lengths(Path delta) throws IOException {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(delta)))) {
+         byte[] magic = new byte[MAGIC.length];
+         in.readFully(magic);
+         if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Unsupported delta format");
+         }
+         return new long[]{readVarint(in), readVarint(in)};
+      }
+   }
+
+   /**
+    * Tells whether a delta has already been applied to a file, e.g. by an interrupted update,
+    * by checking the file against the length and checksum of the file the delta produces.
+    */
+   public boolean isApplied(Path delta, Path target) {
+      try {
+         if (!Files.isRegularFile(target, LinkOption.NOFOLLOW_LINKS) || Files.size(target) != lengths(delta)[1]) {
+            return false;
+         }
+         int targetCrc = trailer(delta);
+         try (SeekableByteChannel current = Files.newByteChannel(target)) {
+            return crc(current, ByteBuffer.allocate(BUFFER_SIZE)) == targetCrc;
+         }
+      } catch (IOException e) {
+         throw new DeltaPatchException("Could not check delta " + delta + " against " + target, e);
+      }
+   }
+
+   /**
+    * @return the checksum of the file the delta produces, which ends the delta
+    */
+   private static int trailer(Path delta) throws IOException {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(delta)))) {
+         long remaining = Files.size(delta) - Integer.BYTES;
+         while (remaining > 0) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+               if (in.read() < 0) {
+                  throw new EOFException("Truncated delta " + delta);
+               }
+               skipped = 1;
+            }
+            remaining -= skipped;
+         }
+         return in.readInt();
+      }
+   }
+
+   private static void decode(DataInputStream in, SeekableByteChannel source, OutputStream out, Path target) throws IOException {
+      byte[] magic = new byte[MAGIC.length];
+      in.readFully(magic);
+      if (!Arrays.equals(magic, MAGIC)) {
+         throw new DeltaPatchException("Unsupported delta format for " + target);
+      }
+      long sourceLength = readVarint(in);
+      long targetLength = readVarint(in);
+      int sourceCrc = in.readInt();
+      if (source.size() != sourceLength) {
+         throw new DeltaPatchException("Delta does not apply to " + target + ": expected " + sourceLength + " bytes, found " + source.size());
+      }
+      ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+      if (crc(source, buffer) != sourceCrc) {
+         throw new DeltaPatchException("Delta does not apply to " + target + ": its content does not match the checksum of the delta source");
+      }
+
+      CRC32 crc = new CRC32();
+      CheckedOutputStream checked = new CheckedOutputStream(out, crc);
+      long written = 0;
+      int operation;
+      while ((operation = in.read()) != END) {
+         switch (operation) {
+            case COPY:
+               long offset = readVarint(in);
+               long length = readVarint(in);
+               copy(source, offset, length, buffer, checked);
+               written += length;
+               break;
+            case INSERT:
+               long literal = readVarint(in);
+               copy(in, literal, buffer.array(), checked);
+               written += literal;
+               break;
+            default:
+               throw new DeltaPatchException("Corrupted delta for " + target + ": unknown operation " + operation);
+         }
+      }
+      checked.flush();
+
+      if (written != targetLength || in.readInt() != (int) crc.getValue()) {
+         throw new DeltaPatchException("Corrupted delta for " + target + ": result does not match its checksum");
+      }
+   }
+
+   private static int crc(SeekableByteChannel source, ByteBuffer buffer) throws IOException {
+      CRC32 crc = new CRC32();
+      source.position(0);
+      buffer.clear();
+      int read;
+      while ((read = source.read(buffer)) >= 0) {
+         crc.update(buffer.array(), 0, read);
+         buffer.clear();
+      }
+      return (int) crc.getValue();
+   }
+
+   private static void copy(SeekableByteChannel source, long offset, long length, ByteBuffer buffer, OutputStream out) throws IOException {
+      source.position(offset);
+      long remaining = length;
+      while (remaining > 0) {
+         buffer.clear();
+         buffer.limit((int) Math.min(buffer.capacity(), remaining));
+         int read = source.read(buffer);
+         if (read < 0) {
+            throw new EOFException("Delta copies past the end of the source");
+         }
+         out.write(buffer.array(), 0, read);
+         remaining -= read;
+      }
+   }
+
+   private static void copy(InputStream in, long length, byte[] buffer, OutputStream out) throws IOException {
+      long remaining = length;
+      while (remaining > 0) {
+         int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+         if (read < 0) {
+            throw new EOFException("Delta is truncated");
+         }
+         out.write(buffer, 0, read);
+         remaining -= read;
+      }
+   }
+
+   private static long readVarint(InputStream in) throws IOException {
+      long value = 0;
+      for (int shift = 0; shift < 64; shift += 7) {
+         int b = in.read();
+         if (b < 0) {
+            throw new EOFException("Delta is truncated");
+         }
+         value |= (long) (b & 0x7F) << shift;
+         if ((b & 0x80) == 0) {
+            return value;
+         }
+      }
+      throw new IOException("Malformed varint in delta");
+   }
+
+   private static void deleteQuietly(Path path) {
+      try {
+         Files.deleteIfExists(path);
+      } catch (IOException e) {
+         // best effort, the patched file has already been moved or the failure is being reported
+      }
+   }
+}
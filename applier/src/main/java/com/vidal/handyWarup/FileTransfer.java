@@ -0,0 +1,131 @@
+package com.vidal.handyWarup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Copies files with the cheapest mechanism for their size and origin.
+ *
+ * <ul>
+ *    <li>large files of the default file system are transferred by the kernel, with {@link FileChannel#transferTo},
+ *    rather than through a buffer of a few kilobytes;</li>
+ *    <li>small files of the default file system go through {@link Files#copy(Path, Path, java.nio.file.CopyOption...)},
+ *    which copies them natively, without any Java buffer;</li>
+ *    <li>streams, e.g. entries inflated from an update archive, go through a buffer reused by each thread.</li>
+ * </ul>
+ *
+ * Existing target files are unlinked and recreated, never overwritten in place.
+ */
+final class FileTransfer {
+
+   static final long LARGE_FILE = 1024 * 1024;
+   private static final int BUFFER_SIZE = 64 * 1024;
+   private static final ThreadLocal<byte[]> BUFFERS = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+   private FileTransfer() {
+   }
+
+   /**
+    * Copies a file, a symbolic link or an empty directory, replacing the target.
+    *
+    * @param attributes attributes of the source, not following links
+    */
+   static void copy(Path from, BasicFileAttributes attributes, Path to) throws IOException {
+      if (!attributes.isRegularFile()) {
+         Files.copy(from, to, StandardCopyOption.REPLACE_EXISTING);
+         return;
+      }
+      boolean local = from.getFileSystem() == FileSystems.getDefault();
+      if (local && attributes.size() < LARGE_FILE) {
+         Files.copy(from, to, StandardCopyOption.REPLACE_EXISTING);
+         return;
+      }
+      Files.deleteIfExists(to);
+      if (!local) {
+         try (InputStream in = Files.newInputStream(from)) {
+            copy(in, to);
+         }
+         return;
+      }
+      try (FileChannel in = FileChannel.open(from, READ);
+           FileChannel out = FileChannel.open(to, CREATE_NEW, WRITE)) {
+         long size = in.size();
+         long position = 0;
+         while (position < size) {
+            long transferred = in.transferTo(position, size - position, out);
+            if (transferred <= 0) {
+               // the source shrank
+               break;
+            }
+            position += transferred;
+         }
+      }
+      copyPermissions(from, to);
+   }
+
+   /**
+    * Gives a file the POSIX permissions, owner and group of the file it replaces, where the file system supports them.
+    * The owner and group are only given away by privileged users, and left as they are otherwise.
+    */
+   static void copyAttributes(Path replaced, Path replacement) throws IOException {
+      PosixFileAttributeView view = Files.getFileAttributeView(replacement, PosixFileAttributeView.class);
+      if (view == null) {
+         return;
+      }
+      PosixFileAttributes original = Files.readAttributes(replaced, PosixFileAttributes.class);
+      view.setPermissions(original.permissions());
+      PosixFileAttributes current = view.readAttributes();
+      try {
+         if (!current.owner().equals(original.owner())) {
+            view.setOwner(original.owner());
+         }
+         if (!current.group().equals(original.group())) {
+            view.setGroup(original.group());
+         }
+      } catch (FileSystemException e) {
+         // not privileged: the replacement belongs to the user applying the update
+      }
+   }
+
+   /**
+    * Gives a file the POSIX permissions of another one, where the file system supports them.
+    */
+   static void copyPermissions(Path from, Path to) throws IOException {
+      PosixFileAttributeView permissions = Files.getFileAttributeView(to, PosixFileAttributeView.class);
+      if (permissions != null) {
+         permissions.setPermissions(Files.getPosixFilePermissions(from));
+      }
+   }
+
+   /**
+    * Writes a stream to a new file, through the buffer of the current thread.
+    *
+    * @return number of bytes written
+    */
+   static long copy(InputStream in, Path to) throws IOException {
+      byte[] buffer = BUFFERS.get();
+      long written = 0;
+      try (OutputStream out = Files.newOutputStream(to, CREATE_NEW, WRITE)) {
+         int read;
+         while ((read = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+            written += read;
+         }
+      }
+      return written;
+   }
+}
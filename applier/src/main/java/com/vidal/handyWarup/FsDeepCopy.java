@@ -3,63 +3,215 @@ package com.vidal.handyWarup;
 import com.vidal.handyWarup.errors.TemporaryCopyException;
 
 import java.io.IOException;
-import java.nio.file.FileVisitResult;
-import java.nio.file.FileVisitor;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
 
+/**
+ * Copies a file tree, splitting the work directory by directory over a {@link ForkJoinPool}.
+ * Each file is copied by {@link FileTransfer}, according to its size.
+ *
+ * A directory is always created before any of its children is copied.
+ * Existing target files are unlinked before being replaced, so overwriting a hard link
+ * never alters the other names of the same file.
+ */
 public class FsDeepCopy implements BiConsumer<Path, Path> {
 
+   private static final int FILES_PER_TASK = 64;
+
+   private final ForkJoinPool pool;
+   private final boolean linkFiles;
+   private final ApplyListener listener;
+   private final BooleanSupplier stopped;
+
+   public FsDeepCopy() {
+      this(ForkJoinPool.commonPool());
+   }
+
+   public FsDeepCopy(ForkJoinPool pool) {
+      this(pool, false);
+   }
+
+   private FsDeepCopy(ForkJoinPool pool, boolean linkFiles) {
+      this(pool, linkFiles, ApplyListener.NONE, () -> false);
+   }
+
+   private FsDeepCopy(ForkJoinPool pool, boolean linkFiles, ApplyListener listener, BooleanSupplier stopped) {
+      this.pool = pool;
+      this.linkFiles = linkFiles;
+      this.listener = listener;
+      this.stopped = stopped;
+   }
+
+   /**
+    * @return a copier that recreates directories but hard links regular files to their source,
+    * falling back to a regular copy whenever a link cannot be created
+    */
+   public static FsDeepCopy linking(ForkJoinPool pool) {
+      return new FsDeepCopy(pool, true);
+   }
+
+   /**
+    * @return a copier like this one, that reports the files it copies to the specified listener:
+    * files read from another file system than the one they are copied to, i.e. from an update archive, are extracted
+    */
+   FsDeepCopy listenedBy(ApplyListener listener) {
+      return new FsDeepCopy(pool, linkFiles, listener, stopped);
+   }
+
+   /**
+    * @return a copier like this one, that gives up with a {@link CancellationException} as soon as the specified
+    * condition holds, e.g. to stop staging a target for an update that turned out to be invalid
+    */
+   FsDeepCopy stoppedBy(BooleanSupplier stopped) {
+      return new FsDeepCopy(pool, linkFiles, listener, stopped);
+   }
+
    @Override
    public void accept(Path source, Path target) {
       try {
-         Files.walkFileTree(source, new DeepCopyVisitor(source, target));
+         pool.invoke(new DeepCopyTask(source, target));
+      } catch (CancellationException e) {
+         throw e;
+      } catch (RuntimeException e) {
+         throw new TemporaryCopyException("Unable to deep copy " + source + " to " + target, ioCause(e));
+      }
+   }
+
+   private static IOException ioCause(RuntimeException exception) {
+      for (Throwable cause = exception; cause != null; cause = cause.getCause()) {
+         if (cause instanceof IOException) {
+            return (IOException) cause;
+         }
+      }
+      throw exception;
+   }
+
+   private void copy(Path from, Path to, Tally tally) {
+      if (stopped.getAsBoolean()) {
+         throw new CancellationException("Copy of " + from + " stopped");
+      }
+      try {
+         BasicFileAttributes attributes = Files.readAttributes(from, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+         if (linkFiles && attributes.isRegularFile() && link(from, to)) {
+            tally.links++;
+            return;
+         }
+         FileTransfer.copy(from, attributes, to);
+         if (!attributes.isDirectory()) {
+            tally.files++;
+            tally.bytes += attributes.size();
+         }
       } catch (IOException e) {
-         throw new TemporaryCopyException("Unable to deep copy " + source + " to " + target, e);
+         throw new UncheckedIOException(e);
+      }
+   }
+
+   private static boolean link(Path from, Path to) throws IOException {
+      Files.deleteIfExists(to);
+      try {
+         Files.createLink(to, from);
+         return true;
+      } catch (IOException | UnsupportedOperationException e) {
+         return false;
       }
    }
 
-   private static class DeepCopyVisitor implements FileVisitor<Path> {
+   private class DeepCopyTask extends RecursiveAction {
 
       private final Path source;
       private final Path target;
 
-      public DeepCopyVisitor(Path source, Path target) {
+      public DeepCopyTask(Path source, Path target) {
          this.source = source;
          this.target = target;
       }
 
       @Override
-      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-         copy(dir, resolve(dir));
-         return FileVisitResult.CONTINUE;
-      }
+      protected void compute() {
+         Tally tally = new Tally();
+         copy(source, target, tally);
+         tally.report(source, target);
+         if (!Files.isDirectory(source, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+         }
 
-      @Override
-      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-         copy(file, resolve(file));
-         return FileVisitResult.CONTINUE;
+         List<RecursiveAction> subTasks = new ArrayList<>();
+         List<Path> files = new ArrayList<>();
+         try (DirectoryStream<Path> children = Files.newDirectoryStream(source)) {
+            for (Path child : children) {
+               if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                  subTasks.add(new DeepCopyTask(child, resolve(child)));
+               } else {
+                  files.add(child);
+               }
+               if (files.size() == FILES_PER_TASK) {
+                  subTasks.add(new FileCopyTask(files));
+                  files = new ArrayList<>();
+               }
+            }
+         } catch (IOException e) {
+            throw new UncheckedIOException(e);
+         }
+         if (!files.isEmpty()) {
+            subTasks.add(new FileCopyTask(files));
+         }
+         invokeAll(subTasks);
       }
 
-      @Override
-      public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
-         throw exc;
+      private Path resolve(Path child) {
+         return RelativePaths.resolve(target, source.relativize(child));
       }
 
-      @Override
-      public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
-         return FileVisitResult.CONTINUE;
-      }
+      private class FileCopyTask extends RecursiveAction {
 
-      private Path resolve(Path path) {
-         return target.resolve(source.relativize(path));
+         private final List<Path> files;
+
+         public FileCopyTask(List<Path> files) {
+            this.files = files;
+         }
+
+         @Override
+         protected void compute() {
+            Tally tally = new Tally();
+            for (Path file : files) {
+               copy(file, resolve(file), tally);
+            }
+            tally.report(source, target);
+         }
       }
+   }
+
+   /**
+    * Files copied by a task, reported once the task is done.
+    */
+   private class Tally {
+      private int files;
+      private long bytes;
+      private int links;
 
-      private void copy(Path dir, Path to) throws IOException {
-         Files.copy(dir, to, StandardCopyOption.REPLACE_EXISTING);
+      void report(Path source, Path target) {
+         if (links > 0) {
+            listener.filesLinked(links);
+         }
+         if (files == 0) {
+            return;
+         }
+         if (source.getFileSystem().equals(target.getFileSystem())) {
+            listener.filesCopied(files, bytes);
+         } else {
+            listener.filesExtracted(files, bytes);
+         }
       }
    }
 }
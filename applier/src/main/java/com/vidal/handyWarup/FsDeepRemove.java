@@ -2,25 +2,164 @@ package com.vidal.handyWarup;
 
 import com.vidal.handyWarup.errors.PathDeletionException;
 
-import java.io.File;
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.function.Consumer;
 
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+
+/**
+ * Deletes a file tree.
+ *
+ * Directories are listed from an explicit work queue, files are deleted in parallel
+ * over a {@link ForkJoinPool}, then directories are deleted deepest first.
+ *
+ * When a trash directory is configured, paths are renamed into it and deleted in the background.
+ * Paths that cannot be renamed there (e.g. because they live on another file system) are deleted
+ * right away.
+ */
 public class FsDeepRemove implements Consumer<Path> {
+
+   private static final int FILES_PER_TASK = 64;
+
+   private final ForkJoinPool pool;
+   private final Path trash;
+   private final ApplyListener listener;
+   private final Queue<ForkJoinTask<?>> purges = new ConcurrentLinkedQueue<>();
+
+   public FsDeepRemove() {
+      this(ForkJoinPool.commonPool());
+   }
+
+   public FsDeepRemove(ForkJoinPool pool) {
+      this(pool, null);
+   }
+
+   public FsDeepRemove(ForkJoinPool pool, Path trash) {
+      this(pool, trash, ApplyListener.NONE);
+   }
+
+   /**
+    * @param listener notified of the deleted files, once they are actually deleted
+    */
+   FsDeepRemove(ForkJoinPool pool, Path trash, ApplyListener listener) {
+      this.pool = pool;
+      this.trash = trash;
+      this.listener = listener;
+   }
+
    @Override
    public void accept(Path path) {
-      File filePath = path.toFile();
-      if (filePath.isDirectory()) {
-         for (File p : filePath.listFiles()) {
-            accept(p.toPath());
+      if (trash != null && moveToTrash(path)) {
+         return;
+      }
+      remove(path);
+   }
+
+   /**
+    * Waits until every path moved to the trash has been deleted.
+    *
+    * @throws PathDeletionException if one of the background deletions failed
+    */
+   public void awaitPurges() {
+      ForkJoinTask<?> purge;
+      while ((purge = purges.poll()) != null) {
+         purge.join();
+      }
+   }
+
+   private boolean moveToTrash(Path path) {
+      Path trashed = trash.resolve(UUID.randomUUID().toString());
+      try {
+         Files.move(path, trashed, ATOMIC_MOVE);
+      } catch (IOException | UnsupportedOperationException e) {
+         return false;
+      }
+      purges.add(pool.submit(() -> remove(trashed)));
+      return true;
+   }
+
+   private void remove(Path path) {
+      if (!Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+         deleteFiles(Collections.singletonList(path));
+         return;
+      }
+
+      List<Path> directories = new ArrayList<>();
+      List<ForkJoinTask<?>> fileDeletions = new ArrayList<>();
+      Deque<Path> queue = new ArrayDeque<>();
+      queue.add(path);
+      while (!queue.isEmpty()) {
+         Path directory = queue.poll();
+         directories.add(directory);
+         List<Path> files = new ArrayList<>();
+         try (DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+            for (Path child : children) {
+               if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                  queue.add(child);
+               } else {
+                  files.add(child);
+               }
+               if (files.size() == FILES_PER_TASK) {
+                  fileDeletions.add(deleteAll(files));
+                  files = new ArrayList<>();
+               }
+            }
+         } catch (IOException e) {
+            throw new PathDeletionException("Could not delete " + directory, e);
          }
+         if (!files.isEmpty()) {
+            fileDeletions.add(deleteAll(files));
+         }
+      }
+      fileDeletions.forEach(ForkJoinTask::join);
+
+      for (int i = directories.size() - 1; i >= 0; i--) {
+         delete(directories.get(i));
+      }
+   }
+
+   private ForkJoinTask<?> deleteAll(List<Path> files) {
+      return pool.submit(() -> deleteFiles(files));
+   }
+
+   private void deleteFiles(List<Path> files) {
+      if (listener == ApplyListener.NONE) {
+         files.forEach(FsDeepRemove::delete);
+         return;
+      }
+      long bytes = 0;
+      for (Path file : files) {
+         bytes += size(file);
+         delete(file);
+      }
+      listener.filesDeleted(files.size(), bytes);
+   }
+
+   private static long size(Path file) {
+      try {
+         return Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).size();
+      } catch (IOException e) {
+         // the deletion reports the failure
+         return 0;
       }
-      delete(path);
    }
 
-   private void delete(Path path) {
+   private static void delete(Path path) {
       try {
          Files.delete(path);
       } catch (IOException e) {
@@ -1,57 +1,253 @@
 package com.vidal.handyWarup;
 
-import com.vidal.handyWarup.errors.CommandParsingException;
 import com.vidal.handyWarup.errors.HandyWarupException;
-import com.vidal.handyWarup.errors.NoUpdateDescriptorException;
+import com.vidal.handyWarup.errors.ManifestMismatchException;
+import com.vidal.handyWarup.errors.TargetCommitException;
 import com.vidal.handyWarup.errors.TargetDirectoryPermissionException;
-import com.vidal.handyWarup.errors.TemporaryCopyException;
+import com.vidal.handyWarup.errors.UpdateConflictException;
+import com.vidal.handyWarup.errors.UpdateUnzipException;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.AbstractMap.SimpleEntry;
+import java.nio.file.ProviderNotFoundException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Date;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.BiFunction;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.zip.ZipError;
 import java.util.zip.ZipFile;
 
-import static java.nio.file.Files.createTempDirectory;
-
 public class HandyWarup implements BiFunction<File, File, File> {
 
-   private final Map<Pattern, Function<Matcher, Command>> commandFactory;
-   private final FsDeepCopy deepCopy;
-   private final FsDeepRemove deepRemove;
+   static final String BLOBS = ".warup/blobs";
+   private static final String PLAN_OPTION = "--plan";
+
+   private final BatchParser batchParser;
+   private ForkJoinPool pool = ForkJoinPool.commonPool();
+   private boolean ownedPool;
+   private Path trash;
+   private FsDeepCopy deepCopy;
+   private FsDeepRemove deepRemove;
+   private Staging staging = Staging.FULL_COPY;
+   private int targetConcurrency = Runtime.getRuntime().availableProcessors();
+   private ApplyListener listener = ApplyListener.NONE;
+   private Function<File, File> reversePatches;
 
    public HandyWarup() {
-      deepCopy = new FsDeepCopy();
-      deepRemove = new FsDeepRemove();
-      commandFactory = new HashMap<>();
-      commandFactory.put(
-            Pattern.compile("(?:add|replace) --from=/?(.*) --to=/?(.*)"),
-            matcher -> new AddCommand(Paths.get(matcher.group(1)), Paths.get(matcher.group(2))));
-      commandFactory.put(
-            Pattern.compile("rm --from=/?(.*)"),
-            matcher -> new RmCommand(Paths.get(matcher.group(1))));
+      createFileTools();
+      Map<String, Function<BatchParser.Line, Command>> commandFactory = new HashMap<>();
+      commandFactory.put("add", this::addCommand);
+      commandFactory.put("replace", this::addCommand);
+      commandFactory.put("rm", line -> ArchiveCommand.isNested(line.source)
+            ? ArchiveCommand.remove(line.source)
+            : new RmCommand(Paths.get(line.source), deepRemove));
+      commandFactory.put("patch", line -> new PatchCommand(Paths.get(line.source), Paths.get(line.targets.get(0))));
+      batchParser = new BatchParser(commandFactory);
    }
 
    public static void main(String[] args) {
-       if (args.length != 2) {
+       boolean planOnly = args.length > 0 && PLAN_OPTION.equals(args[0]);
+       if (args.length < (planOnly ? 3 : 2)) {
            throw new IllegalArgumentException(
                 "Expecting diff and target paths as arguments"
            );
        }
-       new HandyWarup().apply(new File(args[0]), new File(args[1]));
+       if (planOnly) {
+           plan(new HandyWarup(), Arrays.copyOfRange(args, 1, args.length));
+           return;
+       }
+       ApplySummary summary = new ApplySummary();
+       HandyWarup handyWarup = new HandyWarup()
+             .withListener(flightRecorderListener().map(summary::andThen).orElse(summary));
+       try {
+           applyAll(handyWarup, args);
+       } finally {
+           System.out.println(summary.report());
+       }
+   }
+
+   /**
+    * @return the {@link ApplyListener} that records Flight Recorder events, if the runtime supports them
+    * and the {@code handy-warup-jfr} module is on the class path
+    */
+   private static Optional<ApplyListener> flightRecorderListener() {
+       try {
+           Class.forName("jdk.jfr.Event");
+           return Optional.of((ApplyListener) Class.forName("com.vidal.handyWarup.JfrApplyListener").getConstructor().newInstance());
+       } catch (ReflectiveOperationException | LinkageError e) {
+           return Optional.empty();
+       }
+   }
+
+   /**
+    * Prints the plan of the update for each target, and fails if any of them has conflicts.
+    */
+   private static void plan(HandyWarup handyWarup, String[] args) {
+       boolean conflicts = false;
+       for (int i = 1; i < args.length; i++) {
+           UpdatePlan plan = handyWarup.plan(new File(args[0]), new File(args[i]));
+           System.out.println(plan.report());
+           conflicts |= plan.hasConflicts();
+       }
+       if (conflicts) {
+           throw new UpdateConflictException("Update conflicts with its targets");
+       }
+   }
+
+   private static void applyAll(HandyWarup handyWarup, String[] args) {
+       if (args.length == 2) {
+           handyWarup.apply(new File(args[0]), new File(args[1]));
+       } else {
+           List<File> targets = new ArrayList<>();
+           for (int i = 1; i < args.length; i++) {
+               targets.add(new File(args[i]));
+           }
+           RuntimeException failure = null;
+           for (TargetOutcome outcome : handyWarup.apply(new File(args[0]), targets)) {
+               if (!outcome.succeeded()) {
+                   System.err.println("Could not update " + outcome.target() + ": " + outcome.failure().get().getMessage());
+                   if (failure == null) {
+                       failure = outcome.failure().get();
+                   } else {
+                       failure.addSuppressed(outcome.failure().get());
+                   }
+               }
+           }
+           if (failure != null) {
+               handyWarup.awaitBackgroundRemovals();
+               throw failure;
+           }
+       }
+       handyWarup.awaitBackgroundRemovals();
+   }
+
+   /**
+    * Sets how the target is isolated while the update is applied.
+    *
+    * @param staging staging mode, {@link Staging#FULL_COPY} by default
+    * @return this instance
+    */
+   public HandyWarup withStaging(Staging staging) {
+      this.staging = staging;
+      return this;
+   }
+
+   /**
+    * Sets how many threads execute independent commands, copy and delete files in parallel.
+    * The pool created by a previous call is shut down.
+    *
+    * @param parallelism number of threads, the common fork/join pool parallelism by default
+    * @return this instance
+    */
+   public HandyWarup withParallelism(int parallelism) {
+      if (ownedPool) {
+         pool.shutdown();
+      }
+      this.pool = new ForkJoinPool(parallelism);
+      this.ownedPool = true;
+      createFileTools();
+      return this;
+   }
+
+   /**
+    * Sets how many targets are updated at the same time by {@link #apply(File, Collection)}.
+    *
+    * @param targetConcurrency number of targets, the number of available processors by default
+    * @return this instance
+    */
+   public HandyWarup withTargetConcurrency(int targetConcurrency) {
+      if (targetConcurrency < 1) {
+         throw new IllegalArgumentException("At least one target must be updated at a time");
+      }
+      this.targetConcurrency = targetConcurrency;
+      return this;
+   }
+
+   /**
+    * Makes deletions return immediately: deleted paths are renamed into the specified directory
+    * and purged in the background.
+    *
+    * The trash directory should live on the same file system as the targets,
+    * deletions fall back to regular ones otherwise.
+    *
+    * @param trash existing directory
+    * @return this instance
+    * @see #awaitBackgroundRemovals()
+    */
+   public HandyWarup withTrash(File trash) {
+      this.trash = trash.toPath();
+      createFileTools();
+      return this;
+   }
+
+   /**
+    * Reports phase and command timings, as well as I/O counters, to the specified listener.
+    *
+    * @param listener listener, see {@link ApplyListener#andThen(ApplyListener)} to register several ones
+    * @return this instance
+    * @see ApplySummary
+    */
+   public HandyWarup withListener(ApplyListener listener) {
+      this.listener = listener;
+      createFileTools();
+      return this;
+   }
+
+   /**
+    * Writes, along with each update of a directory, the update that reverts it: applying it rolls the target back
+    * at the cost of an incremental update. The paths the update modifies are captured before each command,
+    * hard linked whenever possible, and compressed in the background while the update is applied.
+    *
+    * Reverse patches are only written for updates applied from start to end: not for packed targets,
+    * nor for interrupted updates that are resumed, which are reported to {@link ApplyListener#reversePatchSkipped(Path)}.
+    * Commands skipped because the manifest of the update shows they were already applied are not reverted.
+    *
+    * A reverse patch is written next to the target, then moved to its file once the update has been committed:
+    * the file is left untouched when the update fails.
+    *
+    * @param reversePatches file the reverse patch is moved to, for each target
+    * @return this instance
+    */
+   public HandyWarup withReversePatches(Function<File, File> reversePatches) {
+      this.reversePatches = reversePatches;
+      return this;
+   }
+
+   /**
+    * Waits until the paths moved to the trash have been purged.
+    */
+   public void awaitBackgroundRemovals() {
+      deepRemove.awaitPurges();
    }
 
    /**
@@ -62,7 +258,7 @@ public class HandyWarup implements BiFunction<File, File, File> {
     */
    public boolean accepts(File file) {
       try(ZipFile zipFile = new ZipFile(file)) {
-         return zipFile.getEntry("batch.warup") != null;
+         return zipFile.getEntry(BatchParser.TEXT_BATCH) != null || zipFile.getEntry(BatchParser.BINARY_BATCH) != null;
       } catch (IOException e) {
          return false;
       }
@@ -74,39 +270,588 @@ public class HandyWarup implements BiFunction<File, File, File> {
     * While not mandatory, calling {@link #accepts(File)} is strongly recommended
     * in order to make sure {@code zippedDiff} is a valid update archive.
     *
+    * When the update has a manifest, commands whose result is already in the target are skipped,
+    * so that an update can be applied again after a partial failure.
+    *
+    * Progress is journaled next to the target: when the same update was interrupted, e.g. by a crash,
+    * it is resumed from where it stopped. Any other interrupted update is {@link #recover(File) recovered} first.
+    *
     * @param zippedDiff update archive to extract and apply
     * @param targetDirectory archive apply target
     * @return {@link File} instance that points to the modified specified installation path
     * @throws HandyWarupException if a problem occurs at any step
+    * @throws com.vidal.handyWarup.errors.ManifestMismatchException if the target does not match the manifest
+    * of the update, before or after it is applied
     */
    @Override
    public File apply(File zippedDiff, File targetDirectory) {
       return applyPatch(zippedDiff, targetDirectory);
    }
 
+   /**
+    * Applies the update read from the specified stream to the specified directory, in a single forward pass:
+    * the update is not stored on disk beforehand, and commands are executed while it is still being received.
+    *
+    * The batch must be the first entry of the update, followed by its manifest, if any, then by the payloads
+    * of the commands in batch order, as the generator writes them. Payloads are spooled to a directory next
+    * to the target as they arrive.
+    *
+    * The update is otherwise applied as by {@link #apply(File, File)}, except that an interrupted streamed update
+    * is never resumed, only rolled back, and that {@link Staging#AUTO} falls back to {@link Staging#FULL_COPY}:
+    * the update cannot be planned before it has been received.
+    *
+    * @param zippedDiff update archive to apply, which is read up to its last entry but not closed
+    * @param targetDirectory archive apply target
+    * @return {@link File} instance that points to the modified specified installation path
+    * @throws com.vidal.handyWarup.errors.NoUpdateDescriptorException if the update does not start with its batch
+    * @throws HandyWarupException if a problem occurs at any step
+    */
+   public File apply(InputStream zippedDiff, File targetDirectory) {
+      assertTarget(targetDirectory);
+      try (Update update = open(zippedDiff, targetDirectory.toPath())) {
+         return applyOpened(update, targetDirectory);
+      }
+   }
+
+   /**
+    * Resolves every command of the specified update against the update archive and the specified directory,
+    * without modifying anything, to find out how much applying it would write and delete, how much each
+    * staging would cost, and which commands would fail.
+    *
+    * Only metadata is read, except for the paths of the manifest of the update, if any, which are hashed to leave out
+    * the commands already applied. An interrupted update of the directory is not taken into account.
+    *
+    * @param zippedDiff update archive to plan
+    * @param targetDirectory archive apply target
+    * @return the plan of the update
+    * @throws HandyWarupException if the update cannot be opened or parsed
+    */
+   public UpdatePlan plan(File zippedDiff, File targetDirectory) {
+      assertTarget(targetDirectory);
+      try (Update update = open(zippedDiff)) {
+         return plan(update, targetDirectory.toPath());
+      }
+   }
+
+   /**
+    * Resolves an update of the specified directory that was interrupted, e.g. by a crash:
+    * completes it if it was being committed, rolls it back otherwise.
+    * Leftovers of interrupted updates are deleted as well.
+    *
+    * @param targetDirectory target of the interrupted update
+    * @return {@code true} if an interrupted update was found
+    * @throws HandyWarupException if the interrupted update cannot be resolved
+    */
+   public boolean recover(File targetDirectory) {
+      Path target = targetDirectory.toPath();
+      return timed(ApplyPhase.RECOVER, target, () -> {
+         Optional<ProgressJournal.State> interrupted = ProgressJournal.read(target);
+         interrupted.ifPresent(state -> recover(target, state));
+         new Leftovers(deepRemove).sweep(target, Collections.emptySet());
+         return interrupted.isPresent();
+      });
+   }
+
+   /**
+    * Applies the specified update to each of the specified directories.
+    *
+    * The update is opened and its batch parsed once, then applied to several targets at a time
+    * (see {@link #withTargetConcurrency(int)}). Each target is updated as by {@link #apply(File, File)}:
+    * a failure only affects the target it occurs on.
+    *
+    * @param zippedDiff update archive to apply
+    * @param targetDirectories archive apply targets
+    * @return outcome of the update of each target, in the order of the targets
+    * @throws HandyWarupException if the update cannot be opened or parsed
+    */
+   public List<TargetOutcome> apply(File zippedDiff, Collection<File> targetDirectories) {
+      ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(targetConcurrency, targetDirectories.size())));
+      try (Update update = open(zippedDiff)) {
+         List<CompletableFuture<TargetOutcome>> outcomes = new ArrayList<>(targetDirectories.size());
+         for (File targetDirectory : targetDirectories) {
+            outcomes.add(CompletableFuture.supplyAsync(() -> applyTo(update, targetDirectory), executor));
+         }
+         List<TargetOutcome> result = new ArrayList<>(outcomes.size());
+         outcomes.forEach(outcome -> result.add(outcome.join()));
+         return result;
+      } finally {
+         executor.shutdown();
+      }
+   }
+
+   /**
+    * Stages the target while the update is opened and parsed, then while the target is checked against the manifest
+    * of the update, if any.
+    *
+    * The update archive is opened first, so that a missing or corrupt archive fails without copying anything.
+    * Staging is stopped as soon as the batch or the manifest turns out to be invalid, and the partial stage deleted.
+    * Updates are planned, hence opened, before the target is staged by {@link Staging#AUTO}; packed targets
+    * are not staged.
+    */
    private File applyPatch(File zippedDiff, File targetDirectory) {
+      if (staging == Staging.AUTO || targetDirectory.isFile()) {
+         try (Update update = open(zippedDiff)) {
+            return applyOpened(update, targetDirectory);
+         }
+      }
+      long start = started(ApplyPhase.OPEN, zippedDiff.toPath());
+      Optional<Application> application;
+      FileSystem patch;
+      try {
+         patch = openPatch(zippedDiff);
+      } catch (RuntimeException e) {
+         ended(ApplyPhase.OPEN, zippedDiff.toPath(), start);
+         throw e;
+      }
+      try {
+         application = prepare(zippedDiff, targetDirectory, Optional.empty());
+      } catch (RuntimeException e) {
+         ended(ApplyPhase.OPEN, zippedDiff.toPath(), start);
+         close(patch, e);
+         throw e;
+      }
+      Update update;
+      try {
+         update = parse(zippedDiff, patch);
+      } catch (RuntimeException e) {
+         application.ifPresent(pending -> pending.discard(e));
+         throw e;
+      } finally {
+         ended(ApplyPhase.OPEN, zippedDiff.toPath(), start);
+      }
+      try (Update opened = update) {
+         if (!application.isPresent()) {
+            return targetDirectory.getAbsoluteFile();
+         }
+         try {
+            return application.get().apply(opened);
+         } catch (RuntimeException e) {
+            application.get().discard(e);
+            throw e;
+         }
+      }
+   }
+
+   private TargetOutcome applyTo(Update update, File targetDirectory) {
+      try {
+         return TargetOutcome.updated(targetDirectory, applyOpened(update, targetDirectory));
+      } catch (RuntimeException e) {
+         return TargetOutcome.failed(targetDirectory, e);
+      }
+   }
+
+   private File applyOpened(Update update, File targetDirectory) {
+      if (targetDirectory.isFile()) {
+         return applyPacked(update, targetDirectory);
+      }
+      Optional<Application> application = prepare(update.file, targetDirectory, Optional.of(update));
+      if (!application.isPresent()) {
+         return targetDirectory.getAbsoluteFile();
+      }
+      try {
+         return application.get().apply(update);
+      } catch (RuntimeException e) {
+         application.get().discard(e);
+         throw e;
+      }
+   }
+
+   /**
+    * Applies an update to a packed archive, which is rebuilt next to itself then atomically moved over it,
+    * with the permissions and owner of the original archive.
+    * The staging and the progress journal do not apply: the archive is only replaced once the update succeeded.
+    */
+   private File applyPacked(Update update, File packedTarget) {
+      assertTarget(packedTarget);
+      Path target = packedTarget.toPath();
+      if (reversePatches != null) {
+         listener.reversePatchSkipped(target);
+      }
+      timed(ApplyPhase.RECOVER, target, () -> new Leftovers(deepRemove).sweep(target, update.temporaryFiles()));
+      List<BatchParser.Line> lines = update.lines;
+      if (update.manifest.isPresent()) {
+         Manifest expected = update.manifest.get();
+         List<Command> commands = batchParser.commands(update.lines);
+         Set<Command> pending = Collections.newSetFromMap(new IdentityHashMap<>());
+         pending.addAll(timed(ApplyPhase.CHECK, target, () -> expected.pending(commands, hashPacked(target, expected.paths()))));
+         lines = new ArrayList<>(pending.size());
+         for (int i = 0; i < commands.size(); i++) {
+            if (pending.contains(commands.get(i))) {
+               lines.add(update.lines.get(i));
+            }
+         }
+      }
+      update.receive(pool);
+      List<BatchParser.Line> executed = lines;
+      Path rebuilt;
+      try (PackedTarget packed = new PackedTarget(update.root, target, deepRemove)) {
+         rebuilt = timed(ApplyPhase.EXECUTE, target, () -> packed.rebuild(executed));
+      }
+      try {
+         update.manifest.ifPresent(expected -> timed(ApplyPhase.VERIFY, target, () ->
+               expected.verify(hashPacked(rebuilt, expected.paths()))));
+         timed(ApplyPhase.COMMIT, target, () -> {
+            try {
+               FileTransfer.copyAttributes(target, rebuilt);
+               try {
+                  Files.move(rebuilt, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+               } catch (AtomicMoveNotSupportedException e) {
+                  Files.move(rebuilt, target, StandardCopyOption.REPLACE_EXISTING);
+               }
+            } catch (IOException e) {
+               throw new TargetCommitException("Could not replace " + target + " with its update", e);
+            }
+         });
+      } catch (RuntimeException e) {
+         timed(ApplyPhase.ROLLBACK, target, () -> {
+            try {
+               Files.deleteIfExists(rebuilt);
+            } catch (IOException cleanup) {
+               e.addSuppressed(cleanup);
+            }
+         });
+         throw e;
+      }
+      return packedTarget.getAbsoluteFile();
+   }
+
+   /**
+    * @return image of each manifest path in the specified packed archive
+    */
+   private Map<String, String> hashPacked(Path archive, Collection<String> paths) {
+      try (FileSystem packed = FileSystems.newFileSystem(archive, (ClassLoader) null)) {
+         return new TargetHasher(pool).apply(packed.getPath("/"), paths);
+      } catch (IOException e) {
+         throw new ManifestMismatchException("Could not hash archive " + archive, e);
+      }
+   }
+
+   /**
+    * Resolves the update interrupted on the target, if any, then starts staging the target.
+    *
+    * @param opened the update, if it is already opened: required to {@link Staging#AUTO choose} the staging
+    * @return nothing if the target was already updated, by the same update interrupted while it was being committed
+    * @throws UpdateConflictException if the staging is chosen automatically and the update conflicts with the target
+    */
+   private Optional<Application> prepare(File zippedDiff, File targetDirectory, Optional<Update> opened) {
       assertTarget(targetDirectory);
+      Set<Path> temporaryFiles = opened.map(Update::temporaryFiles).orElse(Collections.<Path>emptySet());
+      Path target = targetDirectory.toPath();
+      long start = started(ApplyPhase.RECOVER, target);
+      Optional<ProgressJournal.State> resumed;
+      try {
+         Optional<ProgressJournal.State> interrupted = ProgressJournal.read(target);
+         if (interrupted.isPresent() && interrupted.get().committing) {
+            recover(target, interrupted.get());
+            if (interrupted.get().isOf(zippedDiff)) {
+               new Leftovers(deepRemove).sweep(target, temporaryFiles);
+               return Optional.empty();
+            }
+            interrupted = Optional.empty();
+         }
+         resumed = interrupted.filter(state -> state.isOf(zippedDiff) && Files.exists(state.stage));
+         if (interrupted.isPresent() && !resumed.isPresent()) {
+            recover(target, interrupted.get());
+         }
+         Set<Path> kept = new HashSet<>(temporaryFiles);
+         resumed.ifPresent(state -> kept.add(state.stage));
+         new Leftovers(deepRemove).sweep(target, kept);
+      } finally {
+         ended(ApplyPhase.RECOVER, target, start);
+      }
+      Staging chosen = staging;
+      if (staging == Staging.AUTO && opened.get().stream != null) {
+         // a streamed update cannot be planned before it has been received
+         chosen = Staging.FULL_COPY;
+      } else if (staging == Staging.AUTO && !resumed.isPresent()) {
+         UpdatePlan plan = plan(opened.get(), target);
+         if (plan.hasConflicts()) {
+            throw new UpdateConflictException("Update conflicts with " + target + ": " + String.join(", ", plan.conflicts()));
+         }
+         chosen = plan.staging();
+      }
+      return Optional.of(new Application(target, resumed, chosen));
+   }
+
+   private UpdatePlan plan(Update update, Path target) {
+      return timed(ApplyPhase.PLAN, target, () -> {
+         UpdatePlan plan = new UpdatePlan(target.toAbsolutePath());
+         Map<Integer, BatchParser.Line> lines = new LinkedHashMap<>();
+         for (int i = 0; i < update.lines.size(); i++) {
+            lines.put(i, update.lines.get(i));
+         }
+         if (update.manifest.isPresent()) {
+            Manifest expected = update.manifest.get();
+            List<Command> commands = batchParser.commands(update.lines);
+            try {
+               Set<Command> pending = Collections.newSetFromMap(new IdentityHashMap<>());
+               pending.addAll(expected.pending(commands, new TargetHasher(pool).apply(target, expected.paths())));
+               for (int i = 0; i < commands.size(); i++) {
+                  if (!pending.contains(commands.get(i))) {
+                     lines.remove(i);
+                  }
+               }
+               plan.skippedCommands = commands.size() - lines.size();
+            } catch (ManifestMismatchException e) {
+               plan.conflict(-1, e.getMessage());
+            }
+         }
+         return new Planner(update.root, target).plan(lines, plan);
+      });
+   }
 
-      Path targetPath = targetDirectory.toPath();
-      Path appliedDirectory = copyTarget(targetPath);
-      Path unzipped = new UnzipToTempDirectory().apply(zippedDiff);
-
-      File batchFile = Arrays.asList(unzipped.toFile().listFiles()).stream()
-            .filter(file -> file.getName().equals("batch.warup"))
-            .findFirst()
-            .orElseThrow(() -> new NoUpdateDescriptorException("could not find patch file"));
-
-      try (BufferedReader reader = new BufferedReader(new FileReader(batchFile))) {
-         reader.lines()
-            .map(this::parseCommandLine)
-            .forEach(command -> command.accept(unzipped, appliedDirectory));
-      } catch (FileNotFoundException e) {
-         throw new NoUpdateDescriptorException(e);
+   private Update open(File zippedDiff) {
+      return timed(ApplyPhase.OPEN, zippedDiff.toPath(), () -> openUpdate(zippedDiff));
+   }
+
+   private Update openUpdate(File zippedDiff) {
+      return parse(zippedDiff, openPatch(zippedDiff));
+   }
+
+   /**
+    * Parses the batch and reads the manifest of an update archive, which is closed if they are invalid.
+    */
+   private Update parse(File zippedDiff, FileSystem patch) {
+      try {
+         Path patchRoot = patch.getPath("/");
+         List<BatchParser.Line> lines = BatchParser.lines(zippedDiff, patchRoot);
+         return new Update(zippedDiff, patch, lines, mergeArchiveCommands(batchParser.commands(lines)), Manifest.read(patchRoot));
+      } catch (RuntimeException e) {
+         close(patch, e);
+         throw e;
+      }
+   }
+
+   private static void close(FileSystem patch, RuntimeException cause) {
+      try {
+         patch.close();
       } catch (IOException e) {
-         throw new HandyWarupException(e);
+         cause.addSuppressed(e);
+      }
+   }
+
+   private Update open(InputStream zippedDiff, Path target) {
+      return timed(ApplyPhase.OPEN, target, () -> {
+         UpdateStream stream = UpdateStream.open(zippedDiff, target, deepRemove);
+         try {
+            List<BatchParser.Line> lines = stream.lines();
+            List<Command> parsed = batchParser.commands(lines);
+            List<Command> commands = new ArrayList<>(parsed.size());
+            for (int i = 0; i < parsed.size(); i++) {
+               Command command = mergeArchiveCommand(commands, parsed.get(i));
+               payload(lines.get(i)).ifPresent(payload -> stream.expect(command, payload));
+            }
+            return new Update(stream, lines, commands);
+         } catch (RuntimeException e) {
+            try {
+               stream.close();
+            } catch (RuntimeException closing) {
+               e.addSuppressed(closing);
+            }
+            throw e;
+         }
+      });
+   }
+
+   /**
+    * @return the file or directory of the update that the command of the specified line reads, if any
+    */
+   private static Optional<String> payload(BatchParser.Line line) {
+      if (line.blob != null) {
+         return Optional.of(BLOBS + "/" + line.blob);
+      }
+      return "rm".equals(line.verb) ? Optional.empty() : Optional.of(line.source);
+   }
+
+   static FileSystem openPatch(File zippedDiff) {
+      try {
+         return FileSystems.newFileSystem(zippedDiff.toPath(), (ClassLoader) null);
+      } catch (IOException | ProviderNotFoundException | FileSystemNotFoundException e) {
+         throw new UpdateUnzipException("could not find diff file", e);
+      } catch (ZipError e) {
+         // thrown by the zip file system of Java 8 for files that are not valid archives
+         throw new UpdateUnzipException("could not read diff file", e);
+      }
+   }
+
+   private Command addCommand(BatchParser.Line line) {
+      if (line.blob != null) {
+         List<Path> targets = new ArrayList<>(line.targets.size());
+         line.targets.forEach(target -> targets.add(Paths.get(target)));
+         return new AddCommand(Paths.get(BLOBS, line.blob), targets, deepCopy);
+      }
+      String target = line.targets.get(0);
+      return ArchiveCommand.isNested(target)
+            ? ArchiveCommand.put(Paths.get(line.source), target)
+            : new AddCommand(Paths.get(line.source), Paths.get(target), deepCopy);
+   }
+
+   /**
+    * Merges consecutive commands on the same nested archive, so that it is rebuilt only once.
+    */
+   private static List<Command> mergeArchiveCommands(List<Command> commands) {
+      List<Command> result = new ArrayList<>(commands.size());
+      commands.forEach(command -> mergeArchiveCommand(result, command));
+      return result;
+   }
+
+   /**
+    * Appends a command to merged ones, unless it can be merged into the last of them.
+    *
+    * @return the command that executes the specified one
+    */
+   private static Command mergeArchiveCommand(List<Command> merged, Command command) {
+      Command previous = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+      if (command instanceof ArchiveCommand
+            && previous instanceof ArchiveCommand
+            && ((ArchiveCommand) previous).merge((ArchiveCommand) command)) {
+         return previous;
+      }
+      merged.add(command);
+      return command;
+   }
+
+   /**
+    * @param staging staging of the update, other than {@link Staging#AUTO}
+    */
+   Stage stage(Path targetPath, Staging staging) {
+      return stage(targetPath, staging, () -> false);
+   }
+
+   /**
+    * @param stopped whether to stop copying the target, e.g. because the update turned out to be invalid
+    */
+   private Stage stage(Path targetPath, Staging staging, BooleanSupplier stopped) {
+      switch (staging) {
+         case TOUCHED_PATHS:
+            return new JournalStage(targetPath, deepCopy, deepRemove);
+         case HARD_LINKS:
+            return new CopyStage(targetPath, FsDeepCopy.linking(pool).listenedBy(listener).stoppedBy(stopped), deepCopy, deepRemove);
+         default:
+            return new CopyStage(targetPath, deepCopy.stoppedBy(stopped), deepCopy, deepRemove);
+      }
+   }
+
+   private Stage resume(Path target, ProgressJournal.State state) {
+      return state.staging == Staging.TOUCHED_PATHS
+            ? JournalStage.resume(target, state.stage, deepCopy, deepRemove)
+            : CopyStage.resume(target, state.stage, deepCopy, deepRemove);
+   }
+
+   /**
+    * Completes or rolls back an interrupted update, then forgets about it.
+    */
+   private void recover(Path target, ProgressJournal.State state) {
+      if (state.stage != null && Files.exists(state.stage)) {
+         Stage stage = resume(target, state);
+         if (state.committing) {
+            stage.commit();
+         } else {
+            stage.rollback();
+         }
+      }
+      state.delete();
+   }
+
+   /**
+    * Prepares the replay of a command of a resumed update, which may have been interrupted or even completed:
+    * commands of the last group of progress not synced to the journal are executed again.
+    *
+    * Deltas only apply to the file they were computed from, and archives are rebuilt from their current entries,
+    * so patch and archive commands are skipped when their result is already there.
+    *
+    * @return {@code false} if the command must not be executed again
+    */
+   private boolean replayable(Command command, Path sourceRoot, Path root) {
+      if (command instanceof PatchCommand) {
+         return !((PatchCommand) command).isApplied(sourceRoot, root);
+      }
+      if (command instanceof ArchiveCommand) {
+         return !((ArchiveCommand) command).isApplied(sourceRoot, root);
+      }
+      if (command instanceof RmCommand) {
+         return command.targets().stream().anyMatch(target -> Files.exists(root.resolve(target), LinkOption.NOFOLLOW_LINKS));
       }
+      if (command instanceof AddCommand) {
+         // directories cannot be copied over partially copied ones
+         command.targets().stream()
+               .map(root::resolve)
+               .filter(target -> Files.isDirectory(target, LinkOption.NOFOLLOW_LINKS))
+               .forEach(deepRemove);
+      }
+      return true;
+   }
+
+   private void createFileTools() {
+      deepCopy = new FsDeepCopy(pool).listenedBy(listener);
+      deepRemove = new FsDeepRemove(pool, trash, listener);
+   }
+
+   private long started(ApplyPhase phase, Path subject) {
+      listener.phaseStarted(subject, phase);
+      return System.nanoTime();
+   }
 
-      return move(appliedDirectory, targetPath);
+   private void ended(ApplyPhase phase, Path subject, long start) {
+      listener.phaseEnded(subject, phase, System.nanoTime() - start);
+   }
+
+   private <T> T timed(ApplyPhase phase, Path subject, Supplier<T> action) {
+      long start = started(phase, subject);
+      try {
+         return action.get();
+      } finally {
+         ended(phase, subject, start);
+      }
+   }
+
+   private void timed(ApplyPhase phase, Path subject, Runnable action) {
+      long start = started(phase, subject);
+      try {
+         action.run();
+      } finally {
+         ended(phase, subject, start);
+      }
+   }
+
+   private static Stage await(CompletableFuture<Stage> pendingStage) {
+      try {
+         return pendingStage.join();
+      } catch (CompletionException e) {
+         if (e.getCause() instanceof RuntimeException) {
+            throw (RuntimeException) e.getCause();
+         }
+         throw e;
+      }
+   }
+
+   /**
+    * Rolls back a stage that is no longer needed, once it is ready.
+    */
+   private static void discard(CompletableFuture<Stage> pendingStage, RuntimeException cause) {
+      try {
+         await(pendingStage).rollback();
+      } catch (CancellationException e) {
+         // the stage was stopped, and its partial copy deleted
+      } catch (RuntimeException e) {
+         cause.addSuppressed(e);
+      }
+   }
+
+   private static void close(ReversePatch reverse, RuntimeException cause) {
+      try {
+         reverse.close();
+      } catch (RuntimeException e) {
+         cause.addSuppressed(e);
+      }
+   }
+
+   private static void rollback(Stage stage, RuntimeException cause) {
+      try {
+         stage.rollback();
+      } catch (RuntimeException e) {
+         cause.addSuppressed(e);
+      }
    }
 
    private void assertTarget(File targetDirectory) {
@@ -118,35 +863,209 @@ public class HandyWarup implements BiFunction<File, File, File> {
       }
    }
 
-   private Path copyTarget(Path targetDirectory) {
-      try {
-         Path tempDirectory = createTempDirectory("handy-warup-" + new Date().getTime());
-         deepCopy.accept(targetDirectory, tempDirectory);
-         return tempDirectory;
-      } catch (IOException e) {
-         throw new TemporaryCopyException(e.getMessage(), e);
-      }
-   }
-
-   private Command parseCommandLine(String line) {
-      return commandFactory.entrySet()
-            .stream()
-            .map(entry -> {
-               Matcher matcher = entry.getKey().matcher(line);
-               return new SimpleEntry<Boolean, Supplier<Command>>(
-                     matcher.matches(), // matches is called here, so subsequent group() calls will work
-                     () -> entry.getValue().apply(matcher));
-            })
-            .filter(Map.Entry::getKey)
-            .map(entry -> entry.getValue().get())
-            .findFirst()
-            .orElseThrow(() -> new CommandParsingException("Line could not be parsed: " + line));
-   }
-
-   private File move(Path appliedDirectory, Path targetDirectory) {
-      deepRemove.accept(targetDirectory);
-      deepCopy.accept(appliedDirectory, targetDirectory);
-      deepRemove.accept(appliedDirectory);
-      return targetDirectory.toFile();
+   /**
+    * Update of a single target, whose stage is prepared while the update is opened and parsed,
+    * then while the target is checked against the manifest of the update.
+    *
+    * When the update is resumed, its stage is reused: commands known to be done are skipped,
+    * and the ones that may have been interrupted are executed again.
+    */
+   private class Application {
+
+      private final Path target;
+      private final Optional<ProgressJournal.State> resumed;
+      private final Staging chosenStaging;
+      private final CompletableFuture<Stage> pendingStage;
+      private final AtomicBoolean stopped = new AtomicBoolean();
+      private boolean staged;
+
+      Application(Path target, Optional<ProgressJournal.State> resumed, Staging chosenStaging) {
+         this.target = target;
+         this.resumed = resumed;
+         this.chosenStaging = chosenStaging;
+         this.pendingStage = resumed.isPresent()
+               ? CompletableFuture.completedFuture(timed(ApplyPhase.STAGE, target, () -> resume(target, resumed.get())))
+               : CompletableFuture.supplyAsync(() -> timed(ApplyPhase.STAGE, target, () -> stage(target, chosenStaging, stopped::get)), pool);
+      }
+
+      /**
+       * Checks the target against the manifest of the update, if any, while it is staged.
+       * Then executes the commands once the stage is ready, and checks the result against the manifest before committing it.
+       */
+      File apply(Update update) {
+         List<Command> parsed = update.commands;
+         Optional<Manifest> manifest = update.manifest;
+         List<Command> commands = resumed.isPresent()
+               ? parsed.subList(Math.min(resumed.get().done, parsed.size()), parsed.size())
+               : manifest
+                  .map(expected -> timed(ApplyPhase.CHECK, target, () ->
+                        expected.pending(parsed, new TargetHasher(pool).apply(target, expected.paths()))))
+                  .orElse(parsed);
+         Stage stage = await(pendingStage);
+         staged = true;
+         ProgressJournal progress = null;
+         ReversePatch reverse = null;
+         try {
+            if (reversePatches != null) {
+               if (resumed.isPresent()) {
+                  listener.reversePatchSkipped(target);
+               } else {
+                  reverse = new ReversePatch(target, FsDeepCopy.linking(pool), deepRemove);
+               }
+            }
+            if (resumed.isPresent()) {
+               // the journal bounds the replay: commands it records as done are never executed again. The manifest
+               // only narrows the replayed group down to commands whose paths do not all have their post-image yet,
+               // and a file left half-written by an interrupted command cannot have its post-image
+               List<Command> window = commands;
+               commands = manifest
+                     .map(expected -> timed(ApplyPhase.CHECK, target, () ->
+                           expected.unapplied(window, new TargetHasher(pool).apply(stage.root(), expected.paths()))))
+                     .orElse(window);
+               progress = ProgressJournal.resume(resumed.get());
+            } else {
+               progress = ProgressJournal.create(target, update.file, chosenStaging, stage.workspace());
+            }
+            progress.track(parsed, commands);
+            ProgressJournal journal = progress;
+            ReversePatch capturing = reverse;
+            List<Command> pending = commands;
+            timed(ApplyPhase.EXECUTE, target, () -> update.execute(pending, pool, command -> {
+               long start = System.nanoTime();
+               if (capturing != null) {
+                  capturing.record(command, stage.root());
+               }
+               stage.beforeCommand(command);
+               if (!resumed.isPresent() || replayable(command, update.root, stage.root())) {
+                  command.accept(update.root, stage.root());
+               }
+               journal.completed(command);
+               listener.commandExecuted(target, command, System.nanoTime() - start);
+            }));
+            manifest.ifPresent(expected -> timed(ApplyPhase.VERIFY, target, () ->
+                  expected.verify(new TargetHasher(pool).apply(stage.root(), expected.paths()))));
+            if (capturing != null) {
+               timed(ApplyPhase.REVERSE, target, () -> capturing.write(stage.root()));
+            }
+         } catch (RuntimeException e) {
+            if (reverse != null) {
+               close(reverse, e);
+            }
+            timed(ApplyPhase.ROLLBACK, target, () -> rollback(stage, e));
+            if (progress != null) {
+               progress.delete();
+            } else {
+               resumed.ifPresent(ProgressJournal.State::delete);
+            }
+            throw e;
+         }
+
+         ProgressJournal committing = progress;
+         ReversePatch written = reverse;
+         try {
+            return timed(ApplyPhase.COMMIT, target, () -> {
+               committing.committing();
+               Path committed = stage.commit();
+               committing.delete();
+               if (written != null) {
+                  written.moveTo(reversePatches.apply(target.toFile()));
+               }
+               return committed.toFile();
+            });
+         } finally {
+            if (reverse != null) {
+               reverse.close();
+            }
+         }
+      }
+
+      /**
+       * Rolls back the stage if the update failed before it was ready.
+       */
+      void discard(RuntimeException cause) {
+         if (!staged) {
+            stopped.set(true);
+            HandyWarup.discard(pendingStage, cause);
+            resumed.ifPresent(ProgressJournal.State::delete);
+         }
+      }
+   }
+
+   /**
+    * Opened update archive, along with its parsed batch. Shared by the targets it is applied to,
+    * unless it is streamed.
+    */
+   private static class Update implements AutoCloseable {
+
+      /**
+       * Update archive, {@code null} if the update is streamed.
+       */
+      private final File file;
+      private final FileSystem patch;
+      private final UpdateStream stream;
+      private final Path root;
+      private final List<BatchParser.Line> lines;
+      private final List<Command> commands;
+      private final Optional<Manifest> manifest;
+
+      Update(File file, FileSystem patch, List<BatchParser.Line> lines, List<Command> commands, Optional<Manifest> manifest) {
+         this.file = file;
+         this.patch = patch;
+         this.stream = null;
+         this.root = patch.getPath("/");
+         this.lines = lines;
+         this.commands = commands;
+         this.manifest = manifest;
+      }
+
+      Update(UpdateStream stream, List<BatchParser.Line> lines, List<Command> commands) {
+         this.file = null;
+         this.patch = null;
+         this.stream = stream;
+         this.root = stream.root();
+         this.lines = lines;
+         this.commands = commands;
+         this.manifest = stream.manifest();
+      }
+
+      /**
+       * @return files of the update that are kept next to its target, which must not be swept as leftovers
+       */
+      Set<Path> temporaryFiles() {
+         return stream == null ? Collections.emptySet() : Collections.singleton(stream.root());
+      }
+
+      /**
+       * Receives every payload of the update, if it is streamed.
+       */
+      void receive(ForkJoinPool pool) {
+         if (stream != null) {
+            stream.execute(commands, command -> { }, pool);
+         }
+      }
+
+      /**
+       * Executes the specified commands, once their payload has been received if the update is streamed.
+       */
+      void execute(List<Command> commands, ForkJoinPool pool, Consumer<Command> action) {
+         if (stream == null) {
+            new BatchExecutor(pool).execute(commands, action);
+         } else {
+            stream.execute(commands, action, pool);
+         }
+      }
+
+      @Override
+      public void close() {
+         if (stream != null) {
+            stream.close();
+            return;
+         }
+         try {
+            patch.close();
+         } catch (IOException e) {
+            throw new HandyWarupException(e);
+         }
+      }
    }
 }
@@ -0,0 +1,52 @@
+package com.vidal.handyWarup;
+
+import java.nio.file.Path;
+
+class JournalStage implements Stage {
+
+   private final Path target;
+   private final UndoJournal journal;
+
+   public JournalStage(Path target, FsDeepCopy deepCopy, FsDeepRemove deepRemove) {
+      this(target, new UndoJournal(target, deepCopy, deepRemove));
+   }
+
+   private JournalStage(Path target, UndoJournal journal) {
+      this.target = target;
+      this.journal = journal;
+   }
+
+   /**
+    * Resumes the stage of an interrupted update from its undo journal.
+    */
+   public static JournalStage resume(Path target, Path journal, FsDeepCopy deepCopy, FsDeepRemove deepRemove) {
+      return new JournalStage(target, UndoJournal.reopen(target, journal, deepCopy, deepRemove));
+   }
+
+   @Override
+   public Path root() {
+      return target;
+   }
+
+   @Override
+   public Path workspace() {
+      return journal.directory();
+   }
+
+   @Override
+   public void beforeCommand(Command command) {
+      command.targets().forEach(journal::record);
+   }
+
+   @Override
+   public Path commit() {
+      journal.discard();
+      return target;
+   }
+
+   @Override
+   public void rollback() {
+      journal.rollback();
+      journal.discard();
+   }
+}
@@ -0,0 +1,55 @@
+package com.vidal.handyWarup;
+
+import com.vidal.handyWarup.errors.PathDeletionException;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+
+/**
+ * Deletes what earlier updates of a target left behind when they were interrupted: staged copies, undo journals,
+ * replaced targets and work directories next to the target, named after it.
+ *
+ * Nothing else is swept: directories of the default temporary directory may belong to other processes or installs.
+ * A target must not be updated by several processes at once: their leftovers could not be told apart.
+ */
+class Leftovers {
+
+   private final FsDeepRemove deepRemove;
+
+   public Leftovers(FsDeepRemove deepRemove) {
+      this.deepRemove = deepRemove;
+   }
+
+   /**
+    * @param target updated target
+    * @param kept leftovers to keep, as they belong to the update being applied or resumed
+    */
+   public void sweep(Path target, Collection<Path> kept) {
+      Path absolute = target.toAbsolutePath();
+      Path parent = absolute.getParent();
+      if (parent == null) {
+         return;
+      }
+      Path progress = ProgressJournal.location(absolute);
+      try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(parent, "." + absolute.getFileName() + ".handy-warup-*")) {
+         for (Path leftover : leftovers) {
+            if (!leftover.equals(progress) && !kept.contains(leftover)) {
+               remove(leftover);
+            }
+         }
+      } catch (IOException e) {
+         // best effort: leftovers are collected again on the next update
+      }
+   }
+
+   private void remove(Path leftover) {
+      try {
+         deepRemove.accept(leftover);
+      } catch (PathDeletionException e) {
+         // best effort: the leftover may belong to another user
+      }
+   }
+}
@@ -0,0 +1,224 @@
+package com.vidal.handyWarup;
+
+import com.vidal.handyWarup.errors.ManifestMismatchException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Expected state of the target paths touched by an update, before and after it is applied.
+ *
+ * The manifest ({@code manifest.warup}) has one line per path: {@code <pre-image> <post-image> <path>}.
+ * Paths are relative to the target root and '/'-separated, entries of nested archives are designated
+ * as {@code archive!/entry}. Images are one of:
+ * <ul>
+ *    <li>the hex encoded SHA-256 of a file content</li>
+ *    <li>{@value #ABSENT} for a missing path</li>
+ *    <li>{@value #DIRECTORY} for a directory</li>
+ *    <li>{@value #UNCHECKED} when the state of the path is not known</li>
+ * </ul>
+ */
+class Manifest {
+
+   static final String FILE_NAME = "manifest.warup";
+   static final String ABSENT = "-";
+   static final String DIRECTORY = "/";
+   static final String UNCHECKED = "*";
+
+   private static final int MAX_REPORTED_PATHS = 10;
+
+   private final SortedMap<String, Images> images;
+
+   private Manifest(SortedMap<String, Images> images) {
+      this.images = images;
+   }
+
+   /**
+    * @return the manifest of the specified update, if it has one
+    */
+   public static Optional<Manifest> read(Path patchRoot) {
+      Path manifestFile = patchRoot.resolve(FILE_NAME);
+      if (!Files.isRegularFile(manifestFile)) {
+         return Optional.empty();
+      }
+      SortedMap<String, Images> images = new TreeMap<>();
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(manifestFile), UTF_8))) {
+         String line;
+         while ((line = reader.readLine()) != null) {
+            int first = line.indexOf(' ');
+            int second = first < 0 ? -1 : line.indexOf(' ', first + 1);
+            if (second < 0) {
+               throw new ManifestMismatchException("Manifest line could not be parsed: " + line);
+            }
+            images.put(line.substring(second + 1), new Images(line.substring(0, first), line.substring(first + 1, second)));
+         }
+      } catch (IOException e) {
+         throw new ManifestMismatchException("Could not read " + FILE_NAME, e);
+      }
+      return Optional.of(new Manifest(images));
+   }
+
+   /**
+    * Composes the manifests of successive updates: each path keeps its image before the first update
+    * that touches it, and its image after the last one.
+    *
+    * @param manifests manifests, in the order the updates are applied
+    * @return content of the manifest of the composed update
+    */
+   static String compose(List<Manifest> manifests) {
+      SortedMap<String, Images> composed = new TreeMap<>();
+      for (Manifest manifest : manifests) {
+         manifest.images.forEach((path, images) ->
+               composed.merge(path, images, (first, last) -> new Images(first.pre, last.post)));
+      }
+      StringBuilder result = new StringBuilder();
+      composed.forEach((path, images) -> result.append(images.pre).append(' ').append(images.post).append(' ').append(path).append('\n'));
+      return result.toString();
+   }
+
+   /**
+    * @return every path of the manifest
+    */
+   public Collection<String> paths() {
+      return images.keySet();
+   }
+
+   /**
+    * Leaves out the commands whose paths all have their post-image already,
+    * and makes sure the paths of the other commands have either their pre-image or their post-image.
+    *
+    * @param commands commands to execute
+    * @param current current image of each path of the manifest in the target
+    * @return commands that still need to be executed
+    * @throws ManifestMismatchException if the target is in an unexpected state
+    */
+   public List<Command> pending(List<Command> commands, Map<String, String> current) {
+      List<Command> pending = new ArrayList<>(commands.size());
+      List<String> mismatches = new ArrayList<>();
+      for (Command command : commands) {
+         Map<String, Images> covered = covered(command);
+         if (isApplied(covered, current)) {
+            continue;
+         }
+         covered.forEach((path, images) -> {
+            String image = current.get(path);
+            if (!images.isPre(image) && !images.isPost(image)) {
+               mismatches.add(path);
+            }
+         });
+         pending.add(command);
+      }
+      if (!mismatches.isEmpty()) {
+         throw new ManifestMismatchException("Update does not apply to the target, unexpected content for " + report(mismatches));
+      }
+      return pending;
+   }
+
+   /**
+    * Leaves out the commands whose paths all have their post-image already, whatever the state of the other commands.
+    * A path left partially written by an interrupted command does not have its post-image, so the command is kept.
+    *
+    * @param commands commands to execute
+    * @param current current image of each path of the manifest in the target
+    * @return commands that may not have been executed yet
+    */
+   public List<Command> unapplied(List<Command> commands, Map<String, String> current) {
+      List<Command> unapplied = new ArrayList<>(commands.size());
+      for (Command command : commands) {
+         if (!isApplied(covered(command), current)) {
+            unapplied.add(command);
+         }
+      }
+      return unapplied;
+   }
+
+   /**
+    * @param current image of each path of the manifest in the updated target
+    * @throws ManifestMismatchException if a path does not have its post-image
+    */
+   public void verify(Map<String, String> current) {
+      List<String> mismatches = new ArrayList<>();
+      images.forEach((path, images) -> {
+         if (!images.isPost(current.get(path)) && !UNCHECKED.equals(images.post)) {
+            mismatches.add(path);
+         }
+      });
+      if (!mismatches.isEmpty()) {
+         throw new ManifestMismatchException("Updated target has unexpected content for " + report(mismatches));
+      }
+   }
+
+   /**
+    * @return images of the paths a command touches: its targets, their descendants and their nested archive entries
+    */
+   private Map<String, Images> covered(Command command) {
+      Map<String, Images> covered = new TreeMap<>();
+      for (Path target : command.targets()) {
+         String path = toManifestPath(target);
+         if (path.isEmpty()) {
+            return images;
+         }
+         Images exact = images.get(path);
+         if (exact != null) {
+            covered.put(path, exact);
+         }
+         // '0' follows '/' in code point order
+         covered.putAll(images.subMap(path + "/", path + "0"));
+         covered.putAll(images.subMap(path + "!/", path + "!0"));
+      }
+      return covered;
+   }
+
+   private static boolean isApplied(Map<String, Images> covered, Map<String, String> current) {
+      return !covered.isEmpty() && covered.entrySet().stream().allMatch(entry -> entry.getValue().isPost(current.get(entry.getKey())));
+   }
+
+   private static String toManifestPath(Path relative) {
+      StringBuilder result = new StringBuilder();
+      for (Path name : relative.normalize()) {
+         if (name.toString().isEmpty()) {
+            continue;
+         }
+         if (result.length() > 0) {
+            result.append('/');
+         }
+         result.append(name);
+      }
+      return result.toString();
+   }
+
+   private static String report(List<String> paths) {
+      String reported = String.join(", ", paths.subList(0, Math.min(paths.size(), MAX_REPORTED_PATHS)));
+      return paths.size() > MAX_REPORTED_PATHS ? reported + " and " + (paths.size() - MAX_REPORTED_PATHS) + " more" : reported;
+   }
+
+   private static class Images {
+      private final String pre;
+      private final String post;
+
+      Images(String pre, String post) {
+         this.pre = pre;
+         this.post = post;
+      }
+
+      boolean isPre(String image) {
+         return UNCHECKED.equals(pre) || pre.equals(image);
+      }
+
+      boolean isPost(String image) {
+         return !UNCHECKED.equals(post) && post.equals(image);
+      }
+   }
+}
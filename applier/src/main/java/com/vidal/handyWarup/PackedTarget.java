@@ -0,0 +1,242 @@
+package com.vidal.handyWarup;
+
+import com.vidal.handyWarup.errors.ArchiveUpdateException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Applies the batch of an update to a packed archive (typically a WAR) instead of an exploded directory.
+ *
+ * Commands are first folded into the entries to write and the paths to remove, then the archive is rebuilt
+ * next to itself in a single sequential write: entries that are not modified are copied from the old archive
+ * without being decompressed, replaced entries keep their position and added entries are appended.
+ * Only the entries that are patched, or that are archives with modified entries, are extracted to a work directory.
+ */
+class PackedTarget implements AutoCloseable {
+
+   private final Path sourceRoot;
+   private final Path archive;
+   private final Path work;
+   private final FsDeepRemove deepRemove;
+   private final DeltaDecoder decoder = new DeltaDecoder();
+   /**
+    * Content of each entry to write, by name. Directory entries end with '/'.
+    */
+   private final Map<String, Path> written = new LinkedHashMap<>();
+   /**
+    * Removed paths, without trailing '/': their entries and the entries beneath them are not copied.
+    */
+   private final Set<String> removed = new HashSet<>();
+   private final Map<String, RawZipFile.Entry> entries = new HashMap<>();
+   private RawZipFile source;
+   private ArchiveCommand nested;
+
+   /**
+    * @param sourceRoot root of the update
+    * @param archive archive to update
+    * @param deepRemove deletes the work directory
+    */
+   public PackedTarget(Path sourceRoot, Path archive, FsDeepRemove deepRemove) {
+      this.sourceRoot = sourceRoot;
+      this.archive = archive;
+      this.deepRemove = deepRemove;
+      Path absolute = archive.toAbsolutePath();
+      try {
+         this.work = Files.createTempDirectory(absolute.getParent(), "." + absolute.getFileName() + ".handy-warup-work-");
+      } catch (IOException e) {
+         throw new ArchiveUpdateException("Could not create work directory for " + archive, e);
+      }
+   }
+
+   /**
+    * @param lines lines of the batch to execute, in batch order
+    * @return the rebuilt archive, next to the updated one, which is left untouched
+    */
+   public Path rebuild(Collection<BatchParser.Line> lines) {
+      Path rebuilt = archive.resolveSibling("." + archive.getFileName() + ".handy-warup-archive");
+      try {
+         source = new RawZipFile(archive);
+         source.entries().forEach(entry -> entries.put(entry.name(), entry));
+         for (BatchParser.Line line : lines) {
+            fold(line);
+         }
+         flushNested();
+         try (RawZipWriter out = new RawZipWriter(rebuilt)) {
+            Map<String, Path> pending = new LinkedHashMap<>(written);
+            for (RawZipFile.Entry entry : source.entries()) {
+               if (pending.containsKey(entry.name())) {
+                  write(out, entry.name(), pending.remove(entry.name()));
+               } else if (!isRemoved(entry.name())) {
+                  out.copy(source, entry);
+               }
+            }
+            for (Map.Entry<String, Path> entry : pending.entrySet()) {
+               write(out, entry.getKey(), entry.getValue());
+            }
+         }
+         return rebuilt;
+      } catch (IOException | RuntimeException e) {
+         try {
+            Files.deleteIfExists(rebuilt);
+         } catch (IOException cleanup) {
+            e.addSuppressed(cleanup);
+         }
+         if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+         }
+         throw new ArchiveUpdateException("Could not update archive " + archive, (IOException) e);
+      }
+   }
+
+   /**
+    * Deletes the work directory.
+    */
+   @Override
+   public void close() {
+      try {
+         if (source != null) {
+            source.close();
+         }
+      } catch (IOException e) {
+         throw new ArchiveUpdateException("Could not close archive " + archive, e);
+      } finally {
+         deepRemove.accept(work);
+      }
+   }
+
+   private void fold(BatchParser.Line line) throws IOException {
+      String target = line.targets.isEmpty() ? line.source : line.targets.get(0);
+      if (ArchiveCommand.isNested(target)) {
+         ArchiveCommand command = "rm".equals(line.verb)
+               ? ArchiveCommand.remove(line.source)
+               : ArchiveCommand.put(Paths.get(line.source), target);
+         if (nested == null || !nested.merge(command)) {
+            flushNested();
+            nested = command;
+         }
+         return;
+      }
+      flushNested();
+      switch (line.verb) {
+         case "rm":
+            remove(trimSlash(line.source));
+            break;
+         case "patch":
+            String name = trimSlash(target);
+            Path patched = extract(name);
+            decoder.accept(RelativePaths.resolve(sourceRoot, Paths.get(line.source)), patched);
+            written.put(name, patched);
+            break;
+         default:
+            Path payload = RelativePaths.resolve(sourceRoot,
+                  line.blob != null ? Paths.get(HandyWarup.BLOBS, line.blob) : Paths.get(line.source));
+            for (String added : line.targets) {
+               put(trimSlash(added), payload);
+            }
+            break;
+      }
+   }
+
+   /**
+    * Rebuilds the nested archive modified by the pending merged commands, if any.
+    */
+   private void flushNested() throws IOException {
+      if (nested == null) {
+         return;
+      }
+      String name = nested.targets().iterator().next().toString().replace(work.getFileSystem().getSeparator(), "/");
+      Path extracted = extract(name);
+      nested.accept(sourceRoot, work);
+      written.put(name, extracted);
+      nested = null;
+   }
+
+   private void put(String name, Path payload) throws IOException {
+      if (!Files.isDirectory(payload)) {
+         written.put(name, payload);
+         return;
+      }
+      List<Path> tree;
+      try (Stream<Path> walk = Files.walk(payload)) {
+         tree = walk.collect(Collectors.toList());
+      }
+      for (Path path : tree) {
+         String relative = payload.relativize(path).toString().replace(payload.getFileSystem().getSeparator(), "/");
+         String entryName = relative.isEmpty() ? name : name + "/" + relative;
+         written.put(Files.isDirectory(path) ? entryName + "/" : entryName, path);
+      }
+   }
+
+   private void remove(String name) {
+      written.keySet().removeIf(entryName -> entryName.equals(name) || entryName.startsWith(name + "/"));
+      removed.add(name);
+   }
+
+   private boolean isRemoved(String entryName) {
+      String path = entryName.endsWith("/") ? entryName.substring(0, entryName.length() - 1) : entryName;
+      for (int i = path.length(); i > 0; i = path.lastIndexOf('/', i - 1)) {
+         if (removed.contains(path.substring(0, i))) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Extracts the current content of an entry to the work directory, unless it is already there.
+    *
+    * @return the extracted file, which may be modified
+    */
+   private Path extract(String name) throws IOException {
+      Path extracted = work.resolve(name).normalize();
+      if (!extracted.startsWith(work)) {
+         throw new ArchiveUpdateException("Entry " + name + " is outside of the archive");
+      }
+      Path current = written.get(name);
+      if (extracted.equals(current)) {
+         return extracted;
+      }
+      Files.createDirectories(extracted.getParent());
+      if (current != null) {
+         Files.copy(current, extracted, REPLACE_EXISTING);
+      } else if (entries.containsKey(name) && !isRemoved(name)) {
+         Files.deleteIfExists(extracted);
+         try (InputStream in = source.open(entries.get(name))) {
+            FileTransfer.copy(in, extracted);
+         }
+      } else {
+         throw new ArchiveUpdateException("Could not find entry " + name + " in archive " + archive);
+      }
+      return extracted;
+   }
+
+   private static void write(RawZipWriter out, String name, Path content) throws IOException {
+      if (name.endsWith("/")) {
+         out.write(name, new ByteArrayInputStream(new byte[0]), System.currentTimeMillis());
+         return;
+      }
+      try (InputStream in = Files.newInputStream(content)) {
+         out.write(name, in, Files.getLastModifiedTime(content).toMillis());
+      }
+   }
+
+   private static String trimSlash(String path) {
+      return path.startsWith("/") ? path.substring(1) : path;
+   }
+}
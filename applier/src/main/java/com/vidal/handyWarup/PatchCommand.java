@@ -0,0 +1,45 @@
+package com.vidal.handyWarup;
+
+import java.nio.file.Path;
+import java.util.Collection;
+
+import static java.util.Collections.singletonList;
+
+/**
+ * Applies a binary delta shipped in the update to an existing file of the target.
+ */
+public class PatchCommand implements Command {
+
+   private final Path relativeDelta;
+   private final Path relativeTarget;
+   private final DeltaDecoder decoder;
+
+   public PatchCommand(Path relativeDelta, Path relativeTarget) {
+      this(relativeDelta, relativeTarget, new DeltaDecoder());
+   }
+
+   public PatchCommand(Path relativeDelta, Path relativeTarget, DeltaDecoder decoder) {
+      this.relativeDelta = relativeDelta;
+      this.relativeTarget = relativeTarget;
+      this.decoder = decoder;
+   }
+
+   @Override
+   public void accept(Path sourceRoot, Path targetRoot) {
+      Path delta = RelativePaths.resolve(sourceRoot, relativeDelta);
+      Path target = targetRoot.resolve(relativeTarget);
+      decoder.accept(delta, target);
+   }
+
+   /**
+    * @return {@code true} if the target file already is the result of the delta
+    */
+   public boolean isApplied(Path sourceRoot, Path targetRoot) {
+      return decoder.isApplied(RelativePaths.resolve(sourceRoot, relativeDelta), targetRoot.resolve(relativeTarget));
+   }
+
+   @Override
+   public Collection<Path> targets() {
+      return singletonList(relativeTarget);
+   }
+}
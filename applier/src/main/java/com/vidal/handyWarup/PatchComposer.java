@@ -0,0 +1,482 @@
+package com.vidal.handyWarup;
+
+import com.vidal.handyWarup.errors.HandyWarupException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.Files.createTempDirectory;
+
+/**
+ * Composes successive updates into a single one, equivalent to applying them in sequence.
+ *
+ * Only the net effect of the updates is kept:
+ * <ul>
+ *    <li>commands whose result is overwritten or removed by a later update are left out, along with their payload</li>
+ *    <li>removals of paths that did not exist before the first update are left out</li>
+ *    <li>deltas applied to a file added by an earlier update are folded into the added content</li>
+ * </ul>
+ * Deltas applied to a file of the original target are kept in sequence, since composing them requires
+ * the original content. The composed update has a manifest when every composed update has one.
+ */
+public class PatchComposer {
+
+   private static final String FOLDED = ".warup/folded/";
+
+   public static void main(String[] args) {
+      if (args.length < 3) {
+         throw new IllegalArgumentException(
+               "Expecting the composed update path, followed by the paths of the updates to compose, in order"
+         );
+      }
+      List<File> patches = new ArrayList<>();
+      for (int i = 1; i < args.length; i++) {
+         patches.add(new File(args[i]));
+      }
+      new PatchComposer().compose(patches, new File(args[0]));
+   }
+
+   /**
+    * @param patches updates to compose, in the order they are applied
+    * @param composed composed update to write
+    * @return the composed update
+    * @throws HandyWarupException if an update cannot be read or the composed update cannot be written
+    */
+   public File compose(List<File> patches, File composed) {
+      List<FileSystem> opened = new ArrayList<>();
+      Path work = workDirectory();
+      try {
+         List<Step> steps = new ArrayList<>();
+         List<Manifest> manifests = new ArrayList<>();
+         for (File patch : patches) {
+            FileSystem patchFileSystem = HandyWarup.openPatch(patch);
+            opened.add(patchFileSystem);
+            Path root = patchFileSystem.getPath("/");
+            for (BatchParser.Line line : BatchParser.lines(patch, root)) {
+               steps.add(new Step(opened.size(), root, line));
+            }
+            Manifest.read(root).ifPresent(manifests::add);
+         }
+
+         Index index = new Index(steps);
+         fold(steps, index, work);
+         markOverwritten(steps, index);
+         markVoidRemovals(steps, index);
+         write(steps, manifests.size() == patches.size() ? Optional.of(Manifest.compose(manifests)) : Optional.empty(), composed);
+         return composed;
+      } catch (IOException e) {
+         throw new HandyWarupException("Could not compose updates into " + composed, e);
+      } finally {
+         close(opened);
+         new FsDeepRemove().accept(work);
+      }
+   }
+
+   /**
+    * Turns deltas applied to files added by an earlier command into additions of the patched content.
+    */
+   private static void fold(List<Step> steps, Index index, Path work) throws IOException {
+      for (int j = 0; j < steps.size(); j++) {
+         Step patch = steps.get(j);
+         if (!patch.isPatch()) {
+            continue;
+         }
+         String target = patch.targets.get(0);
+         int k = index.lastRelated(target, j);
+         if (k < 0 || !steps.get(k).isAddition()) {
+            continue;
+         }
+         Step writer = steps.get(k);
+         Optional<Path> added = writer.payloadOf(target);
+         if (!added.isPresent() || !Files.isRegularFile(added.get())) {
+            continue;
+         }
+         Path folded = work.resolve(String.valueOf(j));
+         Files.copy(added.get(), folded);
+         new DeltaDecoder().accept(patch.payloadRoot.resolve(patch.payload), folded);
+         patch.verb = writer.targets.contains(target) ? writer.verb : "replace";
+         patch.update = 0;
+         patch.payloadRoot = work;
+         patch.payload = String.valueOf(j);
+      }
+   }
+
+   /**
+    * Leaves out the targets that a later command overwrites or removes, unless a command in between reads them.
+    * Removals are only left out in favor of later removals, as additions cannot overwrite directories.
+    */
+   private static void markOverwritten(List<Step> steps, Index index) {
+      TreeMap<String, TreeSet<Integer>> readers = new TreeMap<>();
+      for (int i = steps.size() - 1; i >= 0; i--) {
+         Step step = steps.get(i);
+         for (int t = 0; t < step.targets.size(); t++) {
+            String target = step.targets.get(t);
+            int overwrite = index.nextOverwrite(target, i, step.isRemoval());
+            if (overwrite >= 0 && !isRead(readers, target, i, overwrite)) {
+               step.live[t] = false;
+            }
+         }
+         if (step.isLive()) {
+            for (String read : step.reads()) {
+               readers.computeIfAbsent(read, path -> new TreeSet<>()).add(i);
+            }
+         }
+      }
+   }
+
+   /**
+    * Leaves out the removals of paths that do not exist when they are executed in the composed update,
+    * such as paths added, then removed.
+    */
+   private static void markVoidRemovals(List<Step> steps, Index index) {
+      for (int j = 0; j < steps.size(); j++) {
+         Step removal = steps.get(j);
+         if (removal.isRemoval() && removal.isLive() && !existsBefore(steps, index, removal.targets.get(0), j)) {
+            removal.live[0] = false;
+         }
+      }
+   }
+
+   private static boolean existsBefore(List<Step> steps, Index index, String path, int before) {
+      int last = -1;
+      for (String ancestor : ancestors(path)) {
+         for (int i : index.at(ancestor).headSet(before, false).descendingSet()) {
+            if (steps.get(i).isLive(ancestor)) {
+               last = Math.max(last, i);
+               break;
+            }
+         }
+      }
+      if (last >= 0) {
+         Step step = steps.get(last);
+         if (step.isRemoval()) {
+            return false;
+         }
+         // entries of an added archive are assumed to exist, their removal is a no-op otherwise
+         Optional<Path> payload = step.payloadOf(path);
+         return !payload.isPresent() || Files.exists(payload.get());
+      }
+      int first = index.firstRelated(path);
+      return first < 0 || !"add".equals(steps.get(first).verb);
+   }
+
+   private static boolean isRead(TreeMap<String, TreeSet<Integer>> readers, String path, int after, int before) {
+      return Stream.of(
+            readers.subMap(path, true, path, true),
+            // '0' follows '/' in code point order
+            readers.subMap(path + "/", path + "0"),
+            readers.subMap(path + ArchiveCommand.SEPARATOR, path + "!0"))
+            .flatMap(range -> range.values().stream())
+            .anyMatch(indexes -> {
+               Integer reader = indexes.higher(after);
+               return reader != null && reader < before;
+            });
+   }
+
+   /**
+    * @return ancestors of a target path, nearest first; nested archive entries have their archive as ancestor
+    */
+   static List<String> ancestors(String path) {
+      List<String> ancestors = new ArrayList<>();
+      for (int i = path.lastIndexOf('/'); i > 0; i = path.lastIndexOf('/', i - 1)) {
+         String ancestor = path.substring(0, i);
+         ancestors.add(ancestor.endsWith("!") ? ancestor.substring(0, ancestor.length() - 1) : ancestor);
+      }
+      return ancestors;
+   }
+
+   private static void write(List<Step> steps, Optional<String> manifest, File composed) throws IOException {
+      StringBuilder batch = new StringBuilder();
+      Map<String, Path> shipped = new LinkedHashMap<>();
+      for (Step step : steps) {
+         if (!step.isLive()) {
+            continue;
+         }
+         List<String> targets = step.liveTargets();
+         if (step.isRemoval()) {
+            batch.append("rm --from=/").append(targets.get(0)).append('\n');
+            continue;
+         }
+         String payload = step.shippedPayload();
+         shipped.putIfAbsent(payload, step.payloadRoot.resolve(step.payload));
+         if (step.blob != null) {
+            batch.append(step.verb).append(" --blob=").append(step.blob);
+            targets.forEach(target -> batch.append(" --to=/").append(target));
+            batch.append('\n');
+         } else {
+            batch.append(step.verb).append(" --from=/").append(payload).append(" --to=/").append(targets.get(0)).append('\n');
+         }
+      }
+      try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(composed.toPath()))) {
+         // batch and manifest first, then payloads in batch order: the composed update can be streamed
+         writeEntry(out, BatchParser.TEXT_BATCH, batch.toString().getBytes(UTF_8));
+         if (manifest.isPresent()) {
+            writeEntry(out, Manifest.FILE_NAME, manifest.get().getBytes(UTF_8));
+         }
+         for (Map.Entry<String, Path> payload : shipped.entrySet()) {
+            ship(payload.getValue(), payload.getKey(), out);
+         }
+      }
+   }
+
+   private static void ship(Path payload, String name, ZipOutputStream out) throws IOException {
+      if (!Files.isDirectory(payload)) {
+         out.putNextEntry(new ZipEntry(name));
+         Files.copy(payload, out);
+         out.closeEntry();
+         return;
+      }
+      List<Path> tree;
+      try (Stream<Path> walk = Files.walk(payload)) {
+         tree = walk.collect(Collectors.toList());
+      }
+      for (Path path : tree) {
+         String relative = payload.relativize(path).toString();
+         String entryName = relative.isEmpty() ? name : name + "/" + relative;
+         if (Files.isDirectory(path)) {
+            out.putNextEntry(new ZipEntry(entryName + "/"));
+         } else {
+            out.putNextEntry(new ZipEntry(entryName));
+            Files.copy(path, out);
+         }
+         out.closeEntry();
+      }
+   }
+
+   private static void writeEntry(ZipOutputStream out, String name, byte[] content) throws IOException {
+      out.putNextEntry(new ZipEntry(name));
+      out.write(content);
+      out.closeEntry();
+   }
+
+   private static Path workDirectory() {
+      try {
+         return createTempDirectory("handy-warup-compose-");
+      } catch (IOException e) {
+         throw new HandyWarupException("Could not create composition directory", e);
+      }
+   }
+
+   private static void close(List<FileSystem> fileSystems) {
+      for (FileSystem fileSystem : fileSystems) {
+         try {
+            fileSystem.close();
+         } catch (IOException e) {
+            // read-only file systems, nothing was written
+         }
+      }
+   }
+
+   /**
+    * Command of one of the composed updates.
+    */
+   private static class Step {
+      private String verb;
+      /**
+       * 1-based number of the update the payload comes from, 0 for folded payloads.
+       */
+      private int update;
+      private Path payloadRoot;
+      /**
+       * Payload path, relative to the payload root, {@code null} for removals.
+       */
+      private String payload;
+      private final String blob;
+      private final List<String> targets;
+      private final boolean[] live;
+
+      Step(int update, Path root, BatchParser.Line line) {
+         this.verb = line.verb;
+         this.update = update;
+         this.payloadRoot = root;
+         this.blob = line.blob;
+         this.payload = line.blob != null ? HandyWarup.BLOBS + "/" + line.blob : "rm".equals(line.verb) ? null : line.source;
+         this.targets = "rm".equals(line.verb) ? Collections.singletonList(line.source) : line.targets;
+         this.live = new boolean[targets.size()];
+         Arrays.fill(live, true);
+      }
+
+      boolean isRemoval() {
+         return "rm".equals(verb);
+      }
+
+      boolean isPatch() {
+         return "patch".equals(verb);
+      }
+
+      boolean isAddition() {
+         return "add".equals(verb) || "replace".equals(verb);
+      }
+
+      boolean isLive() {
+         for (boolean targetLive : live) {
+            if (targetLive) {
+               return true;
+            }
+         }
+         return false;
+      }
+
+      boolean isLive(String target) {
+         int t = targets.indexOf(target);
+         return t >= 0 && live[t];
+      }
+
+      List<String> liveTargets() {
+         List<String> result = new ArrayList<>();
+         for (int t = 0; t < targets.size(); t++) {
+            if (live[t]) {
+               result.add(targets.get(t));
+            }
+         }
+         return result;
+      }
+
+      /**
+       * @return paths whose content this command depends on
+       */
+      List<String> reads() {
+         if (isPatch()) {
+            return targets;
+         }
+         List<String> archives = new ArrayList<>();
+         for (String target : targets) {
+            int separator = target.indexOf(ArchiveCommand.SEPARATOR);
+            if (separator > 0) {
+               archives.add(target.substring(0, separator));
+            }
+         }
+         return archives;
+      }
+
+      /**
+       * @return payload of the specified path, when this addition targets it or one of its ancestors
+       */
+      Optional<Path> payloadOf(String path) {
+         Path root = payloadRoot.resolve(payload);
+         for (String target : targets) {
+            if (target.equals(path)) {
+               return Optional.of(root);
+            }
+            if (path.startsWith(target + "/")) {
+               return Optional.of(root.resolve(path.substring(target.length() + 1)));
+            }
+         }
+         return Optional.empty();
+      }
+
+      /**
+       * @return path of the payload in the composed update
+       */
+      String shippedPayload() {
+         if (blob != null) {
+            return payload;
+         }
+         return update == 0 ? FOLDED + payload : update + "/" + payload;
+      }
+   }
+
+   /**
+    * Indexes of the commands targeting each path, in batch order.
+    */
+   private static class Index {
+      private final List<Step> steps;
+      private final TreeMap<String, TreeSet<Integer>> byTarget = new TreeMap<>();
+
+      Index(List<Step> steps) {
+         this.steps = steps;
+         for (int i = 0; i < steps.size(); i++) {
+            for (String target : steps.get(i).targets) {
+               byTarget.computeIfAbsent(target, path -> new TreeSet<>()).add(i);
+            }
+         }
+      }
+
+      NavigableSet<Integer> at(String path) {
+         TreeSet<Integer> indexes = byTarget.get(path);
+         return indexes == null ? Collections.<Integer>emptyNavigableSet() : indexes;
+      }
+
+      /**
+       * @return index of the first addition or removal after the specified one that overwrites the path, or -1
+       */
+      int nextOverwrite(String path, int after, boolean removalsOnly) {
+         int result = -1;
+         for (String candidate : self(path, ancestors(path))) {
+            for (int i : at(candidate).tailSet(after, false)) {
+               Step step = steps.get(i);
+               if (step.isRemoval() || !removalsOnly && step.isAddition()) {
+                  result = result < 0 ? i : Math.min(result, i);
+                  break;
+               }
+            }
+         }
+         return result;
+      }
+
+      /**
+       * @return index of the last command before the specified one that targets the path,
+       * one of its ancestors or one of its descendants, or -1
+       */
+      int lastRelated(String path, int before) {
+         int result = -1;
+         for (String candidate : self(path, ancestors(path))) {
+            Integer i = at(candidate).lower(before);
+            if (i != null) {
+               result = Math.max(result, i);
+            }
+         }
+         for (Map<String, TreeSet<Integer>> descendants : Arrays.asList(
+               byTarget.subMap(path + "/", path + "0"),
+               byTarget.subMap(path + ArchiveCommand.SEPARATOR, path + "!0"))) {
+            for (TreeSet<Integer> indexes : descendants.values()) {
+               Integer i = indexes.lower(before);
+               if (i != null) {
+                  result = Math.max(result, i);
+               }
+            }
+         }
+         return result;
+      }
+
+      /**
+       * @return index of the first command that targets the path or one of its ancestors, or -1
+       */
+      int firstRelated(String path) {
+         int result = -1;
+         for (String candidate : self(path, ancestors(path))) {
+            NavigableSet<Integer> indexes = at(candidate);
+            if (!indexes.isEmpty()) {
+               result = result < 0 ? indexes.first() : Math.min(result, indexes.first());
+            }
+         }
+         return result;
+      }
+
+      private static List<String> self(String path, List<String> ancestors) {
+         List<String> result = new ArrayList<>(ancestors.size() + 1);
+         result.add(path);
+         result.addAll(ancestors);
+         return result;
+      }
+   }
+}
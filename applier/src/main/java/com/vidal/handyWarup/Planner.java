@@ -0,0 +1,210 @@
+package com.vidal.handyWarup;
+
+import com.vidal.handyWarup.errors.HandyWarupException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolves the commands of a batch against the update archive and the metadata of a target, without modifying anything.
+ *
+ * Commands are replayed in batch order over a record of the paths added and removed by the earlier ones,
+ * so that, for instance, patching a file added earlier in the batch is not reported as a conflict.
+ * Paths beneath an added directory are assumed to exist.
+ */
+class Planner {
+
+   private final Path patchRoot;
+   private final Path target;
+   /**
+    * Index of the last command that added (positive) or removed (negative) each path, offset by one.
+    */
+   private final Map<Path, Integer> touched = new HashMap<>();
+
+   Planner(Path patchRoot, Path target) {
+      this.patchRoot = patchRoot;
+      this.target = target;
+   }
+
+   /**
+    * @param lines lines of the batch to execute, by index in the batch
+    * @param plan plan to complete
+    */
+   UpdatePlan plan(Map<Integer, BatchParser.Line> lines, UpdatePlan plan) {
+      lines.forEach((index, line) -> {
+         plan.commands++;
+         try {
+            resolve(index, line, plan);
+         } catch (IOException | UncheckedIOException e) {
+            plan.conflict(index, "could not be resolved: " + e);
+         }
+      });
+      try {
+         Tally tally = tally(target);
+         plan.targetFiles = tally.files;
+         plan.targetBytes = tally.bytes;
+      } catch (IOException e) {
+         throw new HandyWarupException("Could not measure " + target, e);
+      }
+      return plan;
+   }
+
+   private void resolve(int index, BatchParser.Line line, UpdatePlan plan) throws IOException {
+      switch (line.verb) {
+         case "add":
+         case "replace":
+            String source = line.blob != null ? HandyWarup.BLOBS + "/" + line.blob : line.source;
+            Path payload = RelativePaths.resolve(patchRoot, Paths.get(source));
+            boolean nested = ArchiveCommand.isNested(line.targets.get(0));
+            if (!Files.exists(payload) && !(nested && line.targets.get(0).endsWith("/"))) {
+               plan.conflict(index, "missing source " + source + " in the update");
+               return;
+            }
+            Tally written = Files.exists(payload) ? tally(payload) : new Tally();
+            for (String target : line.targets) {
+               if (ArchiveCommand.isNested(target)) {
+                  requireArchive(index, target, plan);
+               } else {
+                  touch(index, Paths.get(target), plan);
+                  touched.put(Paths.get(target), index + 1);
+               }
+               plan.filesToWrite += written.files;
+               plan.bytesToWrite += written.bytes;
+            }
+            break;
+         case "patch":
+            Path delta = RelativePaths.resolve(patchRoot, Paths.get(line.source));
+            Path patched = Paths.get(line.targets.get(0));
+            if (!Files.isRegularFile(delta)) {
+               plan.conflict(index, "missing delta " + line.source + " in the update");
+               return;
+            }
+            if (!exists(patched)) {
+               plan.conflict(index, "nothing to patch at " + patched);
+               return;
+            }
+            long[] lengths = DeltaDecoder.lengths(delta);
+            if (isOriginal(patched)) {
+               long size = Files.size(target.resolve(patched));
+               if (size != lengths[0]) {
+                  plan.conflict(index, "delta expects " + lengths[0] + " bytes at " + patched + ", found " + size);
+                  return;
+               }
+            }
+            touch(index, patched, plan);
+            touched.put(patched, index + 1);
+            plan.filesToWrite++;
+            plan.bytesToWrite += lengths[1];
+            break;
+         case "rm":
+            if (ArchiveCommand.isNested(line.source)) {
+               requireArchive(index, line.source, plan);
+               break;
+            }
+            Path removed = Paths.get(line.source);
+            if (!exists(removed)) {
+               plan.conflict(index, "nothing to remove at " + removed);
+               return;
+            }
+            if (isOriginal(removed)) {
+               Tally deleted = tally(target.resolve(removed));
+               plan.filesToDelete += deleted.files;
+               plan.bytesToDelete += deleted.bytes;
+            }
+            touch(index, removed, plan);
+            touched.put(removed, -(index + 1));
+            break;
+         default:
+            plan.conflict(index, "unknown command " + line.verb);
+      }
+   }
+
+   private void requireArchive(int index, String nested, UpdatePlan plan) throws IOException {
+      Path archive = Paths.get(nested.substring(0, nested.indexOf(ArchiveCommand.SEPARATOR)));
+      if (!exists(archive)) {
+         plan.conflict(index, "missing archive " + archive + " in the target");
+         return;
+      }
+      touch(index, archive, plan);
+      if (isOriginal(archive)) {
+         // the archive is rebuilt, as big as it was
+         plan.filesToWrite++;
+         plan.bytesToWrite += Files.size(target.resolve(archive));
+      }
+   }
+
+   /**
+    * Accounts for the backup of a path the {@link Staging#TOUCHED_PATHS} staging makes before it is first modified.
+    */
+   private void touch(int index, Path path, UpdatePlan plan) throws IOException {
+      plan.touchedPaths++;
+      if (isOriginal(path) && Files.exists(target.resolve(path), LinkOption.NOFOLLOW_LINKS)) {
+         Tally backup = tally(target.resolve(path));
+         plan.filesToBackUp += backup.files;
+         plan.bytesToBackUp += backup.bytes;
+      }
+   }
+
+   /**
+    * @return {@code true} if the path exists once the commands replayed so far are executed
+    */
+   private boolean exists(Path path) {
+      Map.Entry<Path, Integer> last = lastTouch(path);
+      if (last == null) {
+         return Files.exists(target.resolve(path), LinkOption.NOFOLLOW_LINKS);
+      }
+      return last.getValue() > 0;
+   }
+
+   /**
+    * @return {@code true} if neither the path nor one of its ancestors was touched by the commands replayed so far
+    */
+   private boolean isOriginal(Path path) {
+      return lastTouch(path) == null;
+   }
+
+   private Map.Entry<Path, Integer> lastTouch(Path path) {
+      Map.Entry<Path, Integer> last = null;
+      for (Path current = path.normalize(); current != null; current = current.getParent()) {
+         Integer index = touched.get(current);
+         if (index != null && (last == null || Math.abs(index) > Math.abs(last.getValue()))) {
+            last = new AbstractMap.SimpleImmutableEntry<>(current, index);
+         }
+      }
+      return last;
+   }
+
+   private static Tally tally(Path root) throws IOException {
+      Tally tally = new Tally();
+      try {
+         Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+               tally.files++;
+               tally.bytes += attributes.size();
+               return FileVisitResult.CONTINUE;
+            }
+         });
+      } catch (NoSuchFileException e) {
+         // nothing to count
+      }
+      return tally;
+   }
+
+   private static class Tally {
+      private long files;
+      private long bytes;
+   }
+}
@@ -0,0 +1,273 @@
+package com.vidal.handyWarup;
+
+import com.vidal.handyWarup.errors.JournalException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Write-ahead record of an update being applied, kept next to its target as {@code .<target>.handy-warup-progress},
+ * so that an update interrupted by a crash can be resumed or rolled back by the next run.
+ *
+ * The journal records which update is applied, how the target is staged, how many leading commands of the batch
+ * are done, and when the stage starts being committed. Progress is synced to disk in groups of commands rather
+ * than after each of them: after a crash, the commands of the last unsynced group are executed again.
+ * The journal is deleted once the update has been committed or rolled back.
+ */
+class ProgressJournal {
+
+   private static final String HEADER = "handy-warup-progress 1";
+   private static final String UPDATE = "update ";
+   private static final String STAGING = "staging ";
+   private static final String DONE = "done ";
+   private static final String COMMIT = "commit";
+   private static final String STREAM = "stream";
+   private static final int COMMANDS_PER_SYNC = 256;
+
+   private final Path file;
+   private final FileChannel channel;
+   private final Map<Command, Integer> indexes = new IdentityHashMap<>();
+   private final BitSet completed = new BitSet();
+   private int done;
+   private int synced;
+
+   private ProgressJournal(Path file, FileChannel channel, int done) {
+      this.file = file;
+      this.channel = channel;
+      this.done = done;
+      this.synced = done;
+   }
+
+   public static Path location(Path target) {
+      Path absolute = target.toAbsolutePath();
+      return absolute.resolveSibling("." + absolute.getFileName() + ".handy-warup-progress");
+   }
+
+   /**
+    * Starts the journal of a new update.
+    * When the journal cannot be created because the parent of the target is not writable, progress is not recorded.
+    *
+    * @param workspace {@link Stage#workspace() workspace} of the stage of the update
+    */
+   public static ProgressJournal create(Path target, File update, Staging staging, Path workspace) {
+      Path file = location(target);
+      if (!Files.isWritable(file.getParent())) {
+         return new ProgressJournal(file, null, 0);
+      }
+      try {
+         FileChannel channel = FileChannel.open(file, CREATE_NEW, WRITE, APPEND);
+         ProgressJournal journal = new ProgressJournal(file, channel, 0);
+         journal.append(HEADER + "\n" + UPDATE + identity(update) + "\n" + STAGING + staging + " " + workspace.toAbsolutePath() + "\n");
+         return journal;
+      } catch (IOException e) {
+         throw new JournalException("Could not create progress journal " + file, e);
+      }
+   }
+
+   /**
+    * Continues the journal of an interrupted update.
+    */
+   public static ProgressJournal resume(State state) {
+      try {
+         return new ProgressJournal(state.file, FileChannel.open(state.file, WRITE, APPEND), state.done);
+      } catch (IOException e) {
+         throw new JournalException("Could not open progress journal " + state.file, e);
+      }
+   }
+
+   /**
+    * @return the state of the interrupted update of the specified target, if any
+    */
+   public static Optional<State> read(Path target) {
+      Path file = location(target);
+      String journal;
+      try {
+         journal = new String(Files.readAllBytes(file), UTF_8);
+      } catch (NoSuchFileException e) {
+         return Optional.empty();
+      } catch (IOException e) {
+         throw new JournalException("Could not read progress journal " + file, e);
+      }
+      // an unterminated last line was not fully written
+      List<String> lines = Arrays.asList(journal.substring(0, journal.lastIndexOf('\n') + 1).split("\n"));
+      int separator = lines.size() < 3 ? -1 : lines.get(2).indexOf(' ', STAGING.length());
+      if (separator < 0 || !HEADER.equals(lines.get(0)) || !lines.get(1).startsWith(UPDATE) || !lines.get(2).startsWith(STAGING)) {
+         // nothing was staged before the header was written
+         return Optional.of(new State(file, null, null, null, 0, false));
+      }
+      int done = 0;
+      boolean committing = false;
+      for (String line : lines.subList(3, lines.size())) {
+         if (line.startsWith(DONE)) {
+            done = Integer.parseInt(line.substring(DONE.length()));
+         } else if (line.equals(COMMIT)) {
+            committing = true;
+         }
+      }
+      return Optional.of(new State(file,
+            lines.get(1).substring(UPDATE.length()),
+            Staging.valueOf(lines.get(2).substring(STAGING.length(), separator)),
+            Paths.get(lines.get(2).substring(separator + 1)),
+            done,
+            committing));
+   }
+
+   /**
+    * @return the number of leading commands of the batch known to be done
+    */
+   public int done() {
+      return done;
+   }
+
+   /**
+    * Registers the commands of the batch.
+    *
+    * @param batch every command of the batch, in batch order
+    * @param pending commands about to be executed, the other ones are considered done
+    */
+   public synchronized void track(List<Command> batch, List<Command> pending) {
+      Map<Command, Boolean> executed = new IdentityHashMap<>();
+      pending.forEach(command -> executed.put(command, true));
+      for (int i = 0; i < batch.size(); i++) {
+         indexes.put(batch.get(i), i);
+         if (!executed.containsKey(batch.get(i))) {
+            completed.set(i);
+         }
+      }
+      done = Math.max(done, completed.nextClearBit(0));
+   }
+
+   /**
+    * Marks a tracked command as done. Commands may complete out of batch order.
+    */
+   public synchronized void completed(Command command) {
+      if (channel == null) {
+         return;
+      }
+      completed.set(indexes.get(command));
+      done = Math.max(done, completed.nextClearBit(done));
+      if (done - synced >= COMMANDS_PER_SYNC) {
+         append(DONE + done + "\n");
+         synced = done;
+      }
+   }
+
+   /**
+    * Records that the stage is about to be committed: from then on, an interrupted update is completed
+    * rather than rolled back.
+    */
+   public synchronized void committing() {
+      if (channel == null) {
+         return;
+      }
+      append(DONE + done + "\n" + COMMIT + "\n");
+   }
+
+   /**
+    * Closes the journal and leaves it on disk, as an interrupted update would.
+    */
+   public void close() {
+      if (channel == null) {
+         return;
+      }
+      try {
+         channel.close();
+      } catch (IOException e) {
+         throw new JournalException("Could not close progress journal " + file, e);
+      }
+   }
+
+   public void delete() {
+      if (channel == null) {
+         return;
+      }
+      close();
+      try {
+         Files.deleteIfExists(file);
+      } catch (IOException e) {
+         throw new JournalException("Could not delete progress journal " + file, e);
+      }
+   }
+
+   /**
+    * @param update update file, {@code null} if the update is streamed
+    * @return a string that identifies an update file
+    */
+   static String identity(File update) {
+      if (update == null) {
+         return STREAM;
+      }
+      return update.length() + " " + update.lastModified() + " " + update.getAbsolutePath();
+   }
+
+   private void append(String lines) {
+      try {
+         ByteBuffer buffer = ByteBuffer.wrap(lines.getBytes(UTF_8));
+         while (buffer.hasRemaining()) {
+            channel.write(buffer);
+         }
+         channel.force(false);
+      } catch (IOException e) {
+         throw new JournalException("Could not write progress journal " + file, e);
+      }
+   }
+
+   /**
+    * Progress of an interrupted update, as read from its journal.
+    */
+   static class State {
+      final Path file;
+      /**
+       * {@link #identity(File) identity} of the update, {@code null} if it was not recorded.
+       */
+      final String update;
+      final Staging staging;
+      /**
+       * {@link Stage#workspace() workspace} of the stage of the update, {@code null} if it was not recorded.
+       */
+      final Path stage;
+      final int done;
+      final boolean committing;
+
+      State(Path file, String update, Staging staging, Path stage, int done, boolean committing) {
+         this.file = file;
+         this.update = update;
+         this.staging = staging;
+         this.stage = stage;
+         this.done = done;
+         this.committing = committing;
+      }
+
+      /**
+       * @return {@code false} for streamed updates, which cannot be told apart, hence never resumed
+       */
+      boolean isOf(File update) {
+         return update != null && identity(update).equals(this.update);
+      }
+
+      void delete() {
+         try {
+            Files.deleteIfExists(file);
+         } catch (IOException e) {
+            throw new JournalException("Could not delete progress journal " + file, e);
+         }
+      }
+   }
+}
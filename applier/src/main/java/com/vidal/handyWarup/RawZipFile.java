@@ -0,0 +1,360 @@
+package com.vidal.handyWarup;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Read-only view of a zip file that gives access to the compressed bytes of its entries,
+ * so that they can be copied to another archive without being inflated and deflated again.
+ *
+ * Zip64 archives are not supported.
+ */
+class RawZipFile implements Closeable {
+
+   static final int LOCAL_HEADER = 0x04034b50;
+   static final int CENTRAL_HEADER = 0x02014b50;
+   static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+   static final int LOCAL_HEADER_SIZE = 30;
+   static final int CENTRAL_HEADER_SIZE = 46;
+   static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+
+   private static final int BUFFER_SIZE = 64 * 1024;
+
+   private final FileChannel channel;
+   private final List<Entry> entries;
+
+   public RawZipFile(Path path) throws IOException {
+      this.channel = FileChannel.open(path, READ);
+      try {
+         this.entries = Collections.unmodifiableList(readCentralDirectory());
+      } catch (IOException | RuntimeException e) {
+         channel.close();
+         throw e;
+      }
+   }
+
+   /**
+    * @return entries in central directory order
+    */
+   public List<Entry> entries() {
+      return entries;
+   }
+
+   /**
+    * Copies the compressed bytes of the specified entry.
+    */
+   public void copyRaw(Entry entry, OutputStream out) throws IOException {
+      long position = dataOffset(entry);
+      long remaining = entry.compressedSize;
+      ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+      while (remaining > 0) {
+         buffer.clear();
+         buffer.limit((int) Math.min(buffer.capacity(), remaining));
+         int read = channel.read(buffer, position);
+         if (read < 0) {
+            throw new ZipException("Truncated entry " + entry.name);
+         }
+         out.write(buffer.array(), 0, read);
+         position += read;
+         remaining -= read;
+      }
+   }
+
+   /**
+    * Maps the content of a stored entry in memory. The mapping remains valid once this file is closed.
+    */
+   public MappedByteBuffer map(Entry entry) throws IOException {
+      if (!entry.isStored()) {
+         throw new ZipException("Cannot map compressed entry " + entry.name);
+      }
+      return channel.map(FileChannel.MapMode.READ_ONLY, dataOffset(entry), entry.compressedSize);
+   }
+
+   /**
+    * @return the uncompressed content of the specified entry, whose CRC-32 is verified once it has been read entirely
+    */
+   public InputStream open(Entry entry) throws IOException {
+      InputStream raw = new ChannelRangeInputStream(channel, dataOffset(entry), entry.compressedSize);
+      if (entry.method == ZipEntry.STORED) {
+         return new CrcVerifyingInputStream(raw, entry);
+      }
+      if (entry.method != ZipEntry.DEFLATED) {
+         throw new ZipException("Unsupported compression method " + entry.method + " for " + entry.name);
+      }
+      return new CrcVerifyingInputStream(new EntryInflaterInputStream(raw), entry);
+   }
+
+   @Override
+   public void close() throws IOException {
+      channel.close();
+   }
+
+   private long dataOffset(Entry entry) throws IOException {
+      ByteBuffer header = read(entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+      if (header.getInt(0) != LOCAL_HEADER) {
+         throw new ZipException("Invalid local header for " + entry.name);
+      }
+      return entry.localHeaderOffset + LOCAL_HEADER_SIZE + unsignedShort(header, 26) + unsignedShort(header, 28);
+   }
+
+   private List<Entry> readCentralDirectory() throws IOException {
+      long size = channel.size();
+      int tailLength = (int) Math.min(size, END_OF_CENTRAL_DIRECTORY_SIZE + 0xFFFF);
+      ByteBuffer tail = read(size - tailLength, tailLength);
+      int end = -1;
+      for (int i = tailLength - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+         if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY) {
+            end = i;
+            break;
+         }
+      }
+      if (end < 0) {
+         throw new ZipException("End of central directory not found");
+      }
+
+      int count = unsignedShort(tail, end + 10);
+      long directorySize = unsignedInt(tail, end + 12);
+      long directoryOffset = unsignedInt(tail, end + 16);
+      if (count == 0xFFFF || directorySize == 0xFFFFFFFFL || directoryOffset == 0xFFFFFFFFL) {
+         throw new ZipException("Zip64 archives are not supported");
+      }
+
+      ByteBuffer directory = read(directoryOffset, (int) directorySize);
+      List<Entry> result = new ArrayList<>(count);
+      int position = 0;
+      for (int i = 0; i < count; i++) {
+         if (directory.getInt(position) != CENTRAL_HEADER) {
+            throw new ZipException("Invalid central directory header");
+         }
+         int nameLength = unsignedShort(directory, position + 28);
+         int extraLength = unsignedShort(directory, position + 30);
+         int commentLength = unsignedShort(directory, position + 32);
+         Entry entry = new Entry(
+               bytes(directory, position + CENTRAL_HEADER_SIZE, nameLength),
+               unsignedShort(directory, position + 4),
+               unsignedShort(directory, position + 6),
+               unsignedShort(directory, position + 8),
+               unsignedShort(directory, position + 10),
+               directory.getInt(position + 12),
+               unsignedInt(directory, position + 16),
+               unsignedInt(directory, position + 20),
+               unsignedInt(directory, position + 24),
+               bytes(directory, position + CENTRAL_HEADER_SIZE + nameLength, extraLength),
+               bytes(directory, position + CENTRAL_HEADER_SIZE + nameLength + extraLength, commentLength),
+               unsignedShort(directory, position + 36),
+               unsignedInt(directory, position + 38),
+               unsignedInt(directory, position + 42));
+         if (entry.compressedSize == 0xFFFFFFFFL || entry.size == 0xFFFFFFFFL || entry.localHeaderOffset == 0xFFFFFFFFL) {
+            throw new ZipException("Zip64 archives are not supported");
+         }
+         result.add(entry);
+         position += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+      }
+      return result;
+   }
+
+   private ByteBuffer read(long position, int length) throws IOException {
+      ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+      while (buffer.hasRemaining()) {
+         if (channel.read(buffer, position + buffer.position()) < 0) {
+            throw new ZipException("Unexpected end of archive");
+         }
+      }
+      buffer.flip();
+      return buffer;
+   }
+
+   private static byte[] bytes(ByteBuffer buffer, int offset, int length) {
+      byte[] result = new byte[length];
+      for (int i = 0; i < length; i++) {
+         result[i] = buffer.get(offset + i);
+      }
+      return result;
+   }
+
+   static int unsignedShort(ByteBuffer buffer, int offset) {
+      return buffer.getShort(offset) & 0xFFFF;
+   }
+
+   static long unsignedInt(ByteBuffer buffer, int offset) {
+      return buffer.getInt(offset) & 0xFFFFFFFFL;
+   }
+
+   /**
+    * Central directory record of an entry.
+    */
+   static class Entry {
+      final String name;
+      final byte[] rawName;
+      final int versionMadeBy;
+      final int versionNeeded;
+      final int flags;
+      final int method;
+      final int dosTime;
+      final long crc;
+      final long compressedSize;
+      final long size;
+      final byte[] extra;
+      final byte[] comment;
+      final int internalAttributes;
+      final long externalAttributes;
+      final long localHeaderOffset;
+
+      Entry(byte[] rawName, int versionMadeBy, int versionNeeded, int flags, int method, int dosTime, long crc,
+            long compressedSize, long size, byte[] extra, byte[] comment, int internalAttributes,
+            long externalAttributes, long localHeaderOffset) {
+         this.name = new String(rawName, UTF_8);
+         this.rawName = rawName;
+         this.versionMadeBy = versionMadeBy;
+         this.versionNeeded = versionNeeded;
+         this.flags = flags;
+         this.method = method;
+         this.dosTime = dosTime;
+         this.crc = crc;
+         this.compressedSize = compressedSize;
+         this.size = size;
+         this.extra = extra;
+         this.comment = comment;
+         this.internalAttributes = internalAttributes;
+         this.externalAttributes = externalAttributes;
+         this.localHeaderOffset = localHeaderOffset;
+      }
+
+      public String name() {
+         return name;
+      }
+
+      public boolean isDirectory() {
+         return name.endsWith("/");
+      }
+
+      public boolean isStored() {
+         return method == ZipEntry.STORED;
+      }
+   }
+
+   /**
+    * Feeds the inflater with a trailing dummy byte, as raw deflate streams may require, and releases it on close.
+    */
+   private static class EntryInflaterInputStream extends InflaterInputStream {
+
+      private boolean exhausted;
+
+      EntryInflaterInputStream(InputStream raw) {
+         super(raw, new Inflater(true), BUFFER_SIZE);
+      }
+
+      @Override
+      protected void fill() throws IOException {
+         if (exhausted) {
+            throw new EOFException("Unexpected end of deflated entry");
+         }
+         len = in.read(buf, 0, buf.length);
+         if (len < 0) {
+            buf[0] = 0;
+            len = 1;
+            exhausted = true;
+         }
+         inf.setInput(buf, 0, len);
+      }
+
+      @Override
+      public void close() throws IOException {
+         super.close();
+         inf.end();
+      }
+   }
+
+   /**
+    * Fails the read that reaches the end of an entry whose content does not match its CRC-32.
+    */
+   private static class CrcVerifyingInputStream extends CheckedInputStream {
+
+      private final Entry entry;
+      private boolean verified;
+
+      CrcVerifyingInputStream(InputStream in, Entry entry) {
+         super(in, new CRC32());
+         this.entry = entry;
+      }
+
+      @Override
+      public int read() throws IOException {
+         int read = super.read();
+         if (read < 0) {
+            verify();
+         }
+         return read;
+      }
+
+      @Override
+      public int read(byte[] bytes, int offset, int length) throws IOException {
+         int read = super.read(bytes, offset, length);
+         if (read < 0) {
+            verify();
+         }
+         return read;
+      }
+
+      private void verify() throws ZipException {
+         if (!verified && getChecksum().getValue() != entry.crc) {
+            throw new ZipException("Invalid CRC for entry " + entry.name);
+         }
+         verified = true;
+      }
+   }
+
+   private static class ChannelRangeInputStream extends InputStream {
+
+      private final FileChannel channel;
+      private long position;
+      private long remaining;
+
+      ChannelRangeInputStream(FileChannel channel, long position, long length) {
+         this.channel = channel;
+         this.position = position;
+         this.remaining = length;
+      }
+
+      @Override
+      public int read() throws IOException {
+         byte[] single = new byte[1];
+         return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+      }
+
+      @Override
+      public int read(byte[] bytes, int offset, int length) throws IOException {
+         if (remaining <= 0) {
+            return -1;
+         }
+         ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, (int) Math.min(length, remaining));
+         int read = channel.read(buffer, position);
+         if (read < 0) {
+            return -1;
+         }
+         position += read;
+         remaining -= read;
+         return read;
+      }
+   }
+}
@@ -0,0 +1,206 @@
+package com.vidal.handyWarup;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Writes a zip file sequentially, either from entries of another archive copied as is,
+ * or from new content deflated on the fly.
+ *
+ * Zip64 archives are not supported.
+ */
+class RawZipWriter implements Closeable {
+
+   private static final int UTF_8_NAMES = 1 << 11;
+   private static final int DATA_DESCRIPTOR = 1 << 3;
+   private static final int VERSION = 20;
+   private static final int BUFFER_SIZE = 64 * 1024;
+
+   private final CountingOutputStream out;
+   private final List<RawZipFile.Entry> written = new ArrayList<>();
+   private final byte[] buffer = new byte[BUFFER_SIZE];
+
+   public RawZipWriter(Path path) throws IOException {
+      this(Files.newOutputStream(path));
+   }
+
+   public RawZipWriter(OutputStream out) {
+      this.out = new CountingOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+   }
+
+   /**
+    * Copies an entry of another archive without decompressing it.
+    */
+   public void copy(RawZipFile source, RawZipFile.Entry entry) throws IOException {
+      RawZipFile.Entry copy = new RawZipFile.Entry(entry.rawName, entry.versionMadeBy, entry.versionNeeded,
+            entry.flags & ~DATA_DESCRIPTOR, entry.method, entry.dosTime, entry.crc, entry.compressedSize,
+            entry.size, entry.extra, entry.comment, entry.internalAttributes, entry.externalAttributes, out.count);
+      writeLocalHeader(copy);
+      source.copyRaw(entry, out);
+      written.add(copy);
+   }
+
+   /**
+    * Writes a new entry. Directory entries (ending with '/') are stored, other entries are deflated.
+    */
+   public void write(String name, InputStream content, long lastModified) throws IOException {
+      byte[] rawName = name.getBytes(UTF_8);
+      boolean directory = name.endsWith("/");
+      CRC32 crc = new CRC32();
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      long size = 0;
+      if (!directory) {
+         Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+         try (DeflaterOutputStream deflating = new DeflaterOutputStream(compressed, deflater)) {
+            int read;
+            while ((read = content.read(buffer)) > 0) {
+               crc.update(buffer, 0, read);
+               deflating.write(buffer, 0, read);
+               size += read;
+            }
+         } finally {
+            deflater.end();
+         }
+      }
+
+      RawZipFile.Entry entry = new RawZipFile.Entry(rawName, VERSION, VERSION, UTF_8_NAMES,
+            directory ? ZipEntry.STORED : ZipEntry.DEFLATED, dosTime(lastModified), crc.getValue(),
+            compressed.size(), size, new byte[0], new byte[0], 0, 0, out.count);
+      writeLocalHeader(entry);
+      compressed.writeTo(out);
+      written.add(entry);
+   }
+
+   @Override
+   public void close() throws IOException {
+      try {
+         if (written.size() >= 0xFFFF) {
+            throw new ZipException("Zip64 archives are not supported");
+         }
+         long directoryOffset = out.count;
+         for (RawZipFile.Entry entry : written) {
+            writeCentralHeader(entry);
+         }
+         long directorySize = out.count - directoryOffset;
+         ByteBuffer end = buffer(RawZipFile.END_OF_CENTRAL_DIRECTORY_SIZE);
+         end.putInt(RawZipFile.END_OF_CENTRAL_DIRECTORY)
+               .putShort((short) 0)
+               .putShort((short) 0)
+               .putShort((short) written.size())
+               .putShort((short) written.size())
+               .putInt((int) checkedSize(directorySize))
+               .putInt((int) checkedSize(directoryOffset))
+               .putShort((short) 0);
+         out.write(end.array());
+      } finally {
+         out.close();
+      }
+   }
+
+   private void writeLocalHeader(RawZipFile.Entry entry) throws IOException {
+      checkedSize(entry.localHeaderOffset);
+      ByteBuffer header = buffer(RawZipFile.LOCAL_HEADER_SIZE);
+      header.putInt(RawZipFile.LOCAL_HEADER)
+            .putShort((short) entry.versionNeeded)
+            .putShort((short) entry.flags)
+            .putShort((short) entry.method)
+            .putInt(entry.dosTime)
+            .putInt((int) entry.crc)
+            .putInt((int) entry.compressedSize)
+            .putInt((int) entry.size)
+            .putShort((short) entry.rawName.length)
+            .putShort((short) 0);
+      out.write(header.array());
+      out.write(entry.rawName);
+   }
+
+   private void writeCentralHeader(RawZipFile.Entry entry) throws IOException {
+      ByteBuffer header = buffer(RawZipFile.CENTRAL_HEADER_SIZE);
+      header.putInt(RawZipFile.CENTRAL_HEADER)
+            .putShort((short) entry.versionMadeBy)
+            .putShort((short) entry.versionNeeded)
+            .putShort((short) entry.flags)
+            .putShort((short) entry.method)
+            .putInt(entry.dosTime)
+            .putInt((int) entry.crc)
+            .putInt((int) entry.compressedSize)
+            .putInt((int) entry.size)
+            .putShort((short) entry.rawName.length)
+            .putShort((short) entry.extra.length)
+            .putShort((short) entry.comment.length)
+            .putShort((short) 0)
+            .putShort((short) entry.internalAttributes)
+            .putInt((int) entry.externalAttributes)
+            .putInt((int) entry.localHeaderOffset);
+      out.write(header.array());
+      out.write(entry.rawName);
+      out.write(entry.extra);
+      out.write(entry.comment);
+   }
+
+   private static long checkedSize(long value) throws ZipException {
+      if (value >= 0xFFFFFFFFL) {
+         throw new ZipException("Zip64 archives are not supported");
+      }
+      return value;
+   }
+
+   private static ByteBuffer buffer(int size) {
+      return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+   }
+
+   private static int dosTime(long time) {
+      Calendar calendar = Calendar.getInstance();
+      calendar.setTimeInMillis(time);
+      int year = calendar.get(Calendar.YEAR);
+      if (year < 1980) {
+         return (1 << 21) | (1 << 16);
+      }
+      return (year - 1980) << 25
+            | (calendar.get(Calendar.MONTH) + 1) << 21
+            | calendar.get(Calendar.DAY_OF_MONTH) << 16
+            | calendar.get(Calendar.HOUR_OF_DAY) << 11
+            | calendar.get(Calendar.MINUTE) << 5
+            | calendar.get(Calendar.SECOND) >> 1;
+   }
+
+   private static class CountingOutputStream extends FilterOutputStream {
+
+      private long count;
+
+      CountingOutputStream(OutputStream out) {
+         super(out);
+      }
+
+      @Override
+      public void write(int b) throws IOException {
+         out.write(b);
+         count++;
+      }
+
+      @Override
+      public void write(byte[] bytes, int offset, int length) throws IOException {
+         out.write(bytes, offset, length);
+         count += length;
+      }
+   }
+}
@@ -0,0 +1,24 @@
+package com.vidal.handyWarup;
+
+import java.nio.file.Path;
+
+final class RelativePaths {
+
+   private RelativePaths() {
+   }
+
+   /**
+    * Resolves a relative path against a root that may belong to another file system,
+    * such as the root of a zip file system.
+    */
+   public static Path resolve(Path root, Path relative) {
+      if (root.getFileSystem() == relative.getFileSystem()) {
+         return root.resolve(relative);
+      }
+      Path result = root;
+      for (Path name : relative) {
+         result = result.resolve(name.toString());
+      }
+      return result;
+   }
+}
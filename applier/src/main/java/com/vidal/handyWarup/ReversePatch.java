@@ -0,0 +1,317 @@
+package com.vidal.handyWarup;
+
+import com.vidal.handyWarup.errors.ReversePatchException;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.Files.createTempDirectory;
+
+/**
+ * Builds, while an update is applied, the update that reverts it, so that rolling back costs as much
+ * as the update itself rather than a redeployment of the previous version.
+ *
+ * Before a command is executed, the pre-image of each of its targets is captured as {@link UndoJournal} backs it up:
+ * only the first modification of a path (or of one of its descendants) is captured, missing paths are captured
+ * as their topmost missing ancestor, and pre-images are hard linked whenever possible. When a path is captured after
+ * some of its descendants, their pre-images are folded into its own, so that captured paths are disjoint.
+ * Pre-images are compressed by a background writer while the update proceeds. Captures are reserved under a lock,
+ * but pre-images are copied outside of it, so that commands executed concurrently capture their paths in parallel.
+ *
+ * The reverse patch is then written with its text batch first, followed by the pre-images in batch order, so that
+ * it can be streamed as well: each captured path is removed if the update left it, then its pre-image is added back.
+ * It is written next to the pre-images, and only moved to its destination once the update has been committed.
+ */
+class ReversePatch implements AutoCloseable {
+
+   private static final String PAYLOADS = "pre-images";
+   private static final String WRITTEN = "reverse-patch.zip";
+
+   private final FsDeepCopy deepCopy;
+   private final FsDeepRemove deepRemove;
+   private final Path directory;
+   private final Path compressed;
+   private final RawZipWriter writer;
+   private final ExecutorService compression = Executors.newSingleThreadExecutor();
+   private final List<Capture> captures = new ArrayList<>();
+   private final Set<Path> recorded = new HashSet<>();
+   private final List<Future<?>> compressions = new ArrayList<>();
+   private boolean compressedClosed;
+
+   /**
+    * @param target updated target, next to which pre-images are kept until the reverse patch is written
+    * @param deepCopy captures pre-images, preferably by {@link FsDeepCopy#linking(java.util.concurrent.ForkJoinPool) linking} them
+    * @param deepRemove deletes the pre-images superseded by the capture of an ancestor, and the remaining ones on close
+    */
+   public ReversePatch(Path target, FsDeepCopy deepCopy, FsDeepRemove deepRemove) {
+      this.deepCopy = deepCopy;
+      this.deepRemove = deepRemove;
+      Path absolute = target.toAbsolutePath();
+      try {
+         this.directory = createTempDirectory(absolute.getParent(), "." + absolute.getFileName() + ".handy-warup-reverse-");
+         this.compressed = directory.resolve(PAYLOADS + ".zip");
+         this.writer = new RawZipWriter(compressed);
+      } catch (IOException e) {
+         throw new ReversePatchException("Could not start the reverse patch of " + target, e);
+      }
+   }
+
+   /**
+    * Captures the pre-images of the targets of a command, before it is executed.
+    *
+    * @param root root of the staged target
+    */
+   public void record(Command command, Path root) {
+      for (Path relative : command.targets()) {
+         Capture capture;
+         List<Capture> descendants;
+         synchronized (this) {
+            Path path = topmostMissingAncestor(root, relative.normalize());
+            if (isCovered(path)) {
+               continue;
+            }
+            capture = new Capture(captures.size(), path, exists(root.resolve(path)));
+            descendants = capture.saved ? supersede(capture) : Collections.<Capture>emptyList();
+            captures.add(capture);
+            recorded.add(path);
+         }
+         if (capture.saved) {
+            deepCopy.accept(root.resolve(capture.path), preImage(capture));
+            fold(capture, descendants);
+            synchronized (this) {
+               compressions.add(compression.submit(() -> {
+                  compress(capture);
+                  return null;
+               }));
+            }
+         }
+      }
+   }
+
+   /**
+    * Writes the reverse patch next to the pre-images, once every command has been executed.
+    *
+    * @param root root of the updated target, before it is committed
+    * @see #moveTo(File)
+    */
+   public synchronized void write(Path root) {
+      Path reversePatch = directory.resolve(WRITTEN);
+      try {
+         for (Future<?> pending : compressions) {
+            pending.get();
+         }
+         closeCompressed();
+         StringBuilder batch = new StringBuilder();
+         for (Capture capture : captures) {
+            if (capture.superseded) {
+               continue;
+            }
+            String path = slashed(capture.path);
+            if (exists(root.resolve(capture.path))) {
+               batch.append("rm --from=/").append(path).append('\n');
+            }
+            if (capture.saved) {
+               batch.append("add --from=/").append(PAYLOADS).append('/').append(capture.index).append(" --to=/").append(path).append('\n');
+            }
+         }
+         try (RawZipFile payloads = new RawZipFile(compressed);
+              RawZipWriter out = new RawZipWriter(reversePatch)) {
+            out.write(BatchParser.TEXT_BATCH, new ByteArrayInputStream(batch.toString().getBytes(UTF_8)), System.currentTimeMillis());
+            // pre-images are compressed in the order they were copied, not necessarily in batch order
+            Map<Integer, List<RawZipFile.Entry>> byCapture = new TreeMap<>();
+            for (RawZipFile.Entry entry : payloads.entries()) {
+               byCapture.computeIfAbsent(index(entry.name()), index -> new ArrayList<>()).add(entry);
+            }
+            for (Map.Entry<Integer, List<RawZipFile.Entry>> preImage : byCapture.entrySet()) {
+               if (!captures.get(preImage.getKey()).superseded) {
+                  for (RawZipFile.Entry entry : preImage.getValue()) {
+                     out.copy(payloads, entry);
+                  }
+               }
+            }
+         }
+      } catch (IOException e) {
+         throw new ReversePatchException("Could not write reverse patch " + reversePatch, e);
+      } catch (ExecutionException e) {
+         throw new ReversePatchException("Could not compress the pre-images of reverse patch " + reversePatch,
+               e.getCause() instanceof Exception ? (Exception) e.getCause() : e);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new ReversePatchException("Interrupted while writing reverse patch " + reversePatch, e);
+      }
+   }
+
+   /**
+    * Moves the {@link #write(Path) written} reverse patch to its destination, once the update has been committed.
+    * Unless it is moved, the reverse patch is deleted on close along with the pre-images.
+    *
+    * @param reversePatch file the reverse patch is moved to, replacing it if it exists
+    */
+   public synchronized void moveTo(File reversePatch) {
+      try {
+         Files.move(directory.resolve(WRITTEN), reversePatch.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      } catch (IOException e) {
+         throw new ReversePatchException("Could not move reverse patch to " + reversePatch, e);
+      }
+   }
+
+   /**
+    * Deletes the captured pre-images, and the reverse patch unless it has been moved to its destination.
+    */
+   @Override
+   public synchronized void close() {
+      compression.shutdownNow();
+      try {
+         compression.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+         closeCompressed();
+      } catch (IOException e) {
+         // the pre-images are deleted anyway
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      deepRemove.accept(directory);
+   }
+
+   private void closeCompressed() throws IOException {
+      if (!compressedClosed) {
+         compressedClosed = true;
+         writer.close();
+      }
+   }
+
+   /**
+    * @return the captures of the paths beneath a new capture, now superseded by it
+    */
+   private List<Capture> supersede(Capture capture) {
+      List<Capture> descendants = new ArrayList<>();
+      for (Capture descendant : captures) {
+         if (!descendant.superseded && descendant.path.startsWith(capture.path)) {
+            descendant.superseded = true;
+            descendants.add(descendant);
+         }
+      }
+      return descendants;
+   }
+
+   /**
+    * Folds the pre-images of the paths captured beneath a new capture into its own pre-image.
+    */
+   private void fold(Capture capture, List<Capture> descendants) {
+      for (Capture descendant : descendants) {
+         Path folded = preImage(capture).resolve(capture.path.relativize(descendant.path).toString());
+         if (exists(folded)) {
+            deepRemove.accept(folded);
+         }
+         if (descendant.saved) {
+            try {
+               Files.createDirectories(folded.getParent());
+            } catch (IOException e) {
+               throw new ReversePatchException("Could not capture the pre-image of " + capture.path, e);
+            }
+            deepCopy.accept(preImage(descendant), folded);
+         }
+      }
+   }
+
+   private void compress(Capture capture) throws IOException {
+      Path preImage = preImage(capture);
+      String name = PAYLOADS + "/" + capture.index;
+      if (!Files.isDirectory(preImage, LinkOption.NOFOLLOW_LINKS)) {
+         write(name, preImage);
+         return;
+      }
+      List<Path> tree;
+      try (Stream<Path> walk = Files.walk(preImage)) {
+         tree = walk.collect(Collectors.toList());
+      }
+      for (Path path : tree) {
+         String relative = slashed(preImage.relativize(path));
+         String entryName = relative.isEmpty() ? name : name + "/" + relative;
+         if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+            writer.write(entryName + "/", new ByteArrayInputStream(new byte[0]), Files.getLastModifiedTime(path).toMillis());
+         } else {
+            write(entryName, path);
+         }
+      }
+   }
+
+   private void write(String name, Path file) throws IOException {
+      try (InputStream in = Files.newInputStream(file)) {
+         writer.write(name, in, Files.getLastModifiedTime(file).toMillis());
+      }
+   }
+
+   private Path preImage(Capture capture) {
+      return directory.resolve(String.valueOf(capture.index));
+   }
+
+   private static int index(String entryName) {
+      int start = PAYLOADS.length() + 1;
+      int end = entryName.indexOf('/', start);
+      return Integer.parseInt(end < 0 ? entryName.substring(start) : entryName.substring(start, end));
+   }
+
+   private Path topmostMissingAncestor(Path root, Path path) {
+      Path result = path;
+      Path parent = path.getParent();
+      while (parent != null && !exists(root.resolve(parent))) {
+         result = parent;
+         parent = parent.getParent();
+      }
+      return result;
+   }
+
+   private boolean isCovered(Path path) {
+      for (Path current = path; current != null; current = current.getParent()) {
+         if (recorded.contains(current)) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   private static String slashed(Path path) {
+      return path.toString().replace(path.getFileSystem().getSeparator(), "/");
+   }
+
+   private static boolean exists(Path path) {
+      return Files.exists(path, LinkOption.NOFOLLOW_LINKS);
+   }
+
+   private static class Capture {
+      private final int index;
+      private final Path path;
+      private final boolean saved;
+      /**
+       * Whether the pre-image has been folded into the one of a path captured later.
+       */
+      private boolean superseded;
+
+      Capture(int index, Path path, boolean saved) {
+         this.index = index;
+         this.path = path;
+         this.saved = saved;
+      }
+   }
+}
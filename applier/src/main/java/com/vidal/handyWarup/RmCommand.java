@@ -1,16 +1,30 @@
 package com.vidal.handyWarup;
 
 import java.nio.file.Path;
+import java.util.Collection;
+
+import static java.util.Collections.singletonList;
 
 public class RmCommand implements Command {
    private final Path relative;
+   private final FsDeepRemove deepRemove;
 
    public RmCommand(Path relative) {
+      this(relative, new FsDeepRemove());
+   }
+
+   public RmCommand(Path relative, FsDeepRemove deepRemove) {
       this.relative = relative;
+      this.deepRemove = deepRemove;
    }
 
    @Override
    public void accept(Path sourceRoot, Path targetRoot) {
-      new FsDeepRemove().accept(targetRoot.resolve(relative));
+      deepRemove.accept(targetRoot.resolve(relative));
+   }
+
+   @Override
+   public Collection<Path> targets() {
+      return singletonList(relative);
    }
 }
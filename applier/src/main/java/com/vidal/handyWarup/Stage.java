@@ -0,0 +1,37 @@
+package com.vidal.handyWarup;
+
+import java.nio.file.Path;
+
+/**
+ * Working area in which the commands of a single update are executed.
+ */
+interface Stage {
+
+   /**
+    * @return root directory the commands must be applied to
+    */
+   Path root();
+
+   /**
+    * @return directory holding the state of the stage, from which an interrupted update can be resumed or rolled back
+    */
+   Path workspace();
+
+   /**
+    * Called before each command execution.
+    * Commands on disjoint paths may be executed concurrently, so implementations must be thread safe.
+    */
+   void beforeCommand(Command command);
+
+   /**
+    * Makes the executed commands visible in the target.
+    *
+    * @return the updated target
+    */
+   Path commit();
+
+   /**
+    * Reverts the target to its state prior to the update.
+    */
+   void rollback();
+}
@@ -0,0 +1,33 @@
+package com.vidal.handyWarup;
+
+/**
+ * How {@link HandyWarup} isolates the target while commands are executed.
+ */
+public enum Staging {
+
+   /**
+    * Commands run against a full copy of the target, which then replaces the original.
+    * Cost is proportional to the size of the target.
+    */
+   FULL_COPY,
+
+   /**
+    * Commands run in place, after the paths they touch have been backed up in an undo journal.
+    * Cost is proportional to the size of the patch.
+    */
+   TOUCHED_PATHS,
+
+   /**
+    * Commands run against a copy of the target made of hard links, which then replaces the original.
+    * Files are only copied when a command overwrites them, so cost is proportional to the number
+    * of files of the target rather than to their size.
+    */
+   HARD_LINKS,
+
+   /**
+    * {@link #FULL_COPY} or {@link #TOUCHED_PATHS}, whichever is estimated to be cheaper by {@link HandyWarup#plan planning}
+    * the update against the target first. The update is then opened before the target is staged, and conflicts
+    * make it fail before anything is copied.
+    */
+   AUTO
+}
@@ -0,0 +1,197 @@
+package com.vidal.handyWarup;
+
+import com.vidal.handyWarup.errors.ManifestMismatchException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Computes the current {@link Manifest} image of target paths, in parallel over a {@link ForkJoinPool}.
+ *
+ * Large files are hashed through memory mappings, small ones through a regular buffer; files of other
+ * file systems, such as the entries of a packed archive, are streamed.
+ * Entries of a nested archive are all hashed by the same task, which opens the archive once.
+ */
+class TargetHasher {
+
+   private static final long MAPPING_THRESHOLD = 1024 * 1024;
+   private static final long MAPPING_SIZE = 64 * 1024 * 1024;
+   private static final int BUFFER_SIZE = 64 * 1024;
+
+   private final ForkJoinPool pool;
+
+   public TargetHasher(ForkJoinPool pool) {
+      this.pool = pool;
+   }
+
+   /**
+    * @param root target root
+    * @param paths manifest paths, relative to the root
+    * @return image of each path
+    */
+   public Map<String, String> apply(Path root, Collection<String> paths) {
+      Map<String, List<String>> nestedEntries = new LinkedHashMap<>();
+      List<Runnable> tasks = new ArrayList<>();
+      Map<String, String> images = new ConcurrentHashMap<>();
+      for (String path : paths) {
+         int separator = path.indexOf(ArchiveCommand.SEPARATOR);
+         if (separator < 0) {
+            tasks.add(() -> images.put(path, image(root.resolve(path))));
+         } else {
+            nestedEntries.computeIfAbsent(path.substring(0, separator), archive -> new ArrayList<>()).add(path);
+         }
+      }
+      nestedEntries.forEach((archive, entries) ->
+            tasks.add(() -> images.putAll(nestedImages(root.resolve(archive), entries))));
+
+      try {
+         pool.submit(() -> tasks.parallelStream().forEach(Runnable::run)).join();
+      } catch (UncheckedIOException e) {
+         throw new ManifestMismatchException("Could not hash target files", e.getCause());
+      }
+      return images;
+   }
+
+   private static String image(Path path) {
+      if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+         return Manifest.DIRECTORY;
+      }
+      if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+         return Manifest.ABSENT;
+      }
+      if (path.getFileSystem() != FileSystems.getDefault()) {
+         // e.g. an entry of a packed WAR, which cannot be memory-mapped
+         return streamedImage(path);
+      }
+      try (FileChannel channel = FileChannel.open(path, READ)) {
+         MessageDigest digest = sha256();
+         long size = channel.size();
+         if (size >= MAPPING_THRESHOLD) {
+            for (long position = 0; position < size; position += MAPPING_SIZE) {
+               digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAPPING_SIZE, size - position)));
+            }
+         } else {
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+               // read until full
+            }
+            buffer.flip();
+            digest.update(buffer);
+         }
+         return hex(digest.digest());
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+   }
+
+   private static String streamedImage(Path path) {
+      MessageDigest digest = sha256();
+      try (InputStream in = Files.newInputStream(path)) {
+         byte[] buffer = new byte[BUFFER_SIZE];
+         int read;
+         while ((read = in.read(buffer)) > 0) {
+            digest.update(buffer, 0, read);
+         }
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+      return hex(digest.digest());
+   }
+
+   private static Map<String, String> nestedImages(Path archive, List<String> paths) {
+      Map<String, String> images = new LinkedHashMap<>();
+      if (!Files.isRegularFile(archive)) {
+         paths.forEach(path -> images.put(path, Manifest.ABSENT));
+         return images;
+      }
+      if (archive.getFileSystem() != FileSystems.getDefault()) {
+         // e.g. a jar within a packed WAR, which ZipFile cannot open
+         return streamedImages(archive, paths);
+      }
+      try (ZipFile zipFile = new ZipFile(archive.toFile())) {
+         byte[] buffer = new byte[BUFFER_SIZE];
+         for (String path : paths) {
+            ZipEntry entry = zipFile.getEntry(path.substring(path.indexOf(ArchiveCommand.SEPARATOR) + ArchiveCommand.SEPARATOR.length()));
+            if (entry == null) {
+               images.put(path, Manifest.ABSENT);
+               continue;
+            }
+            MessageDigest digest = sha256();
+            try (InputStream in = zipFile.getInputStream(entry)) {
+               int read;
+               while ((read = in.read(buffer)) > 0) {
+                  digest.update(buffer, 0, read);
+               }
+            }
+            images.put(path, hex(digest.digest()));
+         }
+         return images;
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+   }
+
+   private static Map<String, String> streamedImages(Path archive, List<String> paths) {
+      Map<String, String> images = new LinkedHashMap<>();
+      Map<String, String> byEntry = new HashMap<>();
+      paths.forEach(path -> byEntry.put(path.substring(path.indexOf(ArchiveCommand.SEPARATOR) + ArchiveCommand.SEPARATOR.length()), path));
+      try (ZipInputStream in = new ZipInputStream(Files.newInputStream(archive))) {
+         byte[] buffer = new byte[BUFFER_SIZE];
+         ZipEntry entry;
+         while ((entry = in.getNextEntry()) != null) {
+            String path = byEntry.get(entry.getName());
+            if (path == null) {
+               continue;
+            }
+            MessageDigest digest = sha256();
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+               digest.update(buffer, 0, read);
+            }
+            images.put(path, hex(digest.digest()));
+         }
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+      paths.forEach(path -> images.putIfAbsent(path, Manifest.ABSENT));
+      return images;
+   }
+
+   private static MessageDigest sha256() {
+      try {
+         return MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   private static String hex(byte[] bytes) {
+      StringBuilder result = new StringBuilder(bytes.length * 2);
+      for (byte b : bytes) {
+         result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return result.toString();
+   }
+}
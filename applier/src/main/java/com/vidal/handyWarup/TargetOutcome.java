@@ -0,0 +1,55 @@
+package com.vidal.handyWarup;
+
+import java.io.File;
+import java.util.Optional;
+
+/**
+ * Outcome of applying an update to one of several targets.
+ *
+ * @see HandyWarup#apply(File, java.util.Collection)
+ */
+public class TargetOutcome {
+
+   private final File target;
+   private final File updated;
+   private final RuntimeException failure;
+
+   private TargetOutcome(File target, File updated, RuntimeException failure) {
+      this.target = target;
+      this.updated = updated;
+      this.failure = failure;
+   }
+
+   static TargetOutcome updated(File target, File updated) {
+      return new TargetOutcome(target, updated, null);
+   }
+
+   static TargetOutcome failed(File target, RuntimeException failure) {
+      return new TargetOutcome(target, null, failure);
+   }
+
+   /**
+    * @return target the update was applied to, as specified
+    */
+   public File target() {
+      return target;
+   }
+
+   /**
+    * @return updated target, unless the update failed
+    */
+   public Optional<File> updated() {
+      return Optional.ofNullable(updated);
+   }
+
+   /**
+    * @return why the update failed, if it did: the target is then left as it was
+    */
+   public Optional<RuntimeException> failure() {
+      return Optional.ofNullable(failure);
+   }
+
+   public boolean succeeded() {
+      return failure == null;
+   }
+}
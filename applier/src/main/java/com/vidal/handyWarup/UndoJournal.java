@@ -0,0 +1,257 @@
+package com.vidal.handyWarup;
+
+import com.vidal.handyWarup.errors.JournalException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.Files.createTempDirectory;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Keeps a copy of every path of a target before it gets modified, so that the modifications can be undone.
+ *
+ * Only the pre-image of the first modification of a path is kept: later modifications of the same path
+ * (or of one of its descendants) are not recorded again.
+ * Each record is also appended to an on-disk journal, alongside the backed up files, so that the journal
+ * can be reopened after a crash. The journal lives next to the root whenever possible.
+ * Commands executed concurrently can be journaled: a record is reserved and appended under a lock, but its backup
+ * is copied outside of it, so that backups of independent paths proceed in parallel. A record is only appended once
+ * its backup is complete, and synced to disk before {@link #record(Path)} returns: concurrent records share the same sync.
+ */
+class UndoJournal {
+
+   private static final String LOG = "journal";
+   private static final String SAVED = "saved";
+   private static final String ABSENT = "absent";
+
+   private final Path root;
+   private final FsDeepCopy deepCopy;
+   private final FsDeepRemove deepRemove;
+   private final Path directory;
+   private final FileChannel log;
+   private final List<Entry> entries = new ArrayList<>();
+   private final Set<Path> recorded = new HashSet<>();
+   private final Object syncLock = new Object();
+   /**
+    * Index of the next backup: records may be appended out of order, leaving gaps after a crash.
+    */
+   private int nextIndex;
+   private volatile long written;
+   private long synced;
+
+   public UndoJournal(Path root, FsDeepCopy deepCopy, FsDeepRemove deepRemove) {
+      this(root, createDirectory(root), deepCopy, deepRemove);
+   }
+
+   private UndoJournal(Path root, Path directory, FsDeepCopy deepCopy, FsDeepRemove deepRemove) {
+      this.root = root;
+      this.deepCopy = deepCopy;
+      this.deepRemove = deepRemove;
+      this.directory = directory;
+      try {
+         this.log = FileChannel.open(directory.resolve(LOG), CREATE, WRITE, APPEND);
+      } catch (IOException e) {
+         throw new JournalException("Could not open undo journal " + directory, e);
+      }
+   }
+
+   /**
+    * Reopens the journal left in the specified directory by an interrupted update.
+    */
+   public static UndoJournal reopen(Path root, Path directory, FsDeepCopy deepCopy, FsDeepRemove deepRemove) {
+      UndoJournal journal = new UndoJournal(root, directory, deepCopy, deepRemove);
+      try {
+         String log = new String(Files.readAllBytes(directory.resolve(LOG)), UTF_8);
+         // an unterminated last record was not fully written, its path was not modified yet
+         for (String line : log.substring(0, log.lastIndexOf('\n') + 1).split("\n")) {
+            String[] fields = line.split(" ", 3);
+            if (fields.length < 3) {
+               continue;
+            }
+            Entry entry = new Entry(Integer.parseInt(fields[1]), Paths.get(fields[2]), SAVED.equals(fields[0]));
+            entry.journaled = true;
+            journal.entries.add(entry);
+            journal.nextIndex = Math.max(journal.nextIndex, entry.index + 1);
+            journal.recorded.add(entry.path);
+         }
+      } catch (IOException e) {
+         journal.close();
+         throw new JournalException("Could not read undo journal " + directory, e);
+      }
+      return journal;
+   }
+
+   /**
+    * @return directory holding the journal and its backups
+    */
+   public Path directory() {
+      return directory;
+   }
+
+   /**
+    * Backs up the specified path, or records its absence, before it gets modified.
+    *
+    * @param relative path relative to the journaled root
+    */
+   public void record(Path relative) {
+      Entry entry;
+      synchronized (this) {
+         Path path = topmostMissingAncestor(relative.normalize());
+         if (isCovered(path)) {
+            return;
+         }
+         entry = new Entry(nextIndex++, path, exists(root.resolve(path)));
+         entries.add(entry);
+         recorded.add(path);
+      }
+      if (entry.saved) {
+         deepCopy.accept(root.resolve(entry.path), backup(entry));
+      }
+      long sequence;
+      synchronized (this) {
+         append(entry);
+         entry.journaled = true;
+         sequence = ++written;
+      }
+      sync(sequence);
+   }
+
+   /**
+    * Restores every recorded path, most recent first.
+    * Paths whose backup failed are skipped: the command that was about to modify them was not executed.
+    */
+   public synchronized void rollback() {
+      for (int i = entries.size() - 1; i >= 0; i--) {
+         Entry entry = entries.get(i);
+         if (!entry.journaled) {
+            continue;
+         }
+         Path live = root.resolve(entry.path);
+         if (exists(live)) {
+            deepRemove.accept(live);
+         }
+         if (entry.saved) {
+            deepCopy.accept(backup(entry), live);
+         }
+      }
+   }
+
+   /**
+    * Deletes the journal and its backups.
+    */
+   public void discard() {
+      close();
+      deepRemove.accept(directory);
+   }
+
+   private void close() {
+      try {
+         log.close();
+      } catch (IOException e) {
+         throw new JournalException("Could not close undo journal", e);
+      }
+   }
+
+   private static Path createDirectory(Path root) {
+      Path absolute = root.toAbsolutePath();
+      Path parent = absolute.getParent();
+      if (parent != null) {
+         try {
+            return createTempDirectory(parent, "." + absolute.getFileName() + ".handy-warup-journal-");
+         } catch (IOException e) {
+            // parent is not writable, fall back to the default temporary directory
+         }
+      }
+      try {
+         return createTempDirectory("handy-warup-journal-" + new Date().getTime());
+      } catch (IOException e) {
+         throw new JournalException("Could not create undo journal", e);
+      }
+   }
+
+   private Path topmostMissingAncestor(Path path) {
+      Path result = path;
+      Path parent = path.getParent();
+      while (parent != null && !exists(root.resolve(parent))) {
+         result = parent;
+         parent = parent.getParent();
+      }
+      return result;
+   }
+
+   private boolean isCovered(Path path) {
+      for (Path current = path; current != null; current = current.getParent()) {
+         if (recorded.contains(current)) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   private Path backup(Entry entry) {
+      return directory.resolve(String.valueOf(entry.index));
+   }
+
+   private void append(Entry entry) {
+      ByteBuffer record = ByteBuffer.wrap(((entry.saved ? SAVED : ABSENT) + " " + entry.index + " " + entry.path + "\n").getBytes(UTF_8));
+      try {
+         while (record.hasRemaining()) {
+            log.write(record);
+         }
+      } catch (IOException e) {
+         throw new JournalException("Could not write to undo journal", e);
+      }
+   }
+
+   /**
+    * Makes sure the specified record is on disk, along with every record appended meanwhile.
+    */
+   private void sync(long sequence) {
+      synchronized (syncLock) {
+         if (synced >= sequence) {
+            return;
+         }
+         long appended = written;
+         try {
+            log.force(false);
+         } catch (IOException e) {
+            throw new JournalException("Could not sync undo journal", e);
+         }
+         synced = appended;
+      }
+   }
+
+   private static boolean exists(Path path) {
+      return Files.exists(path, LinkOption.NOFOLLOW_LINKS);
+   }
+
+   private static class Entry {
+      private final int index;
+      private final Path path;
+      private final boolean saved;
+      /**
+       * Whether the backup is complete and the record appended to the journal.
+       */
+      private boolean journaled;
+
+      public Entry(int index, Path path, boolean saved) {
+         this.index = index;
+         this.path = path;
+         this.saved = saved;
+      }
+   }
+}
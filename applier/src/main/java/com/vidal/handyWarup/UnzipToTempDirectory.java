@@ -7,11 +7,40 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
 import java.util.zip.ZipFile;
 
+/**
+ * Extracts an archive to a new temporary directory.
+ *
+ * Directories are all created first, from the central directory. Entries are then extracted concurrently
+ * over a {@link ForkJoinPool}, largest compressed entries first so that the last ones to finish are small.
+ * The CRC-32 of every entry is verified. Zip64 archives are extracted sequentially.
+ *
+ * Updates are applied straight from their archive, without extracting it; this class remains for the callers that
+ * explode a whole archive, such as a WAR to deploy, where extracting concurrently pays off on large archives.
+ */
 public class UnzipToTempDirectory implements Function<File, Path> {
 
+   private final ForkJoinPool pool;
+
+   public UnzipToTempDirectory() {
+      this(ForkJoinPool.commonPool());
+   }
+
+   public UnzipToTempDirectory(ForkJoinPool pool) {
+      this.pool = pool;
+   }
+
    @Override
    public Path apply(File file) {
       return toTemp(file);
@@ -19,16 +48,100 @@ public class UnzipToTempDirectory implements Function<File, Path> {
 
    private Path toTemp(File zip) {
       Path extractDir = tempDirectory();
+      try {
+         extract(zip, extractDir);
+      } catch (RuntimeException e) {
+         try {
+            new FsDeepRemove(pool).accept(extractDir);
+         } catch (RuntimeException cleanup) {
+            e.addSuppressed(cleanup);
+         }
+         throw e;
+      }
+      return extractDir;
+   }
 
+   private void extract(File zip, Path extractDir) {
+      RawZipFile zipFile;
+      try {
+         zipFile = new RawZipFile(zip.toPath());
+      } catch (IOException e) {
+         // e.g. a zip64 archive
+         extractSequentially(zip, extractDir);
+         return;
+      }
+      try (RawZipFile closed = zipFile) {
+         extractConcurrently(closed, extractDir);
+      } catch (IOException e) {
+         throw new UpdateUnzipException(e);
+      }
+   }
+
+   private void extractConcurrently(RawZipFile zipFile, Path extractDir) throws IOException {
+      SortedSet<Path> directories = new TreeSet<>();
+      List<RawZipFile.Entry> files = new ArrayList<>();
+      for (RawZipFile.Entry entry : zipFile.entries()) {
+         Path target = resolve(extractDir, entry.name());
+         if (entry.isDirectory()) {
+            directories.add(target);
+         } else {
+            directories.add(target.getParent());
+            files.add(entry);
+         }
+      }
+      for (Path directory : directories) {
+         Files.createDirectories(directory);
+      }
+
+      files.sort(Comparator.comparingLong((RawZipFile.Entry entry) -> entry.compressedSize).reversed());
+      AtomicInteger next = new AtomicInteger();
+      AtomicBoolean failed = new AtomicBoolean();
+      List<ForkJoinTask<?>> workers = new ArrayList<>();
+      for (int i = 0; i < Math.min(pool.getParallelism(), files.size()); i++) {
+         workers.add(pool.submit(() -> {
+            int index;
+            while (!failed.get() && (index = next.getAndIncrement()) < files.size()) {
+               RawZipFile.Entry entry = files.get(index);
+               try {
+                  extract(zipFile, entry, resolve(extractDir, entry.name()));
+               } catch (IOException | RuntimeException e) {
+                  failed.set(true);
+                  throw new UpdateUnzipException("Could not extract " + entry.name(), e);
+               }
+            }
+         }));
+      }
+      UpdateUnzipException failure = null;
+      for (ForkJoinTask<?> worker : workers) {
+         try {
+            worker.join();
+         } catch (UpdateUnzipException e) {
+            if (failure == null) {
+               failure = e;
+            }
+         }
+      }
+      if (failure != null) {
+         throw failure;
+      }
+   }
+
+   private static void extract(RawZipFile zipFile, RawZipFile.Entry entry, Path target) throws IOException {
+      try (InputStream in = zipFile.open(entry)) {
+         FileTransfer.copy(in, target);
+      }
+   }
+
+   private void extractSequentially(File zip, Path extractDir) {
       try (ZipFile zipFile = new ZipFile(zip)) {
          zipFile.stream()
                .filter(zE -> !zE.isDirectory())
                .forEachOrdered(zipEntry -> {
                   try (InputStream is = zipFile.getInputStream(zipEntry)) {
-                     Path target = extractDir.resolve(zipEntry.getName());
+                     Path target = resolve(extractDir, zipEntry.getName());
                      File file = target.toFile();
                      makeFileTree(file.getParentFile());
-                     Files.copy(is, target);
+                     FileTransfer.copy(is, target);
                   } catch (IOException e) {
                      throw new UpdateUnzipException(e);
                   }
@@ -36,8 +149,17 @@ public class UnzipToTempDirectory implements Function<File, Path> {
       } catch (IOException e) {
          throw new UpdateUnzipException("could not find diff file", e);
       }
+   }
 
-      return extractDir;
+   /**
+    * @throws UpdateUnzipException if the entry would be extracted outside of the directory
+    */
+   private static Path resolve(Path extractDir, String entryName) {
+      Path target = extractDir.resolve(entryName).normalize();
+      if (!target.startsWith(extractDir)) {
+         throw new UpdateUnzipException("Entry " + entryName + " is outside of the archive");
+      }
+      return target;
    }
 
    private void makeFileTree(File file) {
@@ -0,0 +1,134 @@
+package com.vidal.handyWarup;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Dry run of an update against a target: what applying it would write, delete and back up,
+ * and the commands that would fail.
+ *
+ * Costs are estimated in bytes written, creating or deleting a file costing as much as writing {@value #FILE_COST} bytes
+ * and syncing an undo journal record as much as writing {@value #SYNC_COST} bytes.
+ *
+ * @see HandyWarup#plan(java.io.File, java.io.File)
+ */
+public class UpdatePlan {
+
+   static final long FILE_COST = 16 * 1024;
+   static final long SYNC_COST = 256 * 1024;
+
+   private final Path target;
+   private final List<String> conflicts = new ArrayList<>();
+   int commands;
+   int skippedCommands;
+   long filesToWrite;
+   long bytesToWrite;
+   long filesToDelete;
+   long bytesToDelete;
+   long touchedPaths;
+   long filesToBackUp;
+   long bytesToBackUp;
+   long targetFiles;
+   long targetBytes;
+
+   UpdatePlan(Path target) {
+      this.target = target;
+   }
+
+   void conflict(int line, String conflict) {
+      conflicts.add(line < 0 ? conflict : "line " + (line + 1) + ": " + conflict);
+   }
+
+   public Path target() {
+      return target;
+   }
+
+   /**
+    * @return commands that would fail, and why
+    */
+   public List<String> conflicts() {
+      return Collections.unmodifiableList(conflicts);
+   }
+
+   public boolean hasConflicts() {
+      return !conflicts.isEmpty();
+   }
+
+   /**
+    * @return number of commands to execute, leaving out the ones the manifest of the update finds already applied
+    */
+   public int commands() {
+      return commands;
+   }
+
+   /**
+    * @return bytes written to the target by the commands, whatever the staging
+    */
+   public long bytesToWrite() {
+      return bytesToWrite;
+   }
+
+   /**
+    * @return files written to the target by the commands, whatever the staging
+    */
+   public long filesToWrite() {
+      return filesToWrite;
+   }
+
+   public long bytesToDelete() {
+      return bytesToDelete;
+   }
+
+   public long filesToDelete() {
+      return filesToDelete;
+   }
+
+   /**
+    * @param staging {@link Staging#FULL_COPY}, {@link Staging#TOUCHED_PATHS} or {@link Staging#HARD_LINKS}
+    * @return estimated cost of staging the target, then committing or rolling back the stage, on top of the commands
+    */
+   public long stagingCost(Staging staging) {
+      switch (staging) {
+         case TOUCHED_PATHS:
+            return bytesToBackUp + 2 * filesToBackUp * FILE_COST + touchedPaths * SYNC_COST;
+         case HARD_LINKS:
+            return 2 * targetFiles * FILE_COST;
+         case FULL_COPY:
+            return targetBytes + 2 * targetFiles * FILE_COST;
+         default:
+            throw new IllegalArgumentException("No cost for " + staging);
+      }
+   }
+
+   /**
+    * @return the cheapest of {@link Staging#FULL_COPY} and {@link Staging#TOUCHED_PATHS}
+    */
+   public Staging staging() {
+      return stagingCost(Staging.TOUCHED_PATHS) < stagingCost(Staging.FULL_COPY) ? Staging.TOUCHED_PATHS : Staging.FULL_COPY;
+   }
+
+   /**
+    * @return a human readable report of the plan
+    */
+   public String report() {
+      StringBuilder report = new StringBuilder();
+      report.append(String.format(Locale.ROOT, "Plan for %s: %d commands (%d already applied)%n", target, commands, skippedCommands));
+      report.append(String.format(Locale.ROOT, "  write    %8d files %,15d bytes%n", filesToWrite, bytesToWrite));
+      report.append(String.format(Locale.ROOT, "  delete   %8d files %,15d bytes%n", filesToDelete, bytesToDelete));
+      report.append(String.format(Locale.ROOT, "  target   %8d files %,15d bytes%n", targetFiles, targetBytes));
+      for (Staging staging : new Staging[]{Staging.FULL_COPY, Staging.TOUCHED_PATHS, Staging.HARD_LINKS}) {
+         report.append(String.format(Locale.ROOT, "  %-13s staging cost %,15d%n", staging, stagingCost(staging)));
+      }
+      report.append("  recommended staging: ").append(staging());
+      conflicts.forEach(conflict -> report.append(String.format("%n  conflict: %s", conflict)));
+      return report.toString();
+   }
+
+   @Override
+   public String toString() {
+      return report();
+   }
+}
@@ -0,0 +1,269 @@
+package com.vidal.handyWarup;
+
+import com.vidal.handyWarup.errors.NoUpdateDescriptorException;
+import com.vidal.handyWarup.errors.UpdateUnzipException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Update read in a single forward pass from a stream, e.g. while it is being downloaded.
+ *
+ * The batch must be the first entry of the update, optionally followed by the manifest, then by the payloads
+ * of the commands in batch order, as written by the generator and by {@link PatchComposer}.
+ * Payloads are spooled to a directory next to the target as they arrive. The payload of a command is complete once
+ * the payload of a later command starts arriving: the command is then executed while the rest of the update
+ * is still being received.
+ *
+ * Once every payload has been received, the rest of the stream (the central directory of the update) is read to its end
+ * and discarded, so that the sender can complete. The stream is not read further when the update fails.
+ */
+class UpdateStream implements AutoCloseable {
+
+   private final InputStream update;
+   private final ZipInputStream in;
+   private final Path spool;
+   private final FsDeepRemove deepRemove;
+   private final List<BatchParser.Line> lines;
+   private final Optional<Manifest> manifest;
+   private final Map<String, Command> payloads = new HashMap<>();
+   private final Set<Command> expecting = Collections.newSetFromMap(new IdentityHashMap<>());
+   private ZipEntry next;
+
+   private UpdateStream(InputStream update, ZipInputStream in, Path spool, FsDeepRemove deepRemove,
+                        List<BatchParser.Line> lines, Optional<Manifest> manifest, ZipEntry next) {
+      this.update = update;
+      this.in = in;
+      this.spool = spool;
+      this.deepRemove = deepRemove;
+      this.lines = lines;
+      this.manifest = manifest;
+      this.next = next;
+   }
+
+   /**
+    * Reads the batch and the manifest of an update. The stream is not closed.
+    *
+    * @param target target of the update, next to which payloads are spooled
+    * @throws NoUpdateDescriptorException if the update does not start with its batch
+    */
+   public static UpdateStream open(InputStream update, Path target, FsDeepRemove deepRemove) {
+      Path spool = spoolDirectory(target);
+      try {
+         ZipInputStream in = new ZipInputStream(update);
+         ZipEntry batch = in.getNextEntry();
+         if (batch == null || !BatchParser.isBatch(batch.getName())) {
+            throw new NoUpdateDescriptorException("could not find patch file at the start of the update");
+         }
+         spool(in, batch, spool);
+         List<BatchParser.Line> lines = BatchParser.lines(null, spool);
+         ZipEntry next = in.getNextEntry();
+         if (next != null && Manifest.FILE_NAME.equals(next.getName())) {
+            spool(in, next, spool);
+            next = in.getNextEntry();
+         }
+         return new UpdateStream(update, in, spool, deepRemove, lines, Manifest.read(spool), next);
+      } catch (IOException | RuntimeException e) {
+         try {
+            deepRemove.accept(spool);
+         } catch (RuntimeException cleanup) {
+            e.addSuppressed(cleanup);
+         }
+         if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+         }
+         throw new UpdateUnzipException("Could not read update", e);
+      }
+   }
+
+   /**
+    * @return directory the payloads are spooled to, as they arrive
+    */
+   public Path root() {
+      return spool;
+   }
+
+   public List<BatchParser.Line> lines() {
+      return lines;
+   }
+
+   public Optional<Manifest> manifest() {
+      return manifest;
+   }
+
+   /**
+    * Registers the payload of a command: a file or a directory of the update.
+    */
+   public void expect(Command command, String payload) {
+      payloads.putIfAbsent(trimSlashes(payload), command);
+      expecting.add(command);
+   }
+
+   /**
+    * Receives the rest of the update while the specified commands are executed, each one once its payload
+    * has arrived. Payloads of the other commands are skipped.
+    *
+    * @param commands commands to execute, in batch order
+    * @throws UpdateUnzipException if the update cannot be read, or if its payloads are not in batch order
+    */
+   public void execute(List<Command> commands, Consumer<Command> action, ForkJoinPool pool) {
+      Map<Command, Integer> indexes = new IdentityHashMap<>();
+      Map<Command, CompletableFuture<Void>> arrivals = new IdentityHashMap<>();
+      for (Command command : commands) {
+         indexes.put(command, indexes.size());
+         arrivals.put(command, new CompletableFuture<>());
+      }
+      commands.stream()
+            .filter(command -> !expecting.contains(command))
+            .forEach(command -> arrivals.get(command).complete(null));
+
+      AtomicBoolean stopped = new AtomicBoolean();
+      ExecutorService receiver = Executors.newSingleThreadExecutor();
+      try {
+         CompletableFuture<Void> received = CompletableFuture.runAsync(() -> {
+            try {
+               receive(commands, indexes, arrivals, stopped);
+            } catch (RuntimeException e) {
+               arrivals.values().forEach(arrival -> arrival.completeExceptionally(e));
+               throw e;
+            }
+         }, receiver);
+         try {
+            new BatchExecutor(pool).execute(commands, arrivals::get, action);
+         } catch (RuntimeException e) {
+            stopped.set(true);
+            try {
+               received.join();
+            } catch (CompletionException receiving) {
+               // commands waiting for their payload failed with the same cause
+            }
+            throw e;
+         }
+         received.join();
+      } catch (CompletionException e) {
+         if (e.getCause() instanceof RuntimeException) {
+            throw (RuntimeException) e.getCause();
+         }
+         throw e;
+      } finally {
+         receiver.shutdown();
+      }
+   }
+
+   /**
+    * Deletes the spooled payloads. The stream is not closed.
+    */
+   @Override
+   public void close() {
+      deepRemove.accept(spool);
+   }
+
+   private void receive(List<Command> commands,
+                        Map<Command, Integer> indexes,
+                        Map<Command, CompletableFuture<Void>> arrivals,
+                        AtomicBoolean stopped) {
+      int arrived = 0;
+      BitSet seen = new BitSet(commands.size());
+      try {
+         for (ZipEntry entry = next; entry != null && !stopped.get(); entry = in.getNextEntry()) {
+            Command owner = owner(entry.getName());
+            if (owner == null || !indexes.containsKey(owner)) {
+               // payload of a command that is not executed
+               continue;
+            }
+            int index = indexes.get(owner);
+            if (index < arrived) {
+               throw new UpdateUnzipException("Entry " + entry.getName() + " comes after the payload of a later command: "
+                     + "the update cannot be streamed");
+            }
+            for (; arrived < index; arrived++) {
+               // a payload that has not been seen yet is either missing or out of order: wait for the end
+               if (seen.get(arrived)) {
+                  arrivals.get(commands.get(arrived)).complete(null);
+               }
+            }
+            seen.set(index);
+            spool(in, entry, spool);
+         }
+         next = null;
+         if (!stopped.get()) {
+            drain();
+         }
+      } catch (IOException e) {
+         throw new UpdateUnzipException("Could not read update", e);
+      }
+      arrivals.values().forEach(arrival -> arrival.complete(null));
+   }
+
+   /**
+    * Reads what follows the last entry, so that a sender writing to a pipe is not left with its central directory unsent.
+    */
+   private void drain() throws IOException {
+      byte[] buffer = new byte[8192];
+      while (update.read(buffer) >= 0) {
+         // discarded
+      }
+   }
+
+   /**
+    * @return the command whose payload contains the specified entry, if any
+    */
+   private Command owner(String entryName) {
+      String path = trimSlashes(entryName);
+      while (true) {
+         Command owner = payloads.get(path);
+         int separator = path.lastIndexOf('/');
+         if (owner != null || separator < 0) {
+            return owner;
+         }
+         path = path.substring(0, separator);
+      }
+   }
+
+   private static void spool(ZipInputStream in, ZipEntry entry, Path spool) throws IOException {
+      Path target = spool.resolve(entry.getName()).normalize();
+      if (!target.startsWith(spool) || target.equals(spool)) {
+         throw new UpdateUnzipException("Entry " + entry.getName() + " is outside of the archive");
+      }
+      if (entry.isDirectory()) {
+         Files.createDirectories(target);
+         return;
+      }
+      Files.createDirectories(target.getParent());
+      FileTransfer.copy(in, target);
+   }
+
+   private static String trimSlashes(String path) {
+      int start = path.startsWith("/") ? 1 : 0;
+      int end = path.endsWith("/") ? path.length() - 1 : path.length();
+      return start < end ? path.substring(start, end) : "";
+   }
+
+   private static Path spoolDirectory(Path target) {
+      Path absolute = target.toAbsolutePath();
+      try {
+         return Files.createTempDirectory(absolute.getParent(), "." + absolute.getFileName() + ".handy-warup-stream-");
+      } catch (IOException e) {
+         throw new UpdateUnzipException(e.getMessage(), e);
+      }
+   }
+}
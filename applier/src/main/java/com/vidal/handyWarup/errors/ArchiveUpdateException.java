@@ -0,0 +1,14 @@
+package com.vidal.handyWarup.errors;
+
+import java.io.IOException;
+
+public class ArchiveUpdateException extends HandyWarupException {
+
+   public ArchiveUpdateException(String message) {
+      super(message);
+   }
+
+   public ArchiveUpdateException(String message, IOException cause) {
+      super(message, cause);
+   }
+}
@@ -0,0 +1,14 @@
+package com.vidal.handyWarup.errors;
+
+import java.io.IOException;
+
+public class DeltaPatchException extends HandyWarupException {
+
+   public DeltaPatchException(String message) {
+      super(message);
+   }
+
+   public DeltaPatchException(String message, IOException cause) {
+      super(message, cause);
+   }
+}
@@ -6,6 +6,10 @@ public class HandyWarupException extends RuntimeException {
       super(message, cause);
    }
 
+   public HandyWarupException(String message, Error cause) {
+      super(message, cause);
+   }
+
    public HandyWarupException(String message) {
       super(message);
    }
@@ -0,0 +1,10 @@
+package com.vidal.handyWarup.errors;
+
+import java.io.IOException;
+
+public class JournalException extends HandyWarupException {
+
+   public JournalException(String message, IOException cause) {
+      super(message, cause);
+   }
+}
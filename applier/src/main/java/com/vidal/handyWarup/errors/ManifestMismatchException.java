@@ -0,0 +1,14 @@
+package com.vidal.handyWarup.errors;
+
+import java.io.IOException;
+
+public class ManifestMismatchException extends HandyWarupException {
+
+   public ManifestMismatchException(String message) {
+      super(message);
+   }
+
+   public ManifestMismatchException(String message, IOException cause) {
+      super(message, cause);
+   }
+}
@@ -0,0 +1,8 @@
+package com.vidal.handyWarup.errors;
+
+public class ReversePatchException extends HandyWarupException {
+
+   public ReversePatchException(String message, Exception cause) {
+      super(message, cause);
+   }
+}
@@ -0,0 +1,10 @@
+package com.vidal.handyWarup.errors;
+
+import java.io.IOException;
+
+public class TargetCommitException extends HandyWarupException {
+
+   public TargetCommitException(String message, IOException cause) {
+      super(message, cause);
+   }
+}
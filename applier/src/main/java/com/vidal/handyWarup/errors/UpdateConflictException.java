@@ -0,0 +1,8 @@
+package com.vidal.handyWarup.errors;
+
+public class UpdateConflictException extends HandyWarupException {
+
+   public UpdateConflictException(String message) {
+      super(message);
+   }
+}
@@ -1,14 +1,16 @@
 package com.vidal.handyWarup.errors;
 
-import java.io.IOException;
-
 public class UpdateUnzipException extends HandyWarupException {
 
    public UpdateUnzipException(Exception cause) {
       super(cause);
    }
 
-   public UpdateUnzipException(String message, IOException cause) {
+   public UpdateUnzipException(String message, Exception cause) {
+      super(message, cause);
+   }
+
+   public UpdateUnzipException(String message, Error cause) {
       super(message, cause);
    }
 
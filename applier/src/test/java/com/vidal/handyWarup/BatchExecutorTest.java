@@ -0,0 +1,125 @@
+package com.vidal.handyWarup;
+
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+public class BatchExecutorTest {
+
+   @Test
+   public void commands_on_disjoint_paths_should_be_independent() {
+      List<Set<Integer>> dependencies = BatchExecutor.dependencies(commands("a/x", "a/y", "b"));
+
+      assertThat(dependencies).hasSize(3);
+      dependencies.forEach(dependency -> assertThat(dependency).isEmpty());
+   }
+
+   @Test
+   public void command_beneath_an_earlier_command_target_should_depend_on_it() {
+      List<Set<Integer>> dependencies = BatchExecutor.dependencies(commands("a", "a/b/c", "a/d"));
+
+      assertThat(dependencies.get(1)).containsOnly(0);
+      assertThat(dependencies.get(2)).containsOnly(0);
+   }
+
+   @Test
+   public void command_above_earlier_command_targets_should_depend_on_all_of_them() {
+      List<Set<Integer>> dependencies = BatchExecutor.dependencies(commands("a/x", "a/y", "b", "a", "a/z"));
+
+      assertThat(dependencies.get(3)).containsOnly(0, 1);
+      assertThat(dependencies.get(4)).containsOnly(3);
+   }
+
+   @Test
+   public void command_on_the_same_path_should_depend_on_the_previous_one() {
+      List<Set<Integer>> dependencies = BatchExecutor.dependencies(commands("a/./b", "a/b", "a/b"));
+
+      assertThat(dependencies.get(1)).containsOnly(0);
+      assertThat(dependencies.get(2)).containsOnly(1);
+   }
+
+   @Test
+   public void command_on_the_root_should_depend_on_everything() {
+      List<Set<Integer>> dependencies = BatchExecutor.dependencies(commands("a", "b/c", "", "d"));
+
+      assertThat(dependencies.get(2)).containsOnly(0, 1);
+      assertThat(dependencies.get(3)).containsOnly(2);
+   }
+
+   @Test
+   public void dependent_commands_should_run_in_batch_order() {
+      List<Command> commands = new ArrayList<>();
+      for (int i = 0; i < 200; i++) {
+         commands.add(command("dir" + (i % 10) + "/file" + i));
+         commands.add(command("dir" + (i % 10)));
+      }
+      List<Command> executed = Collections.synchronizedList(new ArrayList<>());
+
+      new BatchExecutor(new ForkJoinPool(8)).execute(commands, executed::add);
+
+      assertThat(executed).containsOnlyElementsOf(commands).hasSameSizeAs(commands);
+      for (int i = 0; i < 10; i++) {
+         String directory = "dir" + i;
+         List<Command> sameDirectory = executed.stream()
+               .filter(command -> command.targets().iterator().next().startsWith(directory))
+               .collect(toList());
+         assertThat(sameDirectory).isEqualTo(commands.stream()
+               .filter(command -> command.targets().iterator().next().startsWith(directory))
+               .collect(toList()));
+      }
+   }
+
+   @Test
+   public void should_not_start_commands_once_one_has_failed() {
+      AtomicInteger executed = new AtomicInteger();
+      List<Command> commands = commands("a", "a/b", "a/b/c");
+
+      try {
+         new BatchExecutor(new ForkJoinPool(2)).execute(commands, command -> {
+            executed.incrementAndGet();
+            if (command == commands.get(1)) {
+               throw new IllegalStateException("boom");
+            }
+         });
+         fail("execution should fail");
+      } catch (IllegalStateException expected) {
+         assertThat(expected).hasMessage("boom");
+      }
+      assertThat(executed.get()).isEqualTo(2);
+   }
+
+   private static List<Command> commands(String... targets) {
+      return Arrays.stream(targets).map(BatchExecutorTest::command).collect(toList());
+   }
+
+   private static Command command(String target) {
+      return new Command() {
+         @Override
+         public Collection<Path> targets() {
+            return Collections.singletonList(Paths.get(target));
+         }
+
+         @Override
+         public void accept(Path sourceRoot, Path targetRoot) {
+         }
+
+         @Override
+         public String toString() {
+            return target;
+         }
+      };
+   }
+}
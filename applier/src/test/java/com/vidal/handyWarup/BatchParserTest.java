@@ -0,0 +1,51 @@
+package com.vidal.handyWarup;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BatchParserTest {
+
+   @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+   @Test
+   public void text_and_binary_batches_should_decode_non_ascii_paths_alike() throws IOException {
+      Path text = folder.newFolder().toPath();
+      Files.write(text.resolve(BatchParser.TEXT_BATCH), "add --from=/héllo wörld.txt --to=/dïr/héllo.txt\n".getBytes(UTF_8));
+      Path binary = folder.newFolder().toPath();
+      Files.write(binary.resolve(BatchParser.BINARY_BATCH), binaryBatch(BatchParser.ADD, "héllo wörld.txt", "dïr/héllo.txt"));
+
+      List<BatchParser.Line> textLines = BatchParser.lines(null, text);
+      List<BatchParser.Line> binaryLines = BatchParser.lines(null, binary);
+
+      assertThat(textLines).hasSize(1);
+      assertThat(binaryLines).hasSize(1);
+      assertThat(textLines.get(0).source).isEqualTo("héllo wörld.txt").isEqualTo(binaryLines.get(0).source);
+      assertThat(textLines.get(0).targets).containsExactly("dïr/héllo.txt").isEqualTo(binaryLines.get(0).targets);
+   }
+
+   private static byte[] binaryBatch(Object... records) {
+      ByteArrayOutputStream batch = new ByteArrayOutputStream();
+      batch.write(BatchParser.MAGIC, 0, BatchParser.MAGIC.length);
+      for (Object record : records) {
+         if (record instanceof Integer) {
+            batch.write((Integer) record);
+         } else {
+            byte[] bytes = record.toString().getBytes(UTF_8);
+            batch.write(bytes.length);
+            batch.write(bytes, 0, bytes.length);
+         }
+      }
+      batch.write(BatchParser.END);
+      return batch.toByteArray();
+   }
+}
@@ -0,0 +1,127 @@
+package com.vidal.handyWarup;
+
+import com.vidal.handyWarup.errors.DeltaPatchException;
+import com.vidal.handyWarup.generator.DeltaEncoder;
+import org.assertj.core.api.Assertions;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Random;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+public class DeltaDecoderTest {
+
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   @Rule
+   public ExpectedException thrown = ExpectedException.none();
+
+   private DeltaEncoder encoder = new DeltaEncoder();
+   private DeltaDecoder decoder = new DeltaDecoder();
+
+   @Test
+   public void rebuilds_slightly_modified_binary_content() throws IOException {
+      byte[] source = randomBytes(200_000, 42);
+      byte[] target = new byte[source.length + 100];
+      System.arraycopy(source, 0, target, 0, 50_000);
+      System.arraycopy(randomBytes(100, 7), 0, target, 50_000, 100);
+      System.arraycopy(source, 50_000, target, 50_100, 150_000);
+      target[180_000] ^= 0x55;
+
+      byte[] delta = encoder.apply(source, target);
+
+      assertThat(delta.length).isLessThan(1_000);
+      assertThat(decode(source, delta)).isEqualTo(target);
+   }
+
+   @Test
+   public void rebuilds_content_sharing_nothing_with_its_source() throws IOException {
+      byte[] source = "short".getBytes(UTF_8);
+      byte[] target = randomBytes(1_000, 3);
+
+      assertThat(decode(source, encoder.apply(source, target))).isEqualTo(target);
+   }
+
+   @Test
+   public void rebuilds_empty_content() throws IOException {
+      byte[] source = randomBytes(1_000, 3);
+      byte[] target = new byte[0];
+
+      assertThat(decode(source, encoder.apply(source, target))).isEqualTo(target);
+   }
+
+   @Test
+   public void rejects_delta_computed_against_another_source() throws IOException {
+      byte[] delta = encoder.apply(randomBytes(1_000, 1), randomBytes(1_000, 2));
+
+      thrown.expect(DeltaPatchException.class);
+      thrown.expectMessage("Delta does not apply to");
+      decode(randomBytes(999, 1), delta);
+   }
+
+   @Test
+   public void rejects_source_of_expected_length_but_other_content_before_writing() throws IOException {
+      byte[] delta = encoder.apply(randomBytes(1_000, 1), randomBytes(1_000, 2));
+      Path target = folder.newFile().toPath();
+      byte[] other = randomBytes(1_000, 3);
+      Files.write(target, other);
+      Path deltaFile = folder.newFile().toPath();
+      Files.write(deltaFile, delta);
+
+      try {
+         decoder.accept(deltaFile, target);
+         Assertions.fail("the delta should not have been applied");
+      } catch (DeltaPatchException e) {
+         assertThat(e).hasMessageContaining("does not match the checksum of the delta source");
+      }
+      assertThat(target).hasBinaryContent(other);
+      assertThat(folder.getRoot().list()).containsOnly(target.getFileName().toString(), deltaFile.getFileName().toString());
+   }
+
+   @Test
+   public void keeps_permissions_of_patched_file() throws IOException {
+      byte[] source = randomBytes(1_000, 1);
+      Path target = folder.newFile().toPath();
+      Files.write(target, source);
+      assumeTrue(Files.getFileAttributeView(target, PosixFileAttributeView.class) != null);
+      Set<PosixFilePermission> permissions = PosixFilePermissions.fromString("rwxr-x---");
+      Files.setPosixFilePermissions(target, permissions);
+      Path deltaFile = folder.newFile().toPath();
+      Files.write(deltaFile, encoder.apply(source, randomBytes(1_000, 2)));
+
+      decoder.accept(deltaFile, target);
+
+      assertThat(target).hasBinaryContent(randomBytes(1_000, 2));
+      assertThat(Files.getPosixFilePermissions(target)).isEqualTo(permissions);
+   }
+
+   private byte[] decode(byte[] source, byte[] delta) throws IOException {
+      Path target = folder.newFile().toPath();
+      Path deltaFile = folder.newFile().toPath();
+      Files.write(target, source);
+      Files.write(deltaFile, delta);
+
+      decoder.accept(deltaFile, target);
+
+      return Files.readAllBytes(target);
+   }
+
+   private static byte[] randomBytes(int length, long seed) {
+      byte[] bytes = new byte[length];
+      new Random(seed).nextBytes(bytes);
+      return bytes;
+   }
+}
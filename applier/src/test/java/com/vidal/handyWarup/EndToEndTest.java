@@ -1,16 +1,30 @@
 package com.vidal.handyWarup;
 
-import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.assertj.core.api.Assertions.assertThat;
-import static org.junit.Assume.assumeTrue;
 
+import com.vidal.handyWarup.errors.ManifestMismatchException;
+import com.vidal.handyWarup.generator.HandyWarupGenerator;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URISyntaxException;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.Arrays;
-import java.util.Locale;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 import org.assertj.core.api.Assertions;
 import org.junit.Rule;
 import org.junit.Test;
@@ -34,25 +48,336 @@ public class EndToEndTest {
 
    @Test
    public void generating_a_diff_and_applying_the_diff_should_result_to_original_directory() throws Exception {
-      assumeTrue(matchesOs("linux"));
+      File newWarFile = Zip.zipAndGet("/newWar", folder);
+      File oldWarFile = Zip.zipAndGet("/oldWar", folder);
+
+      File diff = new HandyWarupGenerator().generate(newWarFile, oldWarFile, folder.newFile("handy-warup-diff.zip"));
+      File unzippedOldWar = unzip(oldWarFile);
+
+      patch.apply(diff, unzippedOldWar);
+
+      assertThatFileTreesAreEqual(unzippedOldWar, unzip(newWarFile));
+   }
+
+   @Test
+   public void generated_batch_should_be_compatible_with_the_bash_generator_one() throws Exception {
+      File newWarFile = Zip.zipAndGet("/newWar", folder);
+      File oldWarFile = Zip.zipAndGet("/oldWar", folder);
+
+      File diff = new HandyWarupGenerator().generate(newWarFile, oldWarFile, folder.newFile("handy-warup-diff.zip"));
+
+      try (ZipFile zipFile = new ZipFile(diff)) {
+         assertThat(zipFile.entries().nextElement().getName()).isEqualTo("batch.warup");
+         assertThat(zipFile.getInputStream(zipFile.getEntry("batch.warup")))
+               .hasSameContentAs(EndToEndTest.class.getResourceAsStream("/diff/batch.warup"));
+      }
+   }
+
+   @Test
+   public void generating_a_diff_with_binary_batch_and_applying_the_diff_should_result_to_original_directory() throws Exception {
+      File newWarFile = Zip.zipAndGet("/newWar", folder);
+      File oldWarFile = Zip.zipAndGet("/oldWar", folder);
+
+      File diff = new HandyWarupGenerator().withBinaryBatch(true)
+            .generate(newWarFile, oldWarFile, folder.newFile("handy-warup-diff.zip"));
+      File unzippedOldWar = unzip(oldWarFile);
+
+      assertThat(patch.accepts(diff)).isTrue();
+      patch.apply(diff, unzippedOldWar);
+
+      try (ZipFile zipFile = new ZipFile(diff)) {
+         assertThat(zipFile.getEntry("batch.warup")).isNull();
+         assertThat(zipFile.getEntry("batch.warupb").getMethod()).isEqualTo(ZipEntry.STORED);
+      }
+      assertThatFileTreesAreEqual(unzippedOldWar, unzip(newWarFile));
+   }
+
+   @Test
+   public void generating_a_diff_with_deltas_and_applying_the_diff_should_result_to_original_directory() throws Exception {
+      File oldWarFolder = folder.newFolder();
+      File newWarFolder = folder.newFolder();
+      byte[] content = new byte[64 * 1024];
+      new Random(42).nextBytes(content);
+      Files.write(new File(oldWarFolder, "lib.jar").toPath(), content);
+      content[1000] ^= 0x42;
+      Files.write(new File(newWarFolder, "lib.jar").toPath(), content);
+      File oldWarFile = zip(oldWarFolder);
+      File newWarFile = zip(newWarFolder);
+
+      File diff = new HandyWarupGenerator().withDeltas(true)
+            .generate(newWarFile, oldWarFile, folder.newFile("handy-warup-diff.zip"));
+      File unzippedOldWar = unzip(oldWarFile);
+
+      patch.apply(diff, unzippedOldWar);
+
+      assertThat(diff.length()).isLessThan(1024);
+      assertThatFileTreesAreEqual(unzippedOldWar, newWarFolder);
+   }
+
+   @Test
+   public void generating_a_diff_with_nested_archives_should_only_ship_modified_entries() throws Exception {
+      Map<String, byte[]> oldEntries = new LinkedHashMap<>();
+      oldEntries.put("META-INF/MANIFEST.MF", "Manifest-Version: 1.0\n".getBytes(UTF_8));
+      oldEntries.put("a/", new byte[0]);
+      for (int i = 0; i < 20; i++) {
+         oldEntries.put("a/C" + i + ".class", classLike(i, 1));
+      }
+      Map<String, byte[]> newEntries = new LinkedHashMap<>(oldEntries);
+      newEntries.put("a/C3.class", classLike(3, 2));
+      newEntries.remove("a/C7.class");
+      newEntries.put("b/D.class", classLike(42, 1));
+      File oldWarFolder = folder.newFolder();
+      File newWarFolder = folder.newFolder();
+      Files.copy(Zip.zipEntries(oldEntries, folder).toPath(), new File(oldWarFolder, "lib.jar").toPath());
+      Files.copy(Zip.zipEntries(newEntries, folder).toPath(), new File(newWarFolder, "lib.jar").toPath());
+      File oldWarFile = zip(oldWarFolder);
+      File newWarFile = zip(newWarFolder);
+
+      File diff = new HandyWarupGenerator().withNestedArchives(true)
+            .generate(newWarFile, oldWarFile, folder.newFile("handy-warup-diff.zip"));
+      File unzippedOldWar = unzip(oldWarFile);
+
+      patch.apply(diff, unzippedOldWar);
+
+      try (ZipFile zipFile = new ZipFile(diff)) {
+         assertThat(zipFile.getEntry("lib.jar")).isNull();
+         assertThat(zipFile.getEntry("lib.jar!/a/C3.class")).isNotNull();
+      }
+      File patchedJar = new File(unzippedOldWar, "lib.jar");
+      assertThat(entries(patchedJar)).containsOnlyKeys(newEntries.keySet().toArray(new String[0]));
+      entries(patchedJar).forEach((name, content) -> assertThat(content).isEqualTo(newEntries.get(name)));
+      try (ZipFile patched = new ZipFile(patchedJar);
+           ZipFile original = new ZipFile(new File(oldWarFolder, "lib.jar"))) {
+         assertThat(patched.getEntry("a/C4.class").getCompressedSize())
+               .isEqualTo(original.getEntry("a/C4.class").getCompressedSize());
+         assertThat(patched.entries().nextElement().getName()).isEqualTo("META-INF/MANIFEST.MF");
+      }
+   }
+
+   @Test
+   public void generating_a_diff_with_deduplication_should_ship_duplicated_files_once() throws Exception {
+      byte[] asset = new byte[16 * 1024];
+      new Random(7).nextBytes(asset);
+      Map<String, byte[]> oldEntries = new LinkedHashMap<>();
+      oldEntries.put("index.html", "<html/>".getBytes(UTF_8));
+      oldEntries.put("module-a/readme.txt", "a".getBytes(UTF_8));
+      Map<String, byte[]> newEntries = new LinkedHashMap<>(oldEntries);
+      newEntries.put("index.html", asset);
+      newEntries.put("logo.png", asset);
+      newEntries.put("module-a/static/logo.png", asset);
+      newEntries.put("module-b/static/logo.png", asset);
+      newEntries.put("module-b/static/other.png", "other".getBytes(UTF_8));
+      File oldWarFile = Zip.zipEntries(oldEntries, folder);
+      File newWarFile = Zip.zipEntries(newEntries, folder);
+
+      File diff = new HandyWarupGenerator().withDeduplication(true)
+            .generate(newWarFile, oldWarFile, folder.newFile("handy-warup-diff.zip"));
+      File unzippedOldWar = unzip(oldWarFile);
+
+      patch.apply(diff, unzippedOldWar);
+
+      assertThat(diff.length()).isLessThan(asset.length + 4096);
+      assertThatFileTreesAreEqual(unzippedOldWar, unzip(newWarFile));
+   }
+
+   @Test
+   public void generating_a_diff_where_paths_change_type_and_applying_the_diff_should_result_to_original_directory() throws Exception {
+      Map<String, byte[]> oldEntries = new LinkedHashMap<>();
+      oldEntries.put("conf/app.properties", "a=1".getBytes(UTF_8));
+      oldEntries.put("conf/log.properties", "level=INFO".getBytes(UTF_8));
+      oldEntries.put("lib", "lib".getBytes(UTF_8));
+      Map<String, byte[]> newEntries = new LinkedHashMap<>();
+      newEntries.put("conf", "a=2".getBytes(UTF_8));
+      newEntries.put("lib/a.jar", "a".getBytes(UTF_8));
+      newEntries.put("lib/b.jar", "b".getBytes(UTF_8));
+      File oldWarFile = Zip.zipEntries(oldEntries, folder);
+      File newWarFile = Zip.zipEntries(newEntries, folder);
+
+      File diff = new HandyWarupGenerator().withManifest(true)
+            .generate(newWarFile, oldWarFile, folder.newFile("handy-warup-diff.zip"));
+      File unzippedOldWar = unzip(oldWarFile);
+
+      patch.apply(diff, unzippedOldWar);
+
+      assertThat(new File(unzippedOldWar, "conf")).isFile();
+      assertThat(new File(unzippedOldWar, "lib")).isDirectory();
+      assertThatFileTreesAreEqual(unzippedOldWar, unzip(newWarFile));
+   }
 
+   @Test
+   public void applying_a_diff_with_manifest_twice_should_result_to_original_directory() throws Exception {
       File newWarFile = Zip.zipAndGet("/newWar", folder);
       File oldWarFile = Zip.zipAndGet("/oldWar", folder);
 
-      int returnStatus = generateDiff(newWarFile, oldWarFile);
+      File diff = new HandyWarupGenerator().withManifest(true)
+            .generate(newWarFile, oldWarFile, folder.newFile("handy-warup-diff.zip"));
+      File unzippedOldWar = unzip(oldWarFile);
+
+      patch.apply(diff, unzippedOldWar);
+      patch.apply(diff, unzippedOldWar);
 
-      assertThat(returnStatus).isZero();
+      assertThatFileTreesAreEqual(unzippedOldWar, unzip(newWarFile));
+   }
+
+   @Test
+   public void applying_a_diff_with_manifest_to_a_partially_updated_directory_should_result_to_original_directory() throws Exception {
+      File newWarFile = Zip.zipAndGet("/newWar", folder);
+      File oldWarFile = Zip.zipAndGet("/oldWar", folder);
 
-      File diff = new File("target", "handy-warup-diff.zip");
+      File diff = new HandyWarupGenerator().withManifest(true)
+            .generate(newWarFile, oldWarFile, folder.newFile("handy-warup-diff.zip"));
       File unzippedOldWar = unzip(oldWarFile);
+      Files.copy(loadFileFromClasspath("/newWar/update.txt").toPath(), new File(unzippedOldWar, "update.txt").toPath(),
+            StandardCopyOption.REPLACE_EXISTING);
+      Files.delete(new File(unzippedOldWar, "old_file.txt").toPath());
 
       patch.apply(diff, unzippedOldWar);
 
       assertThatFileTreesAreEqual(unzippedOldWar, unzip(newWarFile));
    }
 
-   private boolean matchesOs(String os) {
-      return System.getProperty("os.name").toLowerCase(Locale.ENGLISH).startsWith(os);
+   @Test
+   public void applying_a_diff_with_manifest_to_an_unexpected_directory_should_fail() throws Exception {
+      File newWarFile = Zip.zipAndGet("/newWar", folder);
+      File oldWarFile = Zip.zipAndGet("/oldWar", folder);
+
+      File diff = new HandyWarupGenerator().withManifest(true)
+            .generate(newWarFile, oldWarFile, folder.newFile("handy-warup-diff.zip"));
+      File unzippedOldWar = unzip(oldWarFile);
+      File modified = new File(unzippedOldWar, "update.txt");
+      Files.write(modified.toPath(), "locally modified".getBytes(UTF_8));
+
+      try {
+         patch.apply(diff, unzippedOldWar);
+         Assertions.fail("patch should not apply");
+      } catch (ManifestMismatchException expected) {
+         assertThat(expected).hasMessageContaining("update.txt");
+         assertThat(modified).hasContent("locally modified");
+         assertThat(new File(unzippedOldWar, "old_file.txt")).exists();
+      }
+   }
+
+   @Test
+   public void applying_a_diff_with_nested_archives_and_manifest_twice_should_succeed() throws Exception {
+      Map<String, byte[]> oldEntries = new LinkedHashMap<>();
+      for (int i = 0; i < 10; i++) {
+         oldEntries.put("a/C" + i + ".class", classLike(i, 1));
+      }
+      Map<String, byte[]> newEntries = new LinkedHashMap<>(oldEntries);
+      newEntries.put("a/C3.class", classLike(3, 2));
+      newEntries.remove("a/C7.class");
+      File oldWarFolder = folder.newFolder();
+      File newWarFolder = folder.newFolder();
+      Files.copy(Zip.zipEntries(oldEntries, folder).toPath(), new File(oldWarFolder, "lib.jar").toPath());
+      Files.copy(Zip.zipEntries(newEntries, folder).toPath(), new File(newWarFolder, "lib.jar").toPath());
+
+      File diff = new HandyWarupGenerator().withNestedArchives(true).withManifest(true)
+            .generate(zip(newWarFolder), zip(oldWarFolder), folder.newFile("handy-warup-diff.zip"));
+      File target = folder.newFolder();
+      Files.copy(new File(oldWarFolder, "lib.jar").toPath(), new File(target, "lib.jar").toPath());
+
+      patch.apply(diff, target);
+      patch.apply(diff, target);
+
+      assertThat(entries(new File(target, "lib.jar"))).containsOnlyKeys(newEntries.keySet().toArray(new String[0]));
+   }
+
+   @Test
+   public void applying_a_diff_with_manifest_and_large_entries_to_a_packed_archive_should_result_to_new_archive() throws Exception {
+      Map<String, byte[]> oldEntries = new LinkedHashMap<>();
+      byte[] large = new byte[2 * 1024 * 1024];
+      new Random(7).nextBytes(large);
+      oldEntries.put("WEB-INF/lib/large.bin", large);
+      oldEntries.put("index.html", "old".getBytes(UTF_8));
+      Map<String, byte[]> newEntries = new LinkedHashMap<>(oldEntries);
+      byte[] modified = large.clone();
+      Arrays.fill(modified, 0, 1024, (byte) 0);
+      newEntries.put("WEB-INF/lib/large.bin", modified);
+      newEntries.put("index.html", "new".getBytes(UTF_8));
+      File oldWarFile = Zip.zipEntries(oldEntries, folder);
+      File newWarFile = Zip.zipEntries(newEntries, folder);
+      File diff = new HandyWarupGenerator().withManifest(true)
+            .generate(newWarFile, oldWarFile, folder.newFile("handy-warup-diff.zip"));
+      File target = new File(folder.newFolder(), "app.war");
+      Files.copy(oldWarFile.toPath(), target.toPath());
+      boolean posix = Files.getFileAttributeView(target.toPath(), PosixFileAttributeView.class) != null;
+      Set<PosixFilePermission> permissions = PosixFilePermissions.fromString("rw-r-----");
+      if (posix) {
+         Files.setPosixFilePermissions(target.toPath(), permissions);
+      }
+
+      patch.apply(diff, target);
+      patch.apply(diff, target);
+
+      Map<String, byte[]> actual = entries(target);
+      assertThat(actual).containsOnlyKeys(newEntries.keySet().toArray(new String[0]));
+      newEntries.forEach((name, content) -> assertThat(actual.get(name)).isEqualTo(content));
+      if (posix) {
+         assertThat(Files.getPosixFilePermissions(target.toPath())).isEqualTo(permissions);
+      }
+   }
+
+   @Test
+   public void applying_composed_diffs_should_result_to_last_directory() throws Exception {
+      Map<String, byte[]> v1 = new LinkedHashMap<>();
+      v1.put("a.txt", "one".getBytes(UTF_8));
+      v1.put("keep.txt", "keep".getBytes(UTF_8));
+      v1.put("dir/x.txt", "x".getBytes(UTF_8));
+      v1.put("gone.txt", "gone".getBytes(UTF_8));
+      Map<String, byte[]> v2 = new LinkedHashMap<>(v1);
+      v2.put("a.txt", "two".getBytes(UTF_8));
+      v2.remove("gone.txt");
+      byte[] added = new byte[16 * 1024];
+      new Random(1).nextBytes(added);
+      v2.put("new.txt", added);
+      v2.put("transient.txt", "transient".getBytes(UTF_8));
+      Map<String, byte[]> v3 = new LinkedHashMap<>(v2);
+      v3.put("a.txt", "three".getBytes(UTF_8));
+      byte[] patched = added.clone();
+      Arrays.fill(patched, 100, 110, (byte) 0);
+      v3.put("new.txt", patched);
+      v3.remove("transient.txt");
+      v3.remove("dir/x.txt");
+      File v1War = Zip.zipEntries(v1, folder);
+      File v2War = Zip.zipEntries(v2, folder);
+      File v3War = Zip.zipEntries(v3, folder);
+      HandyWarupGenerator generator = new HandyWarupGenerator().withDeltas(true).withManifest(true);
+      File first = generator.generate(v2War, v1War, folder.newFile("first.zip"));
+      File second = generator.generate(v3War, v2War, folder.newFile("second.zip"));
+
+      File composed = new PatchComposer().compose(Arrays.asList(first, second), folder.newFile("composed.zip"));
+      File target = unzip(v1War);
+      patch.apply(composed, target);
+
+      assertThatFileTreesAreEqual(target, unzip(v3War));
+      assertThat(new String(entries(composed).get("batch.warup"), UTF_8))
+            .doesNotContain("transient.txt")
+            .doesNotContain("patch --from=");
+   }
+
+   private static byte[] classLike(int seed, int version) {
+      byte[] content = new byte[4096];
+      new Random(seed).nextBytes(content);
+      Arrays.fill(content, 2048, content.length, (byte) version);
+      return content;
+   }
+
+   private static Map<String, byte[]> entries(File archive) throws IOException {
+      Map<String, byte[]> entries = new HashMap<>();
+      try (ZipFile zipFile = new ZipFile(archive)) {
+         for (ZipEntry entry : Collections.list(zipFile.entries())) {
+            try (InputStream in = zipFile.getInputStream(entry)) {
+               ByteArrayOutputStream content = new ByteArrayOutputStream();
+               byte[] buffer = new byte[4096];
+               int read;
+               while ((read = in.read(buffer)) > 0) {
+                  content.write(buffer, 0, read);
+               }
+               entries.put(entry.getName(), content.toByteArray());
+            }
+         }
+      }
+      return entries;
    }
 
    private File copyInTmp(String name) throws Exception {
@@ -61,20 +386,7 @@ public class EndToEndTest {
       return copyDirectory;
    }
 
-   private int generateDiff(File newWarFile, File oldWarFile) throws URISyntaxException, IOException, InterruptedException {
-      File mkdiff = loadGenerator();
-      return new ProcessBuilder(mkdiff.getAbsolutePath(),
-            "-n",
-            newWarFile.getAbsolutePath(),
-            "-o",
-            oldWarFile.getAbsolutePath(),
-            "-t",
-            "handy-warup-diff")
-            .start()
-            .waitFor();
-   }
-
-    private File unzip(File newWarFile) {
+   private File unzip(File newWarFile) {
       return new UnzipToTempDirectory().apply(newWarFile).toFile();
    }
 
@@ -100,15 +412,16 @@ public class EndToEndTest {
       }
    }
 
-   private File loadGenerator() throws IOException {
-      try (InputStream stream = EndToEndTest.class.getResourceAsStream("/mkdiff.sh")) {
-          File file = folder.newFile();
-          Files.copy(stream, file.toPath(), REPLACE_EXISTING);
-          if (!file.setExecutable(true)) {
-              Assertions.fail("Could not make generator executable!");
-          }
-          return file;
+   private File zip(File directory) throws IOException {
+      File archive = folder.newFile();
+      try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(archive.toPath()))) {
+         for (File file : directory.listFiles()) {
+            out.putNextEntry(new ZipEntry(file.getName()));
+            out.write(Files.readAllBytes(file.toPath()));
+            out.closeEntry();
+         }
       }
+      return archive;
    }
 
    private static File loadFileFromClasspath(String name) throws URISyntaxException {
@@ -8,13 +8,22 @@ import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.URI;
 import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Collections.singletonMap;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.hamcrest.CoreMatchers.isA;
+import static org.junit.Assume.assumeTrue;
 
 public class FsDeepCopyTest {
 
@@ -57,6 +66,82 @@ public class FsDeepCopyTest {
       deepCopy.accept(directory, target);
    }
 
+   @Test
+   public void copies_wide_and_deep_trees_in_parallel() throws IOException {
+      Path source = folder.newFolder("source").toPath();
+      for (int i = 0; i < 200; i++) {
+         Path directory = source.resolve("dir" + (i % 7)).resolve("nested" + (i % 3));
+         Files.createDirectories(directory);
+         write(directory.resolve("file" + i), "content #" + i);
+      }
+      Files.createDirectories(source.resolve("empty"));
+      Path target = folder.getRoot().toPath().resolve("target");
+
+      new FsDeepCopy(new ForkJoinPool(4)).accept(source, target);
+
+      try (Stream<Path> paths = Files.walk(source)) {
+         paths.forEach(path -> {
+            Path copy = target.resolve(source.relativize(path));
+            if (Files.isDirectory(path)) {
+               assertThat(copy).isDirectory();
+            } else {
+               assertThat(copy).hasSameContentAs(path);
+            }
+         });
+      }
+      try (Stream<Path> copies = Files.walk(target)) {
+         assertThat(copies.count()).isEqualTo(1 + 7 + 7 * 3 + 200 + 1);
+      }
+   }
+
+   @Test
+   public void transfers_large_files_keeping_their_permissions() throws IOException {
+      byte[] content = new byte[(int) FileTransfer.LARGE_FILE * 3 + 17];
+      new Random(42).nextBytes(content);
+      Path file = folder.newFile("large.bin").toPath();
+      Files.write(file, content);
+      assumeTrue(file.toFile().setExecutable(true));
+      Path target = folder.newFile("copy.bin").toPath();
+
+      deepCopy.accept(file, target);
+
+      assertThat(target).hasBinaryContent(content);
+      assertThat(target.toFile().canExecute()).isTrue();
+   }
+
+   @Test
+   public void extracts_files_from_another_file_system() throws IOException {
+      byte[] content = new byte[(int) FileTransfer.LARGE_FILE + 1];
+      new Random(42).nextBytes(content);
+      Path archive = folder.getRoot().toPath().resolve("archive.zip");
+      try (FileSystem zip = FileSystems.newFileSystem(URI.create("jar:" + archive.toUri()), singletonMap("create", "true"))) {
+         Files.createDirectories(zip.getPath("/dir"));
+         Files.write(zip.getPath("/dir/large.bin"), content);
+         Files.write(zip.getPath("/dir/small.txt"), "Hello world!".getBytes(UTF_8));
+         Path target = folder.getRoot().toPath().resolve("target");
+         Path overwritten = folder.newFile("overwritten.txt").toPath();
+         write(overwritten, "Bonjour le monde!");
+
+         deepCopy.accept(zip.getPath("/dir"), target);
+         deepCopy.accept(zip.getPath("/dir/small.txt"), overwritten);
+
+         assertThat(target.resolve("large.bin")).hasBinaryContent(content);
+         assertThat(target.resolve("small.txt")).hasContent("Hello world!");
+         assertThat(overwritten).hasContent("Hello world!");
+      }
+   }
+
+   @Test
+   public void gives_up_once_stopped() throws IOException {
+      Path source = folder.newFolder("source").toPath();
+      write(create(new File(source.toFile(), "foo")).toPath(), "Hello world!");
+      Path target = folder.getRoot().toPath().resolve("target");
+
+      thrown.expect(CancellationException.class);
+
+      deepCopy.stoppedBy(() -> true).accept(source, target);
+   }
+
    private void write(Path path, String string) throws IOException {
       Files.write(path, string.getBytes(UTF_8));
    }
@@ -1,21 +1,52 @@
 package com.vidal.handyWarup;
 
+import com.vidal.handyWarup.errors.ArchiveUpdateException;
 import com.vidal.handyWarup.errors.CommandParsingException;
+import com.vidal.handyWarup.errors.HandyWarupException;
 import com.vidal.handyWarup.errors.NoUpdateDescriptorException;
+import com.vidal.handyWarup.errors.PathDeletionException;
 import com.vidal.handyWarup.errors.TargetDirectoryPermissionException;
+import com.vidal.handyWarup.errors.UpdateConflictException;
 import com.vidal.handyWarup.errors.UpdateUnzipException;
+import com.vidal.handyWarup.generator.DeltaEncoder;
 import org.assertj.core.api.Assertions;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 import org.junit.rules.TemporaryFolder;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 import static com.vidal.handyWarup.Zip.zipAndGet;
+import static com.vidal.handyWarup.Zip.zipEntries;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.nio.file.Files.write;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonMap;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assume.assumeTrue;
 
@@ -57,6 +88,16 @@ public class HandyWarupTest {
       handyWarup.apply(diff, target);
    }
 
+   @Test
+   public void should_not_apply_diff_that_is_not_an_archive() throws Exception {
+      File diff = folder.newFile("diff.zip");
+      write(diff.toPath(), "not an archive".getBytes(UTF_8));
+      File target = folder.newFolder();
+
+      thrown.expect(UpdateUnzipException.class);
+      handyWarup.apply(diff, target);
+   }
+
    @Test
    public void should_not_apply_to_not_found_target() throws Exception {
       File diff = new File(getClass().getResource("/emptyDiff.zip").toURI());
@@ -178,6 +219,53 @@ public class HandyWarupTest {
       assertThat(patched.listFiles()).isEmpty();
    }
 
+   @Test
+   public void should_apply_directory_deletion_through_trash() throws Exception {
+      File diff = zipAndGet("/directoryDeletionDiff", folder);
+      File target = folder.newFolder();
+      File trash = folder.newFolder();
+      newDirectory(target, "old_dir/very/nested");
+      newFile(target, "old_dir/very/nested/hello.txt");
+
+      File patched = handyWarup.withTrash(trash).apply(diff, target);
+      handyWarup.awaitBackgroundRemovals();
+
+      assertThat(patched.listFiles()).isEmpty();
+      assertThat(trash.listFiles()).isEmpty();
+   }
+
+   @Test
+   public void should_apply_binary_delta_to_target_file() throws Exception {
+      byte[] oldContent = "Hello world! This file is about to be slightly modified.".getBytes(UTF_8);
+      byte[] newContent = "Hello world! This file has just been slightly modified.".getBytes(UTF_8);
+      Map<String, byte[]> entries = new LinkedHashMap<>();
+      entries.put("batch.warup", "patch --from=/hello.txt.delta --to=/hello.txt".getBytes(UTF_8));
+      entries.put("hello.txt.delta", new DeltaEncoder().apply(oldContent, newContent));
+      File diff = zipEntries(entries, folder);
+      File target = folder.newFolder();
+      write(new File(target, "hello.txt").toPath(), oldContent);
+
+      File patched = handyWarup.apply(diff, target);
+
+      assertThat(new File(patched, "hello.txt")).hasBinaryContent(newContent);
+      assertThat(patched.listFiles()).hasSize(1);
+   }
+
+   @Test
+   public void should_apply_binary_batch_to_target() throws Exception {
+      Map<String, byte[]> entries = new LinkedHashMap<>();
+      entries.put("batch.warupb", binaryBatch(1, "Hello.txt", "hello.txt", 3, "old.txt"));
+      entries.put("Hello.txt", "hello world!".getBytes(UTF_8));
+      File diff = zipEntries(entries, folder);
+      File target = folder.newFolder();
+      newFile(target, "old.txt");
+
+      File patched = handyWarup.apply(diff, target);
+
+      assertThat(new File(patched, "hello.txt")).hasContent("hello world!");
+      assertThat(patched.listFiles()).hasSize(1);
+   }
+
    @Test
    public void should_preserve_target_if_batch_execution_fails() throws IOException {
       File diff = zipAndGet("/brokenDiff", folder);
@@ -193,6 +281,629 @@ public class HandyWarupTest {
       assertThat(existingFile).hasContent("barbaz");
    }
 
+   @Test
+   public void should_stop_staging_and_leave_no_copy_if_batch_parsing_fails() throws IOException {
+      File diff = zipAndGet("/brokenDiff", folder);
+      File parent = folder.newFolder();
+      File target = new File(parent, "webapp");
+      newDirectory(parent, "webapp");
+      newFile(target, "foo.txt");
+
+      try {
+         handyWarup.apply(diff, target);
+         Assertions.fail("patch should not apply");
+      } catch (CommandParsingException expected) {
+         assertThat(parent.list()).containsExactly("webapp");
+         assertThat(target.list()).containsExactly("foo.txt");
+      }
+   }
+
+   @Test
+   public void should_swap_target_with_its_patched_copy() throws Exception {
+      File diff = zipAndGet("/fileReplacementDiff", folder);
+      File parent = folder.newFolder();
+      File target = new File(parent, "webapp");
+      newDirectory(parent, "webapp");
+      newFile(target, "hello.txt");
+
+      File patched = handyWarup.apply(diff, target);
+
+      assertThat(patched).isEqualTo(target.getAbsoluteFile());
+      assertThat(new File(patched, "hello.txt")).hasContent("hello world!");
+      assertThat(parent.listFiles())
+            .extracting(File::getName)
+            .containsOnly("webapp");
+   }
+
+   @Test
+   public void should_apply_file_replacement_in_place_with_touched_paths_staging() throws Exception {
+      File diff = zipAndGet("/fileReplacementDiff", folder);
+      File target = folder.newFolder();
+      newFile(target, "hello.txt");
+      newFile(target, "untouched.txt");
+
+      File patched = handyWarup.withStaging(Staging.TOUCHED_PATHS).apply(diff, target);
+
+      assertThat(patched).isEqualTo(target);
+      assertThat(patched.listFiles())
+            .extracting(File::getName)
+            .containsOnly("hello.txt", "untouched.txt");
+      assertThat(new File(patched, "hello.txt")).hasContent("hello world!");
+   }
+
+   @Test
+   public void should_apply_directory_deletion_in_place_with_touched_paths_staging() throws Exception {
+      File diff = zipAndGet("/directoryDeletionDiff", folder);
+      File target = folder.newFolder();
+      newDirectory(target, "old_dir/very/nested");
+      newFile(target, "old_dir/very/nested/hello.txt");
+
+      File patched = handyWarup.withStaging(Staging.TOUCHED_PATHS).apply(diff, target);
+
+      assertThat(patched.listFiles()).isEmpty();
+   }
+
+   @Test
+   public void should_roll_back_touched_paths_if_batch_execution_fails() throws IOException {
+      File diff = zipAndGet("/failingDiff", folder);
+      File target = folder.newFolder();
+      write(new File(target, "hello.txt").toPath(), "bonjour".getBytes(UTF_8));
+      newDirectory(target, "old_dir/nested");
+      write(new File(target, "old_dir/nested/foo.txt").toPath(), "barbaz".getBytes(UTF_8));
+
+      try {
+         handyWarup.withStaging(Staging.TOUCHED_PATHS).apply(diff, target);
+         Assertions.fail("patch should not apply");
+      } catch (PathDeletionException expected) {
+         assertThat(new File(target, "hello.txt")).hasContent("bonjour");
+         assertThat(new File(target, "old_dir/nested/foo.txt")).hasContent("barbaz");
+         assertThat(target.listFiles())
+               .extracting(File::getName)
+               .containsOnly("hello.txt", "old_dir");
+      }
+   }
+
+   @Test
+   public void should_apply_file_replacement_with_hard_links_staging() throws Exception {
+      File diff = zipAndGet("/fileReplacementDiff", folder);
+      File target = folder.newFolder();
+      newFile(target, "hello.txt");
+      write(new File(target, "untouched.txt").toPath(), "untouched".getBytes(UTF_8));
+
+      File patched = handyWarup.withStaging(Staging.HARD_LINKS).apply(diff, target);
+
+      assertThat(new File(patched, "hello.txt")).hasContent("hello world!");
+      assertThat(new File(patched, "untouched.txt")).hasContent("untouched");
+   }
+
+   @Test
+   public void should_not_alter_linked_target_files_if_batch_execution_fails() throws IOException {
+      File diff = zipAndGet("/failingDiff", folder);
+      File target = folder.newFolder();
+      write(new File(target, "hello.txt").toPath(), "bonjour".getBytes(UTF_8));
+      newDirectory(target, "old_dir");
+
+      try {
+         handyWarup.withStaging(Staging.HARD_LINKS).apply(diff, target);
+         Assertions.fail("patch should not apply");
+      } catch (PathDeletionException expected) {
+         assertThat(new File(target, "hello.txt")).hasContent("bonjour");
+         assertThat(new File(target, "old_dir")).isDirectory();
+      }
+   }
+
+   @Test
+   public void should_resume_interrupted_update_from_its_staged_copy() throws Exception {
+      Map<String, byte[]> entries = new LinkedHashMap<>();
+      entries.put("batch.warup", "rm --from=/old.txt\nadd --from=/Hello.txt --to=/hello.txt".getBytes(UTF_8));
+      entries.put("Hello.txt", "hello world!".getBytes(UTF_8));
+      File diff = zipEntries(entries, folder);
+      File parent = folder.newFolder();
+      File target = new File(parent, "webapp");
+      newDirectory(parent, "webapp");
+      newFile(target, "old.txt");
+      File copy = new File(parent, ".webapp.handy-warup-crashed");
+      newDirectory(parent, copy.getName());
+      newFile(copy, "resumed.txt");
+      ProgressJournal.create(target.toPath(), diff, Staging.FULL_COPY, copy.toPath()).close();
+
+      File patched = handyWarup.apply(diff, target);
+
+      assertThat(patched.list()).containsOnly("hello.txt", "resumed.txt");
+      assertThat(new File(patched, "hello.txt")).hasContent("hello world!");
+      assertThat(parent.list()).containsExactly("webapp");
+   }
+
+   @Test
+   public void should_not_apply_delta_again_to_file_patched_before_interruption() throws Exception {
+      byte[] oldContent = "Hello world! This file is about to be slightly modified.".getBytes(UTF_8);
+      byte[] newContent = "Hello world! This file has just been slightly modified.".getBytes(UTF_8);
+      Map<String, byte[]> entries = new LinkedHashMap<>();
+      entries.put("batch.warup", ("patch --from=/hello.txt.delta --to=/hello.txt\n"
+            + "add --from=/Other.txt --to=/other.txt").getBytes(UTF_8));
+      entries.put("hello.txt.delta", new DeltaEncoder().apply(oldContent, newContent));
+      entries.put("Other.txt", "other".getBytes(UTF_8));
+      File diff = zipEntries(entries, folder);
+      File parent = folder.newFolder();
+      File target = new File(parent, "webapp");
+      newDirectory(parent, "webapp");
+      write(new File(target, "hello.txt").toPath(), oldContent);
+      File copy = new File(parent, ".webapp.handy-warup-crashed");
+      newDirectory(parent, copy.getName());
+      // interrupted after the patch line, before its progress was synced to the journal
+      write(new File(copy, "hello.txt").toPath(), newContent);
+      ProgressJournal.create(target.toPath(), diff, Staging.FULL_COPY, copy.toPath()).close();
+
+      File patched = handyWarup.apply(diff, target);
+
+      assertThat(new File(patched, "hello.txt")).hasBinaryContent(newContent);
+      assertThat(new File(patched, "other.txt")).hasContent("other");
+      assertThat(parent.list()).containsExactly("webapp");
+   }
+
+   @Test
+   public void should_execute_again_command_interrupted_while_writing_its_file() throws Exception {
+      byte[] hello = "hello world!".getBytes(UTF_8);
+      byte[] other = "other".getBytes(UTF_8);
+      Map<String, byte[]> entries = new LinkedHashMap<>();
+      entries.put("batch.warup", ("add --from=/Other.txt --to=/other.txt\n"
+            + "add --from=/Hello.txt --to=/hello.txt").getBytes(UTF_8));
+      entries.put("manifest.warup", ("- " + sha256(other) + " other.txt\n"
+            + "- " + sha256(hello) + " hello.txt\n").getBytes(UTF_8));
+      entries.put("Other.txt", other);
+      entries.put("Hello.txt", hello);
+      File diff = zipEntries(entries, folder);
+      File parent = folder.newFolder();
+      File target = new File(parent, "webapp");
+      newDirectory(parent, "webapp");
+      File copy = new File(parent, ".webapp.handy-warup-crashed");
+      newDirectory(parent, copy.getName());
+      write(new File(copy, "other.txt").toPath(), other);
+      // interrupted while hello.txt was being written
+      write(new File(copy, "hello.txt").toPath(), "hello".getBytes(UTF_8));
+      ProgressJournal.create(target.toPath(), diff, Staging.FULL_COPY, copy.toPath()).close();
+      ApplySummary summary = new ApplySummary();
+
+      File patched = handyWarup.withListener(summary).apply(diff, target);
+
+      assertThat(new File(patched, "hello.txt")).hasBinaryContent(hello);
+      assertThat(new File(patched, "other.txt")).hasBinaryContent(other);
+      assertThat(summary.commandCount()).isEqualTo(1);
+      assertThat(parent.list()).containsExactly("webapp");
+   }
+
+   @Test
+   public void should_complete_interrupted_swap_with_staged_copy() throws Exception {
+      File diff = zipAndGet("/fileReplacementDiff", folder);
+      File parent = folder.newFolder();
+      File target = new File(parent, "webapp");
+      File copy = new File(parent, ".webapp.handy-warup-crashed");
+      newDirectory(parent, copy.getName());
+      write(new File(copy, "hello.txt").toPath(), "hello world!".getBytes(UTF_8));
+      ProgressJournal journal = ProgressJournal.create(target.toPath(), diff, Staging.FULL_COPY, copy.toPath());
+      journal.committing();
+      journal.close();
+      newDirectory(parent, ".webapp.handy-warup-previous-0");
+
+      assertThat(handyWarup.recover(target)).isTrue();
+
+      assertThat(new File(target, "hello.txt")).hasContent("hello world!");
+      assertThat(parent.list()).containsExactly("webapp");
+   }
+
+   @Test
+   public void should_roll_back_interrupted_in_place_update_of_another_patch() throws Exception {
+      File diff = zipAndGet("/fileReplacementDiff", folder);
+      File interruptedDiff = new File(getClass().getResource("/emptyDiff.zip").toURI());
+      File parent = folder.newFolder();
+      File target = new File(parent, "webapp");
+      newDirectory(parent, "webapp");
+      write(new File(target, "hello.txt").toPath(), "bonjour".getBytes(UTF_8));
+      newFile(target, "removed.txt");
+      JournalStage stage = new JournalStage(target.toPath(), new FsDeepCopy(), new FsDeepRemove());
+      stage.beforeCommand(new RmCommand(Paths.get("removed.txt")));
+      new RmCommand(Paths.get("removed.txt")).accept(null, target.toPath());
+      ProgressJournal.create(target.toPath(), interruptedDiff, Staging.TOUCHED_PATHS, stage.workspace()).close();
+
+      File patched = handyWarup.apply(diff, target);
+
+      assertThat(patched.list()).containsOnly("hello.txt", "removed.txt");
+      assertThat(new File(patched, "hello.txt")).hasContent("hello world!");
+      assertThat(parent.list()).containsExactly("webapp");
+   }
+
+   @Test
+   public void should_apply_update_to_several_targets() throws Exception {
+      File diff = zipAndGet("/fileReplacementDiff", folder);
+      List<File> targets = new ArrayList<>();
+      for (int i = 0; i < 3; i++) {
+         File target = folder.newFolder();
+         newFile(target, "hello.txt");
+         targets.add(target);
+      }
+
+      List<TargetOutcome> outcomes = handyWarup.withTargetConcurrency(2).apply(diff, targets);
+
+      assertThat(outcomes).extracting(TargetOutcome::target).containsExactlyElementsOf(targets);
+      for (TargetOutcome outcome : outcomes) {
+         assertThat(outcome.succeeded()).isTrue();
+         assertThat(new File(outcome.updated().get(), "hello.txt")).hasContent("hello world!");
+      }
+   }
+
+   @Test
+   public void should_report_failures_of_each_target_independently() throws Exception {
+      File diff = zipAndGet("/fileReplacementDiff", folder);
+      File updated = folder.newFolder();
+      newFile(updated, "hello.txt");
+      File missing = new File(folder.getRoot(), "missing");
+
+      List<TargetOutcome> outcomes = handyWarup.apply(diff, asList(missing, updated));
+
+      assertThat(outcomes.get(0).succeeded()).isFalse();
+      assertThat(outcomes.get(0).failure().get()).isInstanceOf(TargetDirectoryPermissionException.class);
+      assertThat(outcomes.get(1).succeeded()).isTrue();
+      assertThat(new File(updated, "hello.txt")).hasContent("hello world!");
+   }
+
+   @Test
+   public void should_report_phases_commands_and_files_to_listener() throws Exception {
+      File diff = zipAndGet("/fileAdditionDiff", folder);
+      File target = folder.newFolder();
+      write(new File(target, "kept.txt").toPath(), "kept".getBytes(UTF_8));
+      ApplySummary summary = new ApplySummary();
+
+      handyWarup.withListener(summary).apply(diff, target);
+
+      assertThat(summary.phaseNanos(ApplyPhase.STAGE)).isPositive();
+      assertThat(summary.phaseNanos(ApplyPhase.OPEN)).isPositive();
+      assertThat(summary.phaseNanos(ApplyPhase.EXECUTE)).isPositive();
+      assertThat(summary.phaseNanos(ApplyPhase.COMMIT)).isPositive();
+      assertThat(summary.phaseNanos(ApplyPhase.ROLLBACK)).isZero();
+      assertThat(summary.commandCount()).isEqualTo(1);
+      assertThat(summary.copiedBytes()).isEqualTo("kept".length());
+      assertThat(summary.extractedBytes()).isEqualTo("hello world!".length());
+      assertThat(summary.deletedBytes()).isEqualTo("kept".length());
+      assertThat(summary.report()).contains("AddCommand");
+   }
+
+   @Test
+   public void should_plan_update_without_modifying_target() throws Exception {
+      File diff = zipAndGet("/fileReplacementDiff", folder);
+      File target = folder.newFolder();
+      newFile(target, "hello.txt");
+      for (int i = 0; i < 20; i++) {
+         newFile(target, "untouched" + i + ".txt");
+      }
+
+      UpdatePlan plan = handyWarup.plan(diff, target);
+
+      assertThat(plan.hasConflicts()).isFalse();
+      assertThat(plan.commands()).isEqualTo(1);
+      assertThat(plan.bytesToWrite()).isEqualTo("hello world!".length());
+      assertThat(plan.staging()).isEqualTo(Staging.TOUCHED_PATHS);
+      assertThat(new File(target, "hello.txt")).hasContent("");
+      assertThat(folder.getRoot().list()).containsOnly(diff.getName(), target.getName());
+   }
+
+   @Test
+   public void should_report_conflicts_of_planned_update() throws Exception {
+      Map<String, byte[]> entries = new LinkedHashMap<>();
+      entries.put("batch.warup", ("add --from=/missing.txt --to=/added.txt\n"
+            + "rm --from=/absent.txt\n"
+            + "add --from=/hello.txt --to=/dir/hello.txt\n"
+            + "rm --from=/dir/hello.txt").getBytes(UTF_8));
+      entries.put("hello.txt", "hello world!".getBytes(UTF_8));
+      File diff = zipEntries(entries, folder);
+      File target = folder.newFolder();
+
+      UpdatePlan plan = handyWarup.plan(diff, target);
+
+      assertThat(plan.conflicts()).containsExactly(
+            "line 1: missing source missing.txt in the update",
+            "line 2: nothing to remove at absent.txt");
+   }
+
+   @Test
+   public void should_plan_patch_of_file_beneath_directory_added_earlier() throws Exception {
+      byte[] oldContent = "Hello world! This file is about to be slightly modified.".getBytes(UTF_8);
+      byte[] newContent = "Hello world! This file has just been slightly modified.".getBytes(UTF_8);
+      Map<String, byte[]> entries = new LinkedHashMap<>();
+      entries.put("batch.warup", ("add --from=/lib --to=/lib\n"
+            + "patch --from=/hello.txt.delta --to=/lib/hello.txt").getBytes(UTF_8));
+      entries.put("lib/hello.txt", oldContent);
+      entries.put("hello.txt.delta", new DeltaEncoder().apply(oldContent, newContent));
+      File diff = zipEntries(entries, folder);
+      File target = folder.newFolder();
+
+      UpdatePlan plan = handyWarup.plan(diff, target);
+
+      assertThat(plan.conflicts()).isEmpty();
+      assertThat(new File(handyWarup.apply(diff, target), "lib/hello.txt")).hasBinaryContent(newContent);
+   }
+
+   @Test
+   public void should_fail_before_staging_if_update_conflicts_with_auto_staging() throws Exception {
+      Map<String, byte[]> entries = new LinkedHashMap<>();
+      entries.put("batch.warup", "rm --from=/absent.txt".getBytes(UTF_8));
+      File diff = zipEntries(entries, folder);
+      File target = folder.newFolder();
+      newFile(target, "hello.txt");
+
+      try {
+         handyWarup.withStaging(Staging.AUTO).apply(diff, target);
+         Assertions.fail("conflict expected");
+      } catch (UpdateConflictException e) {
+         assertThat(e).hasMessageContaining("nothing to remove at absent.txt");
+      }
+      assertThat(target.list()).containsExactly("hello.txt");
+      assertThat(folder.getRoot().list()).containsOnly(diff.getName(), target.getName());
+   }
+
+   @Test
+   public void should_apply_file_replacement_with_auto_staging() throws Exception {
+      File diff = zipAndGet("/fileReplacementDiff", folder);
+      File target = folder.newFolder();
+      newFile(target, "hello.txt");
+
+      File patched = handyWarup.withStaging(Staging.AUTO).apply(diff, target);
+
+      assertThat(patched).isEqualTo(target.getAbsoluteFile());
+      assertThat(new File(patched, "hello.txt")).hasContent("hello world!");
+   }
+
+   @Test
+   public void should_apply_update_while_it_is_streamed() throws Exception {
+      Map<String, byte[]> entries = new LinkedHashMap<>();
+      entries.put("batch.warup", ("add --from=/new_dir --to=/new_dir\n"
+            + "rm --from=/old.txt\n"
+            + "replace --from=/hello.txt --to=/hello.txt\n").getBytes(UTF_8));
+      entries.put("new_dir/", new byte[0]);
+      entries.put("new_dir/new.txt", "new".getBytes(UTF_8));
+      entries.put("hello.txt", "hello world!".getBytes(UTF_8));
+      File diff = zipEntries(entries, folder);
+      File target = folder.newFolder();
+      newFile(target, "hello.txt");
+      newFile(target, "old.txt");
+      PipedOutputStream sender = new PipedOutputStream();
+      PipedInputStream received = new PipedInputStream(sender, 64);
+      ExecutorService sending = Executors.newSingleThreadExecutor();
+      Future<Long> sent = sending.submit(() -> {
+         try (PipedOutputStream out = sender) {
+            return Files.copy(diff.toPath(), out);
+         }
+      });
+
+      File patched;
+      try {
+         patched = handyWarup.apply(received, target);
+         assertThat(sent.get()).isEqualTo(diff.length());
+      } finally {
+         sending.shutdownNow();
+      }
+
+      assertThat(patched).isEqualTo(target.getAbsoluteFile());
+      assertThat(new File(patched, "new_dir/new.txt")).hasContent("new");
+      assertThat(new File(patched, "hello.txt")).hasContent("hello world!");
+      assertThat(new File(patched, "old.txt")).doesNotExist();
+   }
+
+   @Test
+   public void should_not_apply_streamed_update_that_does_not_start_with_its_batch() throws Exception {
+      Map<String, byte[]> entries = new LinkedHashMap<>();
+      entries.put("hello.txt", "hello world!".getBytes(UTF_8));
+      entries.put("batch.warup", "replace --from=/hello.txt --to=/hello.txt\n".getBytes(UTF_8));
+      File diff = zipEntries(entries, folder);
+      File target = folder.newFolder();
+
+      thrown.expect(NoUpdateDescriptorException.class);
+      try (InputStream in = Files.newInputStream(diff.toPath())) {
+         handyWarup.apply(in, target);
+      }
+   }
+
+   @Test
+   public void should_not_apply_streamed_update_whose_payloads_are_not_in_batch_order() throws Exception {
+      Map<String, byte[]> entries = new LinkedHashMap<>();
+      entries.put("batch.warup", ("add --from=/a.txt --to=/a.txt\n"
+            + "add --from=/b.txt --to=/b.txt\n").getBytes(UTF_8));
+      entries.put("b.txt", "b".getBytes(UTF_8));
+      entries.put("a.txt", "a".getBytes(UTF_8));
+      File diff = zipEntries(entries, folder);
+      File target = folder.newFolder();
+
+      try (InputStream in = Files.newInputStream(diff.toPath())) {
+         handyWarup.apply(in, target);
+         Assertions.fail("the update should not have been applied");
+      } catch (HandyWarupException e) {
+         assertThat(e).hasMessageContaining("cannot be streamed");
+      }
+      assertThat(target.list()).isEmpty();
+   }
+
+   @Test
+   public void should_apply_update_to_packed_archive_copying_unchanged_entries_as_is() throws Exception {
+      byte[] oldContent = "Hello world! This file is about to be slightly modified.".getBytes(UTF_8);
+      byte[] newContent = "Hello world! This file has just been slightly modified.".getBytes(UTF_8);
+      Map<String, byte[]> entries = new LinkedHashMap<>();
+      entries.put("batch.warup", ("replace --from=/hello.txt --to=/hello.txt\n"
+            + "rm --from=/old\n"
+            + "add --from=/new_dir --to=/new_dir\n"
+            + "patch --from=/patched.txt.delta --to=/patched.txt\n").getBytes(UTF_8));
+      entries.put("hello.txt", "hello world!".getBytes(UTF_8));
+      entries.put("new_dir/", new byte[0]);
+      entries.put("new_dir/new.txt", "new".getBytes(UTF_8));
+      entries.put("patched.txt.delta", new DeltaEncoder().apply(oldContent, newContent));
+      File diff = zipEntries(entries, folder);
+      File war = folder.newFile("app.war");
+      try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(war.toPath()))) {
+         // unchanged entries would shrink if they were recompressed
+         out.setLevel(Deflater.NO_COMPRESSION);
+         writeEntry(out, "kept.txt", "kept kept kept kept kept kept kept kept".getBytes(UTF_8));
+         writeEntry(out, "hello.txt", new byte[0]);
+         writeEntry(out, "old/", new byte[0]);
+         writeEntry(out, "old/a.txt", "a".getBytes(UTF_8));
+         writeEntry(out, "patched.txt", oldContent);
+      }
+      long keptSize;
+      try (ZipFile zipFile = new ZipFile(war)) {
+         keptSize = zipFile.getEntry("kept.txt").getCompressedSize();
+      }
+
+      File patched = handyWarup.apply(diff, war);
+
+      assertThat(patched).isEqualTo(war.getAbsoluteFile());
+      try (ZipFile zipFile = new ZipFile(patched)) {
+         List<String> names = new ArrayList<>();
+         zipFile.stream().forEach(entry -> names.add(entry.getName()));
+         assertThat(names).containsExactly("kept.txt", "hello.txt", "patched.txt", "new_dir/", "new_dir/new.txt");
+         assertThat(zipFile.getEntry("kept.txt").getCompressedSize()).isEqualTo(keptSize);
+         assertThat(read(zipFile, "hello.txt")).isEqualTo("hello world!".getBytes(UTF_8));
+         assertThat(read(zipFile, "new_dir/new.txt")).isEqualTo("new".getBytes(UTF_8));
+         assertThat(read(zipFile, "patched.txt")).isEqualTo(newContent);
+      }
+      assertThat(folder.getRoot().list()).containsOnly(diff.getName(), war.getName());
+   }
+
+   @Test
+   public void should_keep_permissions_of_rebuilt_archives() throws Exception {
+      Map<String, byte[]> entries = new LinkedHashMap<>();
+      entries.put("batch.warup", ("add --from=/b.txt --to=/lib.jar!/b.txt\n"
+            + "replace --from=/index.html --to=/index.html\n").getBytes(UTF_8));
+      entries.put("b.txt", "b".getBytes(UTF_8));
+      entries.put("index.html", "new".getBytes(UTF_8));
+      File diff = zipEntries(entries, folder);
+      File target = folder.newFolder();
+      File jar = new File(target, "lib.jar");
+      try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(jar.toPath()))) {
+         writeEntry(out, "a.txt", "a".getBytes(UTF_8));
+      }
+      File war = new File(folder.getRoot(), "app.war");
+      try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(war.toPath()))) {
+         writeEntry(out, "index.html", "old".getBytes(UTF_8));
+         writeEntry(out, "lib.jar", Files.readAllBytes(jar.toPath()));
+      }
+      assumeTrue(Files.getFileAttributeView(jar.toPath(), PosixFileAttributeView.class) != null);
+      Set<PosixFilePermission> permissions = PosixFilePermissions.fromString("rw-r-----");
+      Files.setPosixFilePermissions(jar.toPath(), permissions);
+      Files.setPosixFilePermissions(war.toPath(), permissions);
+
+      handyWarup.apply(diff, target);
+      handyWarup.apply(diff, war);
+
+      assertThat(Files.getPosixFilePermissions(jar.toPath())).isEqualTo(permissions);
+      assertThat(Files.getPosixFilePermissions(war.toPath())).isEqualTo(permissions);
+      try (ZipFile zipFile = new ZipFile(jar)) {
+         assertThat(read(zipFile, "b.txt")).isEqualTo("b".getBytes(UTF_8));
+      }
+      try (ZipFile zipFile = new ZipFile(war)) {
+         assertThat(read(zipFile, "index.html")).isEqualTo("new".getBytes(UTF_8));
+      }
+   }
+
+   @Test
+   public void should_leave_packed_archive_untouched_when_update_fails() throws Exception {
+      Map<String, byte[]> entries = new LinkedHashMap<>();
+      entries.put("batch.warup", ("replace --from=/hello.txt --to=/hello.txt\n"
+            + "patch --from=/missing.txt.delta --to=/missing.txt\n").getBytes(UTF_8));
+      entries.put("hello.txt", "hello world!".getBytes(UTF_8));
+      entries.put("missing.txt.delta", new DeltaEncoder().apply(new byte[0], "missing".getBytes(UTF_8)));
+      File diff = zipEntries(entries, folder);
+      File war = folder.newFile("app.war");
+      try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(war.toPath()))) {
+         writeEntry(out, "hello.txt", new byte[0]);
+      }
+      byte[] before = Files.readAllBytes(war.toPath());
+
+      try {
+         handyWarup.apply(diff, war);
+         Assertions.fail("the update should not have been applied");
+      } catch (ArchiveUpdateException e) {
+         assertThat(e).hasMessageContaining("missing.txt");
+      }
+      assertThat(Files.readAllBytes(war.toPath())).isEqualTo(before);
+      assertThat(folder.getRoot().list()).containsOnly(diff.getName(), war.getName());
+   }
+
+   @Test
+   public void should_write_reverse_patch_that_reverts_update() throws Exception {
+      Map<String, byte[]> entries = new LinkedHashMap<>();
+      entries.put("batch.warup", ("replace --from=/hello.txt --to=/hello.txt\n"
+            + "rm --from=/old.txt\n"
+            + "add --from=/new_dir --to=/new_dir\n"
+            + "add --from=/y.txt --to=/dir/y.txt\n"
+            + "rm --from=/dir\n").getBytes(UTF_8));
+      entries.put("hello.txt", "hello world!".getBytes(UTF_8));
+      entries.put("new_dir/", new byte[0]);
+      entries.put("new_dir/new.txt", "new".getBytes(UTF_8));
+      entries.put("y.txt", "y".getBytes(UTF_8));
+      File diff = zipEntries(entries, folder);
+      File target = folder.newFolder();
+      write(new File(target, "hello.txt").toPath(), "hello".getBytes(UTF_8));
+      write(new File(target, "old.txt").toPath(), "old".getBytes(UTF_8));
+      newDirectory(target, "dir");
+      write(new File(target, "dir/x.txt").toPath(), "x".getBytes(UTF_8));
+      File reverse = new File(folder.getRoot(), "reverse.zip");
+
+      handyWarup.withReversePatches(updated -> reverse).apply(diff, target);
+      assertThat(new File(target, "dir")).doesNotExist();
+      try (InputStream in = Files.newInputStream(reverse.toPath())) {
+         new HandyWarup().apply(in, target);
+      }
+
+      assertThat(new File(target, "hello.txt")).hasContent("hello");
+      assertThat(new File(target, "old.txt")).hasContent("old");
+      assertThat(new File(target, "dir/x.txt")).hasContent("x");
+      assertThat(new File(target, "dir").list()).containsOnly("x.txt");
+      assertThat(target.list()).containsOnly("hello.txt", "old.txt", "dir");
+      assertThat(folder.getRoot().list()).containsOnly(diff.getName(), target.getName(), reverse.getName());
+   }
+
+   @Test
+   public void should_leave_reverse_patch_file_untouched_when_update_fails() throws Exception {
+      Map<String, byte[]> entries = new LinkedHashMap<>();
+      entries.put("batch.warup", ("replace --from=/hello.txt --to=/hello.txt\n"
+            + "patch --from=/missing.txt.delta --to=/missing.txt\n").getBytes(UTF_8));
+      entries.put("hello.txt", "hello world!".getBytes(UTF_8));
+      entries.put("missing.txt.delta", new DeltaEncoder().apply(new byte[0], "missing".getBytes(UTF_8)));
+      File diff = zipEntries(entries, folder);
+      File target = folder.newFolder();
+      write(new File(target, "hello.txt").toPath(), "hello".getBytes(UTF_8));
+      File reverse = new File(folder.getRoot(), "reverse.zip");
+      write(reverse.toPath(), "previous".getBytes(UTF_8));
+
+      try {
+         handyWarup.withReversePatches(updated -> reverse).apply(diff, target);
+         Assertions.fail("the update should not have been applied");
+      } catch (HandyWarupException expected) {
+         assertThat(reverse).hasContent("previous");
+      }
+      assertThat(new File(target, "hello.txt")).hasContent("hello");
+      assertThat(folder.getRoot().list()).containsOnly(diff.getName(), target.getName(), reverse.getName());
+   }
+
+   @Test
+   public void should_report_reverse_patch_skipped_for_resumed_update() throws Exception {
+      Map<String, byte[]> entries = new LinkedHashMap<>();
+      entries.put("batch.warup", "add --from=/Hello.txt --to=/hello.txt".getBytes(UTF_8));
+      entries.put("Hello.txt", "hello world!".getBytes(UTF_8));
+      File diff = zipEntries(entries, folder);
+      File parent = folder.newFolder();
+      File target = new File(parent, "webapp");
+      newDirectory(parent, "webapp");
+      File copy = new File(parent, ".webapp.handy-warup-crashed");
+      newDirectory(parent, copy.getName());
+      ProgressJournal.create(target.toPath(), diff, Staging.FULL_COPY, copy.toPath()).close();
+      File reverse = new File(folder.getRoot(), "reverse.zip");
+      ApplySummary summary = new ApplySummary();
+
+      handyWarup.withListener(summary).withReversePatches(updated -> reverse).apply(diff, target);
+
+      assertThat(new File(target, "hello.txt")).hasContent("hello world!");
+      assertThat(reverse).doesNotExist();
+      assertThat(summary.skippedReversePatches()).isEqualTo(1);
+   }
+
    @Test
    public void should_accept_valid_handy_warup_archive() {
       File diff = zipAndGet("/acceptValidArchive", folder);
@@ -200,6 +911,13 @@ public class HandyWarupTest {
       assertThat(handyWarup.accepts(diff)).isTrue();
    }
 
+   @Test
+   public void should_accept_handy_warup_archive_with_binary_batch() {
+      File diff = zipEntries(singletonMap("batch.warupb", binaryBatch()), folder);
+
+      assertThat(handyWarup.accepts(diff)).isTrue();
+   }
+
    @Test
    public void should_not_accept_invalid_handy_warup_archive() {
       File diff = zipAndGet("/invalidArchive", folder);
@@ -226,6 +944,54 @@ public class HandyWarupTest {
       assertThat(handyWarup.accepts(new File("salut c'est eddy mitchell"))).isFalse();
    }
 
+   /**
+    * @param records opcodes followed by their string operands
+    */
+   private static byte[] binaryBatch(Object... records) {
+      ByteArrayOutputStream batch = new ByteArrayOutputStream();
+      batch.write('H');
+      batch.write('W');
+      batch.write('B');
+      batch.write('1');
+      for (Object record : records) {
+         if (record instanceof Integer) {
+            batch.write((Integer) record);
+         } else {
+            byte[] bytes = record.toString().getBytes(UTF_8);
+            batch.write(bytes.length);
+            batch.write(bytes, 0, bytes.length);
+         }
+      }
+      batch.write(0);
+      return batch.toByteArray();
+   }
+
+   private static String sha256(byte[] content) throws NoSuchAlgorithmException {
+      StringBuilder hex = new StringBuilder();
+      for (byte b : MessageDigest.getInstance("SHA-256").digest(content)) {
+         hex.append(String.format("%02x", b));
+      }
+      return hex.toString();
+   }
+
+   private static void writeEntry(ZipOutputStream out, String name, byte[] content) throws IOException {
+      out.putNextEntry(new ZipEntry(name));
+      out.write(content);
+      out.closeEntry();
+   }
+
+   private static byte[] read(ZipFile zipFile, String name) throws IOException {
+      try (InputStream in = zipFile.getInputStream(zipFile.getEntry(name))) {
+         ByteArrayOutputStream content = new ByteArrayOutputStream();
+         byte[] buffer = new byte[4096];
+         int read;
+         while ((read = in.read(buffer)) > 0) {
+            content.write(buffer, 0, read);
+         }
+         return content.toByteArray();
+      }
+   }
+
    private static void newDirectory(File target, String dirName) {
       if (!new File(target, dirName).mkdirs()) {
          Assertions.fail("could not create directory");
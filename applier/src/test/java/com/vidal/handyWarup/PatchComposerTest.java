@@ -0,0 +1,226 @@
+package com.vidal.handyWarup;
+
+import com.vidal.handyWarup.generator.DeltaEncoder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static com.vidal.handyWarup.Zip.zipEntries;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PatchComposerTest {
+
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   private HandyWarup handyWarup = new HandyWarup();
+   private PatchComposer composer = new PatchComposer();
+
+   @Test
+   public void leaves_out_path_added_then_removed() throws IOException {
+      Map<String, byte[]> first = new LinkedHashMap<>();
+      first.put("batch.warup", bytes("add --from=/transient.txt --to=/transient.txt"));
+      first.put("transient.txt", bytes("transient"));
+      Map<String, byte[]> second = new LinkedHashMap<>();
+      second.put("batch.warup", bytes("rm --from=/transient.txt"));
+      Map<String, byte[]> target = new LinkedHashMap<>();
+      target.put("kept.txt", bytes("kept"));
+
+      File composed = composeAndCheck(target, first, second);
+
+      assertThat(batch(composed)).isEmpty();
+      assertThat(entryNames(composed)).containsOnly("batch.warup");
+   }
+
+   @Test
+   public void keeps_removal_before_addition_of_path_whose_type_changed() throws IOException {
+      Map<String, byte[]> first = new LinkedHashMap<>();
+      first.put("batch.warup", bytes("rm --from=/conf"));
+      Map<String, byte[]> second = new LinkedHashMap<>();
+      second.put("batch.warup", bytes("add --from=/conf --to=/conf"));
+      second.put("conf/app.properties", bytes("key=value"));
+      Map<String, byte[]> target = new LinkedHashMap<>();
+      target.put("conf", bytes("was a file"));
+
+      File composed = composeAndCheck(target, first, second);
+
+      assertThat(batch(composed)).containsExactly(
+            "rm --from=/conf",
+            "add --from=/2/conf --to=/conf");
+   }
+
+   @Test
+   public void folds_patch_into_earlier_replacement() throws IOException {
+      byte[] replaced = bytes("Hello world! This file has just been replaced, it is about to be patched.");
+      byte[] patched = bytes("Hello world! This file has just been replaced, then it has been patched.");
+      Map<String, byte[]> first = new LinkedHashMap<>();
+      first.put("batch.warup", bytes("replace --from=hello.txt --to=hello.txt"));
+      first.put("hello.txt", replaced);
+      Map<String, byte[]> second = new LinkedHashMap<>();
+      second.put("batch.warup", bytes("patch --from=/hello.txt.delta --to=/hello.txt"));
+      second.put("hello.txt.delta", new DeltaEncoder().apply(replaced, patched));
+      Map<String, byte[]> target = new LinkedHashMap<>();
+      target.put("hello.txt", bytes("original"));
+
+      File composed = composeAndCheck(target, first, second);
+
+      assertThat(batch(composed)).containsExactly("replace --from=/.warup/folded/1 --to=/hello.txt");
+   }
+
+   @Test
+   public void keeps_only_last_update_of_nested_archive_entries() throws IOException {
+      Map<String, byte[]> first = new LinkedHashMap<>();
+      first.put("batch.warup", bytes("replace --from=/lib.jar!/A.class --to=/lib.jar!/A.class\n"
+            + "add --from=/lib.jar!/C.class --to=/lib.jar!/C.class"));
+      first.put("lib.jar!/A.class", bytes("A version 2"));
+      first.put("lib.jar!/C.class", bytes("C version 2"));
+      Map<String, byte[]> second = new LinkedHashMap<>();
+      second.put("batch.warup", bytes("replace --from=/lib.jar!/A.class --to=/lib.jar!/A.class\n"
+            + "rm --from=/lib.jar!/B.class"));
+      second.put("lib.jar!/A.class", bytes("A version 3"));
+      Map<String, byte[]> jar = new LinkedHashMap<>();
+      jar.put("A.class", bytes("A version 1"));
+      jar.put("B.class", bytes("B version 1"));
+      Map<String, byte[]> target = new LinkedHashMap<>();
+      target.put("lib.jar", Files.readAllBytes(zipEntries(jar, folder).toPath()));
+
+      File composed = composeAndCheck(target, first, second);
+
+      assertThat(batch(composed)).containsExactly(
+            "add --from=/1/lib.jar!/C.class --to=/lib.jar!/C.class",
+            "replace --from=/2/lib.jar!/A.class --to=/lib.jar!/A.class",
+            "rm --from=/lib.jar!/B.class");
+   }
+
+   @Test
+   public void ships_blob_shared_between_updates_once() throws IOException, NoSuchAlgorithmException {
+      byte[] shared = bytes("shared content");
+      String hash = sha256(shared);
+      Map<String, byte[]> first = new LinkedHashMap<>();
+      first.put("batch.warup", bytes("add --blob=" + hash + " --to=/a/shared.txt --to=/b/shared.txt"));
+      first.put(".warup/blobs/" + hash, shared);
+      Map<String, byte[]> second = new LinkedHashMap<>();
+      second.put("batch.warup", bytes("add --blob=" + hash + " --to=/c/shared.txt\nrm --from=/a/shared.txt"));
+      second.put(".warup/blobs/" + hash, shared);
+      Map<String, byte[]> target = new LinkedHashMap<>();
+      target.put("a/kept.txt", bytes("kept"));
+      target.put("b/kept.txt", bytes("kept"));
+      target.put("c/kept.txt", bytes("kept"));
+
+      File composed = composeAndCheck(target, first, second);
+
+      assertThat(batch(composed)).containsExactly(
+            "add --blob=" + hash + " --to=/b/shared.txt",
+            "add --blob=" + hash + " --to=/c/shared.txt");
+      assertThat(entryNames(composed)).containsOnly("batch.warup", ".warup/blobs/" + hash);
+   }
+
+   /**
+    * Composes the updates, then checks that the composed update has the same effect as the updates applied in sequence.
+    */
+   @SafeVarargs
+   private final File composeAndCheck(Map<String, byte[]> target, Map<String, byte[]>... updates) throws IOException {
+      List<File> patches = Stream.of(updates).map(update -> zipEntries(update, folder)).collect(toList());
+      File composed = composer.compose(patches, folder.newFile("composed.zip"));
+
+      File sequenced = newTarget(target);
+      for (File patch : patches) {
+         handyWarup.apply(patch, sequenced);
+      }
+      File applied = newTarget(target);
+      handyWarup.apply(composed, applied);
+
+      assertThat(tree(applied)).isEqualTo(tree(sequenced));
+      return composed;
+   }
+
+   private File newTarget(Map<String, byte[]> files) throws IOException {
+      File target = folder.newFolder();
+      for (Map.Entry<String, byte[]> file : files.entrySet()) {
+         Path path = target.toPath().resolve(file.getKey());
+         Files.createDirectories(path.getParent());
+         Files.write(path, file.getValue());
+      }
+      return target;
+   }
+
+   /**
+    * @return content of each file of the tree, entries of archives included, by relative path
+    */
+   private static Map<String, String> tree(File root) throws IOException {
+      Map<String, String> tree = new TreeMap<>();
+      List<Path> paths;
+      try (Stream<Path> walk = Files.walk(root.toPath())) {
+         paths = walk.filter(Files::isRegularFile).collect(toList());
+      }
+      for (Path path : paths) {
+         String relative = root.toPath().relativize(path).toString();
+         if (relative.endsWith(".jar")) {
+            try (ZipFile jar = new ZipFile(path.toFile())) {
+               for (ZipEntry entry : Collections.list(jar.entries())) {
+                  tree.put(relative + "!/" + entry.getName(), read(jar, entry));
+               }
+            }
+         } else {
+            tree.put(relative, new String(Files.readAllBytes(path), UTF_8));
+         }
+      }
+      return tree;
+   }
+
+   private static String read(ZipFile zipFile, ZipEntry entry) throws IOException {
+      try (InputStream in = zipFile.getInputStream(entry)) {
+         byte[] content = new byte[(int) entry.getSize()];
+         int offset = 0;
+         int read;
+         while (offset < content.length && (read = in.read(content, offset, content.length - offset)) > 0) {
+            offset += read;
+         }
+         return new String(content, 0, offset, UTF_8);
+      }
+   }
+
+   private static List<String> batch(File composed) throws IOException {
+      try (ZipFile zipFile = new ZipFile(composed)) {
+         String batch = read(zipFile, zipFile.getEntry("batch.warup"));
+         return batch.isEmpty() ? Collections.<String>emptyList() : asList(batch.split("\n"));
+      }
+   }
+
+   private static List<String> entryNames(File composed) throws IOException {
+      try (ZipFile zipFile = new ZipFile(composed)) {
+         return zipFile.stream().map(ZipEntry::getName).collect(toList());
+      }
+   }
+
+   private static String sha256(byte[] content) throws NoSuchAlgorithmException {
+      StringBuilder hex = new StringBuilder();
+      for (byte b : MessageDigest.getInstance("SHA-256").digest(content)) {
+         hex.append(String.format("%02x", b));
+      }
+      return hex.toString();
+   }
+
+   private static byte[] bytes(String content) {
+      return content.getBytes(UTF_8);
+   }
+}
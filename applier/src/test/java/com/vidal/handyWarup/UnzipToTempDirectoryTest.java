@@ -0,0 +1,115 @@
+package com.vidal.handyWarup;
+
+import com.vidal.handyWarup.errors.UpdateUnzipException;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static com.vidal.handyWarup.Zip.zipEntries;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class UnzipToTempDirectoryTest {
+
+   @Rule public TemporaryFolder folder = new TemporaryFolder();
+   @Rule public ExpectedException thrown = ExpectedException.none();
+   private final ForkJoinPool pool = new ForkJoinPool(4);
+   private Path extracted;
+
+   @After
+   public void deleteExtracted() {
+      if (extracted != null) {
+         new FsDeepRemove().accept(extracted);
+      }
+      pool.shutdown();
+   }
+
+   @Test
+   public void extracts_stored_and_deflated_entries_concurrently() throws IOException {
+      Random random = new Random(42);
+      Map<String, byte[]> stored = new LinkedHashMap<>();
+      Map<String, byte[]> deflated = new LinkedHashMap<>();
+      for (int i = 0; i < 100; i++) {
+         byte[] content = new byte[random.nextInt(100_000)];
+         random.nextBytes(content);
+         (i % 2 == 0 ? stored : deflated).put("dir" + i % 7 + "/nested" + i % 3 + "/file" + i, content);
+      }
+      File archive = folder.newFile();
+      try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(archive.toPath()))) {
+         out.putNextEntry(new ZipEntry("empty/"));
+         out.closeEntry();
+         for (Map.Entry<String, byte[]> entry : stored.entrySet()) {
+            out.putNextEntry(storedEntry(entry.getKey(), entry.getValue()));
+            out.write(entry.getValue());
+            out.closeEntry();
+         }
+         for (Map.Entry<String, byte[]> entry : deflated.entrySet()) {
+            out.putNextEntry(new ZipEntry(entry.getKey()));
+            out.write(entry.getValue());
+            out.closeEntry();
+         }
+      }
+
+      extracted = new UnzipToTempDirectory(pool).apply(archive);
+
+      assertThat(extracted.resolve("empty")).isDirectory();
+      stored.forEach((name, content) -> assertThat(extracted.resolve(name)).hasBinaryContent(content));
+      deflated.forEach((name, content) -> assertThat(extracted.resolve(name)).hasBinaryContent(content));
+   }
+
+   @Test
+   public void does_not_extract_entries_outside_of_the_archive() {
+      Map<String, byte[]> entries = new LinkedHashMap<>();
+      entries.put("../escaped.txt", "hello world!".getBytes(UTF_8));
+      File archive = zipEntries(entries, folder);
+
+      thrown.expect(UpdateUnzipException.class);
+      thrown.expectMessage("outside of the archive");
+      new UnzipToTempDirectory().apply(archive);
+   }
+
+   @Test
+   public void does_not_extract_stored_entries_with_invalid_crc() throws IOException {
+      byte[] content = "hello world!".getBytes(UTF_8);
+      File archive = folder.newFile();
+      try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(archive.toPath()))) {
+         out.putNextEntry(storedEntry("corrupted.txt", content));
+         out.write(content);
+         out.closeEntry();
+      }
+      byte[] bytes = Files.readAllBytes(archive.toPath());
+      String latin1 = new String(bytes, ISO_8859_1);
+      bytes[latin1.indexOf("hello world!")] = 'j';
+      Files.write(archive.toPath(), bytes);
+
+      thrown.expect(UpdateUnzipException.class);
+      thrown.expectMessage("Could not extract corrupted.txt");
+      new UnzipToTempDirectory(pool).apply(archive);
+   }
+
+   private static ZipEntry storedEntry(String name, byte[] content) {
+      ZipEntry entry = new ZipEntry(name);
+      CRC32 crc = new CRC32();
+      crc.update(content);
+      entry.setMethod(ZipEntry.STORED);
+      entry.setSize(content.length);
+      entry.setCompressedSize(content.length);
+      entry.setCrc(crc.getValue());
+      return entry;
+   }
+}
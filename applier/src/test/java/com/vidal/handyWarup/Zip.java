@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.net.URISyntaxException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Map;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 import org.junit.rules.TemporaryFolder;
@@ -35,6 +36,22 @@ public class Zip {
       }
    }
 
+   public static File zipEntries(Map<String, byte[]> entries, TemporaryFolder folder) {
+      try {
+         File archive = folder.newFile();
+         try (ZipOutputStream outputStream = new ZipOutputStream(Files.newOutputStream(archive.toPath()))) {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+               outputStream.putNextEntry(new ZipEntry(entry.getKey()));
+               outputStream.write(entry.getValue());
+               outputStream.closeEntry();
+            }
+         }
+         return archive;
+      } catch (IOException e) {
+         throw new RuntimeException(e);
+      }
+   }
+
    private static Path getSourceDirectory(String name) {
       try {
          return new File(Zip.class.getResource(name).toURI()).toPath();
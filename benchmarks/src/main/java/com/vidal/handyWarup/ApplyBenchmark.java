@@ -0,0 +1,76 @@
+package com.vidal.handyWarup;
+
+import com.vidal.handyWarup.generator.HandyWarupGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies an update that modifies a fraction of the files of the tree, from end to end.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ApplyBenchmark extends TreeBenchmark {
+
+   @Param({"FULL_COPY", "TOUCHED_PATHS", "HARD_LINKS", "AUTO"})
+   public Staging staging;
+
+   @Param({"0.01"})
+   public double modifiedRatio;
+
+   @Param({"true"})
+   public boolean deltas;
+
+   private File update;
+   private Path target;
+   private HandyWarup handyWarup;
+
+   @Setup(Level.Trial)
+   public void generateUpdate() throws IOException {
+      Path newer = work.resolve("newer");
+      new FsDeepCopy().accept(tree, newer);
+      SyntheticTree.modify(newer, files, modifiedRatio, SEED);
+      Path olderWar = work.resolve("older.war");
+      Path newerWar = work.resolve("newer.war");
+      SyntheticTree.zip(tree, olderWar);
+      SyntheticTree.zip(newer, newerWar);
+      new FsDeepRemove().accept(newer);
+      update = new HandyWarupGenerator()
+            .withDeltas(deltas)
+            .generate(newerWar.toFile(), olderWar.toFile(), work.resolve("update.zip").toFile());
+      target = work.resolve("target");
+      handyWarup = new HandyWarup().withStaging(staging);
+   }
+
+   @Setup(Level.Invocation)
+   public void copyTarget() {
+      deleteIfExists(target);
+      new FsDeepCopy().accept(tree, target);
+   }
+
+   @TearDown(Level.Invocation)
+   public void awaitRemovals() {
+      handyWarup.awaitBackgroundRemovals();
+   }
+
+   @Benchmark
+   public File apply() {
+      return handyWarup.apply(update, target.toFile());
+   }
+}
@@ -0,0 +1,142 @@
+package com.vidal.handyWarup;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Parses the batch of an update, in the text and in the binary format.
+ * Commands are not created, as their creation does not depend on the format.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BatchParserBenchmark {
+
+   private static final String LINE = "replace --from=/WEB-INF/classes/com/example/d3_17/File123456.class --to=/WEB-INF/classes/com/example/d3_17/File123456.class";
+
+   @Param({"1000", "50000", "500000"})
+   public int commandCount;
+
+   @Param({"TEXT", "BINARY"})
+   public String format;
+
+   private Path work;
+   private File update;
+   private FileSystem patch;
+   private Path patchRoot;
+   private final BatchParser parser = new BatchParser(Collections.<String, Function<BatchParser.Line, Command>>singletonMap(
+         "replace", line -> new AddCommand(Paths.get(line.source), Paths.get(line.targets.get(0)))));
+
+   @Setup(Level.Trial)
+   public void writeBatch() throws IOException {
+      work = Files.createTempDirectory("handy-warup-benchmark-");
+      update = work.resolve("update.zip").toFile();
+      try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(update.toPath()))) {
+         if ("BINARY".equals(format)) {
+            byte[] batch = binaryBatch();
+            ZipEntry entry = new ZipEntry(BatchParser.BINARY_BATCH);
+            CRC32 crc = new CRC32();
+            crc.update(batch);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(batch.length);
+            entry.setCrc(crc.getValue());
+            out.putNextEntry(entry);
+            out.write(batch);
+         } else {
+            out.putNextEntry(new ZipEntry(BatchParser.TEXT_BATCH));
+            out.write(textBatch());
+         }
+         out.closeEntry();
+      }
+      patch = FileSystems.newFileSystem(URI.create("jar:" + update.toURI()), Collections.<String, Object>emptyMap());
+      patchRoot = patch.getPath("/");
+   }
+
+   @TearDown(Level.Trial)
+   public void deleteBatch() throws IOException {
+      patch.close();
+      new FsDeepRemove().accept(work);
+   }
+
+   @Benchmark
+   public List<BatchParser.Line> parse() {
+      return BatchParser.lines(update, patchRoot);
+   }
+
+   @Benchmark
+   @BenchmarkMode(Mode.Throughput)
+   @OutputTimeUnit(TimeUnit.SECONDS)
+   public Command parseLine() {
+      return parser.parseLine(LINE);
+   }
+
+   private byte[] textBatch() {
+      StringBuilder batch = new StringBuilder();
+      for (int i = 0; i < commandCount; i++) {
+         String path = path(i);
+         batch.append("replace --from=/").append(path).append(" --to=/").append(path).append('\n');
+      }
+      return batch.toString().getBytes(UTF_8);
+   }
+
+   private byte[] binaryBatch() throws IOException {
+      ByteArrayOutputStream batch = new ByteArrayOutputStream();
+      batch.write(BatchParser.MAGIC);
+      for (int i = 0; i < commandCount; i++) {
+         byte[] path = path(i).getBytes(UTF_8);
+         batch.write(BatchParser.REPLACE);
+         writeVarint(batch, path.length);
+         batch.write(path);
+         writeVarint(batch, path.length);
+         batch.write(path);
+      }
+      batch.write(BatchParser.END);
+      return batch.toByteArray();
+   }
+
+   private static String path(int index) {
+      return "WEB-INF/classes/com/example/d" + index % 7 + "_" + index % 31 + "/File" + index + ".class";
+   }
+
+   private static void writeVarint(ByteArrayOutputStream out, long value) {
+      long remaining = value;
+      while ((remaining & ~0x7FL) != 0) {
+         out.write((int) ((remaining & 0x7F) | 0x80));
+         remaining >>>= 7;
+      }
+      out.write((int) remaining);
+   }
+}
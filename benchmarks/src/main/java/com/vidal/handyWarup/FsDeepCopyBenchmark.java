@@ -0,0 +1,50 @@
+package com.vidal.handyWarup;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copies a whole tree, as the {@link Staging#FULL_COPY} and {@link Staging#HARD_LINKS} stagings do.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FsDeepCopyBenchmark extends TreeBenchmark {
+
+   @Param({"false", "true"})
+   public boolean links;
+
+   private FsDeepCopy deepCopy;
+   private Path copy;
+
+   @Setup(Level.Trial)
+   public void createCopier() {
+      deepCopy = links ? FsDeepCopy.linking(ForkJoinPool.commonPool()) : new FsDeepCopy();
+      copy = work.resolve("copy");
+   }
+
+   @TearDown(Level.Invocation)
+   public void deleteCopy() {
+      deleteIfExists(copy);
+   }
+
+   @Benchmark
+   public void copy() {
+      deepCopy.accept(tree, copy);
+   }
+}
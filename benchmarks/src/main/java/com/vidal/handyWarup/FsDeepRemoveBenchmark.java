@@ -0,0 +1,40 @@
+package com.vidal.handyWarup;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deletes a whole tree, as committing or rolling back a staged copy does.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FsDeepRemoveBenchmark extends TreeBenchmark {
+
+   private final FsDeepRemove deepRemove = new FsDeepRemove();
+   private Path copy;
+
+   @Setup(Level.Invocation)
+   public void copyTree() {
+      copy = work.resolve("copy");
+      deleteIfExists(copy);
+      new FsDeepCopy().accept(tree, copy);
+   }
+
+   @Benchmark
+   public void remove() {
+      deepRemove.accept(copy);
+   }
+}
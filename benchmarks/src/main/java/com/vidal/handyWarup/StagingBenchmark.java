@@ -0,0 +1,56 @@
+package com.vidal.handyWarup;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stages the tree as {@link HandyWarup#apply(java.io.File, java.io.File)} does before executing the commands
+ * of an update, then rolls the stage back between invocations.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StagingBenchmark extends TreeBenchmark {
+
+   @Param({"FULL_COPY", "TOUCHED_PATHS", "HARD_LINKS"})
+   public Staging staging;
+
+   private final HandyWarup handyWarup = new HandyWarup();
+   private Path target;
+   private Stage stage;
+
+   @Setup(Level.Trial)
+   public void copyTarget() {
+      target = work.resolve("target");
+      new FsDeepCopy().accept(tree, target);
+   }
+
+   @TearDown(Level.Invocation)
+   public void rollback() {
+      if (stage != null) {
+         stage.rollback();
+         stage = null;
+      }
+      handyWarup.awaitBackgroundRemovals();
+   }
+
+   @Benchmark
+   public Stage stage() {
+      stage = handyWarup.stage(target, staging);
+      return stage;
+   }
+}
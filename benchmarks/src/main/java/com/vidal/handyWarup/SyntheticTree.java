@@ -0,0 +1,182 @@
+package com.vidal.handyWarup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates reproducible file trees shaped like exploded WARs, so that benchmarks run against realistic targets.
+ *
+ * Files are spread evenly over the leaf directories of a tree of the specified depth, whose branching factor
+ * keeps about {@value #FILES_PER_DIRECTORY} files per leaf directory. File sizes follow a {@link SizeDistribution}.
+ */
+public class SyntheticTree {
+
+   private static final int FILES_PER_DIRECTORY = 32;
+   private static final int BUFFER_SIZE = 64 * 1024;
+
+   private final int fileCount;
+   private final int depth;
+   private final SizeDistribution sizes;
+   private final long seed;
+
+   /**
+    * @param fileCount number of files of the tree
+    * @param depth number of directory levels above the files
+    * @param sizes distribution of the file sizes
+    * @param seed seed of the file names, sizes and contents
+    */
+   public SyntheticTree(int fileCount, int depth, SizeDistribution sizes, long seed) {
+      this.fileCount = fileCount;
+      this.depth = depth;
+      this.sizes = sizes;
+      this.seed = seed;
+   }
+
+   /**
+    * Writes the tree to the specified directory.
+    *
+    * @return relative paths of the written files
+    */
+   public List<Path> writeTo(Path root) throws IOException {
+      Random random = new Random(seed);
+      int branching = depth == 0 ? 1 : Math.max(2, (int) Math.ceil(Math.pow((double) fileCount / FILES_PER_DIRECTORY, 1.0 / depth)));
+      int leaves = (int) Math.min(Integer.MAX_VALUE, Math.round(Math.pow(branching, depth)));
+      byte[] buffer = new byte[BUFFER_SIZE];
+      List<Path> files = new ArrayList<>(fileCount);
+      for (int i = 0; i < fileCount; i++) {
+         Path file = leaf(root.getFileSystem().getPath(""), i % leaves, branching).resolve("File" + i + ".class");
+         Path absolute = root.resolve(file.toString());
+         Files.createDirectories(absolute.getParent());
+         write(absolute, sizes.next(random), random, buffer);
+         files.add(file);
+      }
+      return files;
+   }
+
+   /**
+    * Rewrites a fraction of the files of a tree written by {@link #writeTo(Path)}, keeping their size.
+    * Modified files keep most of their content, so that they lend themselves to binary deltas.
+    *
+    * @param ratio fraction of the files to modify, between 0 and 1
+    */
+   public static void modify(Path root, List<Path> files, double ratio, long seed) throws IOException {
+      Random random = new Random(seed);
+      for (Path file : files) {
+         if (random.nextDouble() >= ratio) {
+            continue;
+         }
+         Path absolute = root.resolve(file.toString());
+         byte[] content = Files.readAllBytes(absolute);
+         for (int i = 0; i < Math.max(1, content.length / 100); i++) {
+            if (content.length > 0) {
+               content[random.nextInt(content.length)] = (byte) random.nextInt();
+            }
+         }
+         Files.write(absolute, content);
+      }
+   }
+
+   /**
+    * Zips a directory, as a WAR.
+    */
+   public static void zip(Path root, Path archive) throws IOException {
+      List<Path> files;
+      try (Stream<Path> walk = Files.walk(root)) {
+         files = walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+      }
+      try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(archive))) {
+         for (Path file : files) {
+            out.putNextEntry(new ZipEntry(root.relativize(file).toString().replace(root.getFileSystem().getSeparator(), "/")));
+            Files.copy(file, out);
+            out.closeEntry();
+         }
+      }
+   }
+
+   private Path leaf(Path relativeRoot, int index, int branching) {
+      Path result = relativeRoot;
+      int remaining = index;
+      for (int level = 0; level < depth; level++) {
+         result = result.resolve("d" + level + "_" + remaining % branching);
+         remaining /= branching;
+      }
+      return result;
+   }
+
+   private static void write(Path file, long size, Random random, byte[] buffer) {
+      try (OutputStream out = Files.newOutputStream(file)) {
+         // half random, half constant: compresses like class files rather than like noise
+         long written = 0;
+         while (written < size) {
+            int length = (int) Math.min(buffer.length, size - written);
+            random.nextBytes(buffer);
+            for (int i = length / 2; i < length; i++) {
+               buffer[i] = 0;
+            }
+            out.write(buffer, 0, length);
+            written += length;
+         }
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+   }
+
+   /**
+    * Distribution of the sizes of generated files.
+    */
+   public enum SizeDistribution {
+
+      /**
+       * Compiled classes and resources only: 512 bytes to 16 KiB.
+       */
+      CLASSES {
+         @Override
+         long next(Random random) {
+            return logUniform(random, 512, 16 * 1024);
+         }
+      },
+
+      /**
+       * Typical exploded WAR: mostly classes and resources, some static assets, a few libraries of 1 to 8 MiB.
+       */
+      WAR {
+         @Override
+         long next(Random random) {
+            double kind = random.nextDouble();
+            if (kind < 0.01) {
+               return logUniform(random, 1024 * 1024, 8 * 1024 * 1024);
+            }
+            if (kind < 0.10) {
+               return logUniform(random, 16 * 1024, 256 * 1024);
+            }
+            return logUniform(random, 512, 16 * 1024);
+         }
+      },
+
+      /**
+       * Large files only: 1 to 16 MiB.
+       */
+      LARGE {
+         @Override
+         long next(Random random) {
+            return logUniform(random, 1024 * 1024, 16 * 1024 * 1024);
+         }
+      };
+
+      abstract long next(Random random);
+
+      private static long logUniform(Random random, long min, long max) {
+         return Math.round(Math.exp(Math.log(min) + random.nextDouble() * (Math.log(max) - Math.log(min))));
+      }
+   }
+}
@@ -0,0 +1,58 @@
+package com.vidal.handyWarup;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Base of the benchmarks that run against a {@link SyntheticTree}, written once per trial.
+ *
+ * Parameters can be overridden from the command line, e.g. {@code -p fileCount=200000 -p sizes=CLASSES}.
+ */
+@State(Scope.Benchmark)
+public abstract class TreeBenchmark {
+
+   static final long SEED = 42;
+
+   @Param({"1000", "50000", "500000"})
+   public int fileCount;
+
+   @Param({"4"})
+   public int depth;
+
+   @Param({"WAR"})
+   public SyntheticTree.SizeDistribution sizes;
+
+   protected Path work;
+   protected Path tree;
+   protected List<Path> files;
+
+   @Setup(Level.Trial)
+   public void writeTree() throws IOException {
+      work = Files.createTempDirectory("handy-warup-benchmark-");
+      tree = work.resolve("tree");
+      files = new SyntheticTree(fileCount, depth, sizes, SEED).writeTo(tree);
+   }
+
+   @TearDown(Level.Trial)
+   public void deleteWork() {
+      new FsDeepRemove().accept(work);
+   }
+
+   /**
+    * Deletes the specified path if it exists, between invocations.
+    */
+   protected static void deleteIfExists(Path path) {
+      if (Files.exists(path)) {
+         new FsDeepRemove().accept(path);
+      }
+   }
+}
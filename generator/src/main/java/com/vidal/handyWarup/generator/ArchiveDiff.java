@@ -0,0 +1,167 @@
+package com.vidal.handyWarup.generator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.function.BiFunction;
+import java.util.zip.ZipEntry;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Computes the operations that turn the old archive into the new one.
+ *
+ * Trees are walked depth first, children in name order, and operations are grouped by kind:
+ * additions, then replacements, then removals. A path that turns from a file into a directory or back
+ * is removed then added among the replacements, as neither can be copied over the other.
+ * Files present in both archives are compared
+ * by CRC-32 and size first, then by SHA-256 of their content, computed in parallel.
+ * Nested archives that differ can optionally be compared entry by entry, see {@link NestedArchiveDiff}.
+ */
+class ArchiveDiff implements BiFunction<ArchiveIndex, ArchiveIndex, List<Operation>> {
+
+   private static final int BUFFER_SIZE = 64 * 1024;
+   private static final int MIN_DELTA_SIZE = 1024;
+
+   private final boolean deltas;
+   private final boolean nestedArchives;
+
+   public ArchiveDiff(boolean deltas, boolean nestedArchives) {
+      this.deltas = deltas;
+      this.nestedArchives = nestedArchives;
+   }
+
+   @Override
+   public List<Operation> apply(ArchiveIndex newer, ArchiveIndex older) {
+      List<Operation> additions = new ArrayList<>();
+      List<Candidate> candidates = new ArrayList<>();
+      List<Operation> removals = new ArrayList<>();
+      walk("", newer, older, additions, candidates, removals);
+
+      List<Operation> operations = new ArrayList<>(additions);
+      candidates.parallelStream()
+            .map(candidate -> compare(candidate, newer, older))
+            .collect(toList())
+            .forEach(operations::addAll);
+      operations.addAll(removals);
+      return operations;
+   }
+
+   private void walk(String directory,
+                     ArchiveIndex newer,
+                     ArchiveIndex older,
+                     List<Operation> additions,
+                     List<Candidate> candidates,
+                     List<Operation> removals) {
+
+      SortedSet<String> names = new TreeSet<>(ArchiveIndex.NAME_ORDER);
+      names.addAll(newer.children(directory));
+      names.addAll(older.children(directory));
+      for (String name : names) {
+         String path = ArchiveIndex.child(directory, name);
+         if (!older.exists(path)) {
+            additions.add(Operation.add(path));
+         } else if (!newer.exists(path)) {
+            removals.add(Operation.rm(path));
+         } else if (newer.isDirectory(path) && older.isDirectory(path)) {
+            walk(path, newer, older, additions, candidates, removals);
+         } else {
+            candidates.add(new Candidate(path, newer.isDirectory(path) || older.isDirectory(path)));
+         }
+      }
+   }
+
+   private List<Operation> compare(Candidate candidate, ArchiveIndex newer, ArchiveIndex older) {
+      String path = candidate.path;
+      if (candidate.typeChanged) {
+         return asList(Operation.rm(path), Operation.add(path));
+      }
+      ZipEntry newEntry = newer.entry(path);
+      ZipEntry oldEntry = older.entry(path);
+      boolean sameMetadata = newEntry.getSize() == oldEntry.getSize() && newEntry.getCrc() == oldEntry.getCrc();
+      if (sameMetadata && Arrays.equals(sha256(newer, newEntry), sha256(older, oldEntry))) {
+         return emptyList();
+      }
+      if (nestedArchives && NestedArchiveDiff.isArchive(path)) {
+         Optional<List<Operation>> nested = new NestedArchiveDiff().apply(path, read(newer, newEntry), read(older, oldEntry));
+         if (nested.isPresent()) {
+            return nested.get();
+         }
+      }
+      if (deltas && newEntry.getSize() >= MIN_DELTA_SIZE) {
+         byte[] delta = new DeltaEncoder().apply(read(older, oldEntry), read(newer, newEntry));
+         if (delta.length < newEntry.getSize() / 2) {
+            return singletonList(Operation.patch(path, delta));
+         }
+      }
+      return singletonList(Operation.replace(path));
+   }
+
+   static byte[] sha256(ArchiveIndex index, ZipEntry entry) {
+      try (InputStream in = index.zipFile().getInputStream(entry)) {
+         MessageDigest digest = MessageDigest.getInstance("SHA-256");
+         byte[] buffer = new byte[BUFFER_SIZE];
+         int read;
+         while ((read = in.read(buffer)) > 0) {
+            digest.update(buffer, 0, read);
+         }
+         return digest.digest();
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      } catch (NoSuchAlgorithmException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   static byte[] sha256(byte[] content) {
+      try {
+         return MessageDigest.getInstance("SHA-256").digest(content);
+      } catch (NoSuchAlgorithmException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   static String hex(byte[] bytes) {
+      StringBuilder result = new StringBuilder(bytes.length * 2);
+      for (byte b : bytes) {
+         result.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return result.toString();
+   }
+
+   private static byte[] read(ArchiveIndex index, ZipEntry entry) {
+      try (InputStream in = index.zipFile().getInputStream(entry)) {
+         ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.max(entry.getSize(), 32));
+         byte[] buffer = new byte[BUFFER_SIZE];
+         int read;
+         while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+         }
+         return out.toByteArray();
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+   }
+
+   private static class Candidate {
+      private final String path;
+      private final boolean typeChanged;
+
+      public Candidate(String path, boolean typeChanged) {
+         this.path = path;
+         this.typeChanged = typeChanged;
+      }
+   }
+}
@@ -0,0 +1,117 @@
+package com.vidal.handyWarup.generator;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * File tree of an archive, built from its central directory only.
+ *
+ * Paths are relative, '/'-separated and have no trailing separator; the root directory is the empty path.
+ * Directories that only exist implicitly, as parents of other entries, are part of the tree.
+ */
+class ArchiveIndex {
+
+   /**
+    * Orders names by code point, which is the byte order of their UTF-8 encoding.
+    */
+   static final Comparator<String> NAME_ORDER = (left, right) -> {
+      int i = 0;
+      int j = 0;
+      while (i < left.length() && j < right.length()) {
+         int leftCodePoint = left.codePointAt(i);
+         int rightCodePoint = right.codePointAt(j);
+         if (leftCodePoint != rightCodePoint) {
+            return Integer.compare(leftCodePoint, rightCodePoint);
+         }
+         i += Character.charCount(leftCodePoint);
+         j += Character.charCount(rightCodePoint);
+      }
+      return Integer.compare(left.length() - i, right.length() - j);
+   };
+
+   private final ZipFile zipFile;
+   private final Map<String, ZipEntry> files = new HashMap<>();
+   private final Map<String, SortedSet<String>> directories = new HashMap<>();
+
+   public ArchiveIndex(ZipFile zipFile) {
+      this.zipFile = zipFile;
+      directories.put("", new TreeSet<>(NAME_ORDER));
+      zipFile.stream().forEach(entry -> {
+         String path = trimSeparators(entry.getName());
+         if (path.isEmpty()) {
+            return;
+         }
+         if (entry.isDirectory()) {
+            addDirectory(path);
+         } else {
+            files.put(path, entry);
+            addToParent(path);
+         }
+      });
+   }
+
+   public ZipFile zipFile() {
+      return zipFile;
+   }
+
+   public boolean exists(String path) {
+      return isFile(path) || isDirectory(path);
+   }
+
+   public boolean isFile(String path) {
+      return files.containsKey(path);
+   }
+
+   public boolean isDirectory(String path) {
+      return directories.containsKey(path);
+   }
+
+   public ZipEntry entry(String path) {
+      return files.get(path);
+   }
+
+   /**
+    * @return names of the direct children of the specified directory, in {@link #NAME_ORDER}
+    */
+   public SortedSet<String> children(String directory) {
+      SortedSet<String> children = directories.get(directory);
+      return children == null ? Collections.emptySortedSet() : Collections.unmodifiableSortedSet(children);
+   }
+
+   public static String child(String directory, String name) {
+      return directory.isEmpty() ? name : directory + "/" + name;
+   }
+
+   private void addDirectory(String path) {
+      if (directories.containsKey(path)) {
+         return;
+      }
+      directories.put(path, new TreeSet<>(NAME_ORDER));
+      addToParent(path);
+   }
+
+   private void addToParent(String path) {
+      int separator = path.lastIndexOf('/');
+      String parent = separator < 0 ? "" : path.substring(0, separator);
+      addDirectory(parent);
+      directories.get(parent).add(path.substring(separator + 1));
+   }
+
+   private static String trimSeparators(String name) {
+      int start = 0;
+      int end = name.length();
+      while (start < end && name.charAt(start) == '/') {
+         start++;
+      }
+      while (end > start && name.charAt(end - 1) == '/') {
+         end--;
+      }
+      return name.substring(start, end);
+   }
+}
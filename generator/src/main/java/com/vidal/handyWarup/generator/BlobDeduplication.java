@@ -0,0 +1,98 @@
+package com.vidal.handyWarup.generator;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.UnaryOperator;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Ships the content of files that are added or replaced at several paths only once.
+ *
+ * Files with the same SHA-256 are taken out of the trees shipped by {@code add} and {@code replace}
+ * operations and written by a single {@link Operation.Kind#BLOB} operation, stored under
+ * {@link Operation#BLOBS}. Blob operations run after the other additions and replacements,
+ * so that their parent directories already exist, and before removals.
+ * Files that replace a directory are left out, as the directory has to be replaced first.
+ */
+class BlobDeduplication implements UnaryOperator<List<Operation>> {
+
+   private final ArchiveIndex newer;
+   private final ArchiveIndex older;
+
+   public BlobDeduplication(ArchiveIndex newer, ArchiveIndex older) {
+      this.newer = newer;
+      this.older = older;
+   }
+
+   @Override
+   public List<Operation> apply(List<Operation> operations) {
+      List<String> files = new ArrayList<>();
+      for (Operation operation : operations) {
+         if (isShippedTree(operation)) {
+            collectFiles(operation.path(), files);
+         }
+      }
+
+      List<String> hashes = files.parallelStream()
+            .map(file -> ArchiveDiff.hex(ArchiveDiff.sha256(newer, newer.entry(file))))
+            .collect(toList());
+      Map<String, List<String>> filesByHash = new LinkedHashMap<>();
+      for (int i = 0; i < files.size(); i++) {
+         filesByHash.computeIfAbsent(hashes.get(i), hash -> new ArrayList<>()).add(files.get(i));
+      }
+
+      List<Operation> blobs = new ArrayList<>();
+      Set<String> deduplicated = new HashSet<>();
+      filesByHash.forEach((hash, paths) -> {
+         if (paths.size() > 1) {
+            blobs.add(Operation.blob(hash, paths));
+            deduplicated.addAll(paths);
+         }
+      });
+      if (blobs.isEmpty()) {
+         return operations;
+      }
+
+      // removals of paths whose type changed are followed by additions: blobs go after the last of them
+      int removals = operations.size();
+      while (removals > 0 && operations.get(removals - 1).kind() == Operation.Kind.RM) {
+         removals--;
+      }
+      List<Operation> result = new ArrayList<>(operations.size() + blobs.size());
+      for (int i = 0; i < operations.size(); i++) {
+         Operation operation = operations.get(i);
+         if (i == removals) {
+            result.addAll(blobs);
+         }
+         if (!isShippedTree(operation) || !deduplicated.contains(operation.path())) {
+            result.add(operation);
+         }
+      }
+      if (removals == operations.size()) {
+         result.addAll(blobs);
+      }
+      return result;
+   }
+
+   private static boolean isShippedTree(Operation operation) {
+      Operation.Kind kind = operation.kind();
+      return (kind == Operation.Kind.ADD || kind == Operation.Kind.REPLACE) && !operation.isNested();
+   }
+
+   private void collectFiles(String path, List<String> files) {
+      if (newer.isFile(path)) {
+         if (!older.isDirectory(path)) {
+            files.add(path);
+         }
+         return;
+      }
+      for (String child : newer.children(path)) {
+         collectFiles(ArchiveIndex.child(path, child), files);
+      }
+   }
+}
@@ -0,0 +1,210 @@
+package com.vidal.handyWarup.generator;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.function.BiFunction;
+import java.util.zip.CRC32;
+
+/**
+ * Computes a binary delta that turns a source content into a target content.
+ *
+ * The source is indexed by fixed-size blocks, then the target is scanned with a rolling hash:
+ * every block match is extended in both directions and emitted as a copy of source bytes,
+ * everything else is emitted as literal bytes.
+ *
+ * Delta layout, all numbers being unsigned LEB128 varints unless specified otherwise:
+ * <pre>
+ * "HWD1" source-length target-length source-crc32 (4 bytes, big endian)
+ * (COPY source-offset length | INSERT length bytes)*
+ * END target-crc32 (4 bytes, big endian)
+ * </pre>
+ * The source checksum lets the applier reject a source of the expected length but of another content
+ * before writing anything.
+ */
+public class DeltaEncoder implements BiFunction<byte[], byte[], byte[]> {
+
+   static final byte[] MAGIC = {'H', 'W', 'D', '1'};
+   static final int END = 0;
+   static final int COPY = 1;
+   static final int INSERT = 2;
+
+   private static final int BLOCK = 16;
+   private static final int PRIME = 31;
+   private static final int PRIME_POW;
+
+   static {
+      int pow = 1;
+      for (int i = 1; i < BLOCK; i++) {
+         pow *= PRIME;
+      }
+      PRIME_POW = pow;
+   }
+
+   public static void main(String[] args) throws IOException {
+      if (args.length != 3) {
+         throw new IllegalArgumentException("Expecting source, target and delta paths as arguments");
+      }
+      byte[] source = Files.readAllBytes(Paths.get(args[0]));
+      byte[] target = Files.readAllBytes(Paths.get(args[1]));
+      try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(Paths.get(args[2])))) {
+         new DeltaEncoder().encode(source, target, out);
+      }
+   }
+
+   @Override
+   public byte[] apply(byte[] source, byte[] target) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      try {
+         encode(source, target, out);
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+      return out.toByteArray();
+   }
+
+   public void encode(Path source, Path target, OutputStream out) throws IOException {
+      encode(Files.readAllBytes(source), Files.readAllBytes(target), out);
+   }
+
+   public void encode(byte[] source, byte[] target, OutputStream out) throws IOException {
+      out.write(MAGIC);
+      writeVarint(out, source.length);
+      writeVarint(out, target.length);
+      writeCrc(out, source);
+
+      int[] index = index(source);
+      int literalStart = 0;
+      int position = 0;
+      int hash = target.length >= BLOCK ? hash(target, 0) : 0;
+      while (position + BLOCK <= target.length) {
+         int sourceOffset = lookup(index, hash, source, target, position);
+         if (sourceOffset < 0) {
+            if (position + BLOCK < target.length) {
+               hash = roll(hash, target[position], target[position + BLOCK]);
+            }
+            position++;
+            continue;
+         }
+
+         int start = position;
+         int sourceStart = sourceOffset;
+         while (start > literalStart && sourceStart > 0 && target[start - 1] == source[sourceStart - 1]) {
+            start--;
+            sourceStart--;
+         }
+         int end = position + BLOCK;
+         int sourceEnd = sourceOffset + BLOCK;
+         while (end < target.length && sourceEnd < source.length && target[end] == source[sourceEnd]) {
+            end++;
+            sourceEnd++;
+         }
+
+         insert(out, target, literalStart, start);
+         out.write(COPY);
+         writeVarint(out, sourceStart);
+         writeVarint(out, end - start);
+
+         position = end;
+         literalStart = end;
+         if (position + BLOCK <= target.length) {
+            hash = hash(target, position);
+         }
+      }
+      insert(out, target, literalStart, target.length);
+
+      out.write(END);
+      writeCrc(out, target);
+   }
+
+   private static void writeCrc(OutputStream out, byte[] content) throws IOException {
+      CRC32 crc = new CRC32();
+      crc.update(content, 0, content.length);
+      long value = crc.getValue();
+      out.write((int) (value >>> 24));
+      out.write((int) (value >>> 16));
+      out.write((int) (value >>> 8));
+      out.write((int) value);
+   }
+
+   /**
+    * @return open-addressing table of the first source block offset for each block hash, -1 for empty slots
+    */
+   private static int[] index(byte[] source) {
+      int blocks = source.length / BLOCK;
+      int capacity = Integer.highestOneBit(Math.max(blocks, 1) * 2) * 2;
+      int[] table = new int[capacity];
+      Arrays.fill(table, -1);
+      for (int block = 0; block < blocks; block++) {
+         int offset = block * BLOCK;
+         int slot = slot(hash(source, offset), capacity);
+         while (table[slot] >= 0 && !sameBlock(source, table[slot], source, offset)) {
+            slot = (slot + 1) & (capacity - 1);
+         }
+         if (table[slot] < 0) {
+            table[slot] = offset;
+         }
+      }
+      return table;
+   }
+
+   private static int lookup(int[] table, int hash, byte[] source, byte[] target, int position) {
+      int capacity = table.length;
+      for (int slot = slot(hash, capacity); table[slot] >= 0; slot = (slot + 1) & (capacity - 1)) {
+         if (sameBlock(source, table[slot], target, position)) {
+            return table[slot];
+         }
+      }
+      return -1;
+   }
+
+   private static int slot(int hash, int capacity) {
+      int mixed = hash * 0x9E3779B9;
+      return (mixed ^ (mixed >>> 16)) & (capacity - 1);
+   }
+
+   private static boolean sameBlock(byte[] left, int leftOffset, byte[] right, int rightOffset) {
+      for (int i = 0; i < BLOCK; i++) {
+         if (left[leftOffset + i] != right[rightOffset + i]) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private static int hash(byte[] bytes, int offset) {
+      int hash = 0;
+      for (int i = 0; i < BLOCK; i++) {
+         hash = hash * PRIME + (bytes[offset + i] & 0xFF);
+      }
+      return hash;
+   }
+
+   private static int roll(int hash, byte out, byte in) {
+      return (hash - (out & 0xFF) * PRIME_POW) * PRIME + (in & 0xFF);
+   }
+
+   private static void insert(OutputStream out, byte[] target, int from, int to) throws IOException {
+      if (to <= from) {
+         return;
+      }
+      out.write(INSERT);
+      writeVarint(out, to - from);
+      out.write(target, from, to - from);
+   }
+
+   private static void writeVarint(OutputStream out, long value) throws IOException {
+      long remaining = value;
+      while ((remaining & ~0x7FL) != 0) {
+         out.write((int) ((remaining & 0x7F) | 0x80));
+         remaining >>>= 7;
+      }
+      out.write((int) remaining);
+   }
+}
@@ -0,0 +1,176 @@
+package com.vidal.handyWarup.generator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.zip.ZipFile;
+
+/**
+ * Generates an update archive that turns an old archive (typically a WAR) into a new one.
+ *
+ * Both archives are only read through their central directory and the entries that need
+ * to be compared or shipped: none of them is extracted to disk.
+ */
+public class HandyWarupGenerator {
+
+   private boolean deltas;
+   private boolean nestedArchives;
+   private boolean deduplication;
+   private boolean binaryBatch;
+   private boolean manifest;
+
+   public static void main(String[] args) {
+      String newArchive = null;
+      String oldArchive = null;
+      String artifact = null;
+      HandyWarupGenerator generator = new HandyWarupGenerator();
+      for (int i = 0; i < args.length; i++) {
+         switch (args[i]) {
+            case "-n":
+               newArchive = argument(args, ++i);
+               break;
+            case "-o":
+               oldArchive = argument(args, ++i);
+               break;
+            case "-t":
+               artifact = argument(args, ++i);
+               break;
+            case "-d":
+               generator.withDeltas(true);
+               break;
+            case "-j":
+               generator.withNestedArchives(true);
+               break;
+            case "-u":
+               generator.withDeduplication(true);
+               break;
+            case "-b":
+               generator.withBinaryBatch(true);
+               break;
+            case "-m":
+               generator.withManifest(true);
+               break;
+            case "-h":
+               usage();
+               return;
+            default:
+               break;
+         }
+      }
+      if (newArchive == null || oldArchive == null || artifact == null) {
+         usage();
+         System.exit(1);
+      }
+
+      File targetDirectory = new File("target");
+      if (!targetDirectory.isDirectory() && !targetDirectory.mkdirs()) {
+         throw new IllegalStateException("Could not create " + targetDirectory);
+      }
+      generator.generate(new File(newArchive), new File(oldArchive), new File(targetDirectory, artifact + ".zip"));
+   }
+
+   /**
+    * Ships replaced files as binary deltas when a delta is less than half the size of the new file.
+    *
+    * @param deltas {@code false} by default
+    * @return this instance
+    */
+   public HandyWarupGenerator withDeltas(boolean deltas) {
+      this.deltas = deltas;
+      return this;
+   }
+
+   /**
+    * Ships the modified entries of nested archives (jar, war and zip files) rather than whole archives,
+    * when they are less than half the size of the new archive.
+    *
+    * @param nestedArchives {@code false} by default
+    * @return this instance
+    */
+   public HandyWarupGenerator withNestedArchives(boolean nestedArchives) {
+      this.nestedArchives = nestedArchives;
+      return this;
+   }
+
+   /**
+    * Ships the content of files added or replaced at several paths only once.
+    *
+    * @param deduplication {@code false} by default
+    * @return this instance
+    */
+   public HandyWarupGenerator withDeduplication(boolean deduplication) {
+      this.deduplication = deduplication;
+      return this;
+   }
+
+   /**
+    * Writes a compact binary batch ({@code batch.warupb}) instead of the text one.
+    * Updates with a binary batch require an applier that supports it.
+    *
+    * @param binaryBatch {@code false} by default
+    * @return this instance
+    */
+   public HandyWarupGenerator withBinaryBatch(boolean binaryBatch) {
+      this.binaryBatch = binaryBatch;
+      return this;
+   }
+
+   /**
+    * Ships the expected hash of every touched path, before and after the update, so that the applier
+    * can reject targets the update was not generated for, skip commands already applied and verify its result.
+    *
+    * @param manifest {@code false} by default
+    * @return this instance
+    */
+   public HandyWarupGenerator withManifest(boolean manifest) {
+      this.manifest = manifest;
+      return this;
+   }
+
+   /**
+    * Writes the update archive that turns {@code oldArchive} into {@code newArchive}.
+    *
+    * @param newArchive archive to upgrade to
+    * @param oldArchive archive to upgrade from
+    * @param patch update archive to write
+    * @return {@code patch}
+    */
+   public File generate(File newArchive, File oldArchive, File patch) {
+      try (ZipFile newZip = new ZipFile(newArchive);
+           ZipFile oldZip = new ZipFile(oldArchive)) {
+
+         ArchiveIndex newer = new ArchiveIndex(newZip);
+         ArchiveIndex older = new ArchiveIndex(oldZip);
+         List<Operation> operations = new ArchiveDiff(deltas, nestedArchives).apply(newer, older);
+         if (deduplication) {
+            operations = new BlobDeduplication(newer, older).apply(operations);
+         }
+         byte[] manifestContent = manifest ? new ManifestWriter(operations).apply(newer, older) : null;
+         new PatchWriter(binaryBatch).write(newer, operations, manifestContent, patch.toPath());
+         return patch;
+      } catch (IOException e) {
+         throw new UncheckedIOException("Could not generate " + patch, e);
+      }
+   }
+
+   private static String argument(String[] args, int index) {
+      if (index >= args.length) {
+         throw new IllegalArgumentException("Missing value for option " + args[index - 1]);
+      }
+      return args[index];
+   }
+
+   private static void usage() {
+      System.out.println("HandyWarupGenerator -n /source_archive.zip -o /target_archive.zip -t /diff [-d] [-j] [-u] [-b] [-m]");
+      System.out.println("-n source archive path");
+      System.out.println("-o target archive path");
+      System.out.println("-t diff artifact name");
+      System.out.println("-d ship replaced files as binary deltas when smaller");
+      System.out.println("-j ship modified entries of nested jar, war and zip files rather than whole files");
+      System.out.println("-u ship files added or replaced at several paths only once");
+      System.out.println("-b write a binary batch, faster to parse");
+      System.out.println("-m ship a manifest of the expected hashes of touched paths");
+      System.out.println("-h this help");
+   }
+}
@@ -0,0 +1,111 @@
+package com.vidal.handyWarup.generator;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Writes the manifest of an update: the expected image of every path it touches, before and after
+ * it is applied, one {@code <pre-image> <post-image> <path>} line per path.
+ *
+ * Images are the hex encoded SHA-256 of file contents, {@value #ABSENT} for missing paths and
+ * {@value #DIRECTORY} for directories. File contents are hashed in parallel.
+ */
+class ManifestWriter implements BiFunction<ArchiveIndex, ArchiveIndex, byte[]> {
+
+   static final String MANIFEST = "manifest.warup";
+   static final String ABSENT = "-";
+   static final String DIRECTORY = "/";
+
+   private final List<Operation> operations;
+
+   public ManifestWriter(List<Operation> operations) {
+      this.operations = operations;
+   }
+
+   @Override
+   public byte[] apply(ArchiveIndex newer, ArchiveIndex older) {
+      Map<String, Images> images = new LinkedHashMap<>();
+      for (Operation operation : operations) {
+         switch (operation.kind()) {
+            case ADD:
+            case REPLACE:
+               if (operation.isNested()) {
+                  addNested(operation, images);
+               } else {
+                  addTree(operation.path(), newer, older, images);
+               }
+               break;
+            case PATCH:
+               images.putIfAbsent(operation.path(), new Images(image(older, operation.path()), image(newer, operation.path())));
+               break;
+            case BLOB:
+               operation.targets().forEach(target -> images.putIfAbsent(target, new Images(image(older, target), image(newer, target))));
+               break;
+            default:
+               if (operation.isNested()) {
+                  addNested(operation, images);
+               } else {
+                  removeTree(operation.path(), newer, older, images);
+               }
+               break;
+         }
+      }
+
+      StringBuilder manifest = new StringBuilder();
+      images.entrySet().parallelStream()
+            .map(entry -> entry.getValue().pre.get() + " " + entry.getValue().post.get() + " " + entry.getKey() + "\n")
+            .forEachOrdered(manifest::append);
+      return manifest.toString().getBytes(UTF_8);
+   }
+
+   private static void addNested(Operation operation, Map<String, Images> images) {
+      if (!operation.path().endsWith("/")) {
+         images.putIfAbsent(operation.path(), new Images(operation::preImage, operation::postImage));
+      }
+   }
+
+   private static void addTree(String path, ArchiveIndex newer, ArchiveIndex older, Map<String, Images> images) {
+      images.putIfAbsent(path, new Images(image(older, path), image(newer, path)));
+      for (String child : newer.children(path)) {
+         addTree(ArchiveIndex.child(path, child), newer, older, images);
+      }
+      for (String child : older.children(path)) {
+         String childPath = ArchiveIndex.child(path, child);
+         if (!newer.exists(childPath)) {
+            removeTree(childPath, newer, older, images);
+         }
+      }
+   }
+
+   /**
+    * Registers a removed tree. Its root may be added back with another type, see {@link ArchiveDiff}.
+    */
+   private static void removeTree(String path, ArchiveIndex newer, ArchiveIndex older, Map<String, Images> images) {
+      images.putIfAbsent(path, new Images(image(older, path), image(newer, path)));
+      for (String child : older.children(path)) {
+         removeTree(ArchiveIndex.child(path, child), newer, older, images);
+      }
+   }
+
+   private static Supplier<String> image(ArchiveIndex index, String path) {
+      if (index.isFile(path)) {
+         return () -> ArchiveDiff.hex(ArchiveDiff.sha256(index, index.entry(path)));
+      }
+      return index.isDirectory(path) ? () -> DIRECTORY : () -> ABSENT;
+   }
+
+   private static class Images {
+      private final Supplier<String> pre;
+      private final Supplier<String> post;
+
+      Images(Supplier<String> pre, Supplier<String> post) {
+         this.pre = pre;
+         this.post = post;
+      }
+   }
+}
@@ -0,0 +1,109 @@
+package com.vidal.handyWarup.generator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import static com.vidal.handyWarup.generator.ManifestWriter.ABSENT;
+import static com.vidal.handyWarup.generator.Operation.Kind.ADD;
+import static com.vidal.handyWarup.generator.Operation.Kind.REPLACE;
+import static com.vidal.handyWarup.generator.Operation.Kind.RM;
+
+/**
+ * Computes entry level operations between two versions of an archive nested in the compared archives,
+ * such as a jar in {@code WEB-INF/lib}.
+ *
+ * Nested archives are only diffed one level deep, and only when the shipped entries are less than half
+ * the uncompressed size of the new archive: the whole archive is shipped otherwise.
+ */
+class NestedArchiveDiff {
+
+   private static final int BUFFER_SIZE = 64 * 1024;
+   private static final int MAX_ENTRIES = 0xFFFF;
+
+   public static boolean isArchive(String path) {
+      String lowerCase = path.toLowerCase(Locale.ROOT);
+      return lowerCase.endsWith(".jar") || lowerCase.endsWith(".war") || lowerCase.endsWith(".zip");
+   }
+
+   /**
+    * @return the operations that turn {@code older} into {@code newer}, or nothing if the whole archive
+    * should be shipped instead
+    */
+   public Optional<List<Operation>> apply(String path, byte[] newer, byte[] older) {
+      Map<String, byte[]> newEntries = entries(newer);
+      Map<String, byte[]> oldEntries = entries(older);
+      if (newEntries == null || oldEntries == null) {
+         return Optional.empty();
+      }
+
+      List<Operation> additions = new ArrayList<>();
+      List<Operation> replacements = new ArrayList<>();
+      List<Operation> removals = new ArrayList<>();
+      long newSize = 0;
+      long shippedSize = 0;
+      for (Map.Entry<String, byte[]> entry : newEntries.entrySet()) {
+         String name = entry.getKey();
+         byte[] content = entry.getValue();
+         newSize += content.length;
+         if (!oldEntries.containsKey(name)) {
+            additions.add(Operation.nested(ADD, path, name, name.endsWith("/") ? null : content, ABSENT, image(content)));
+            shippedSize += content.length;
+         } else if (!Arrays.equals(content, oldEntries.get(name))) {
+            replacements.add(Operation.nested(REPLACE, path, name, content, image(oldEntries.get(name)), image(content)));
+            shippedSize += content.length;
+         }
+      }
+      for (Map.Entry<String, byte[]> entry : oldEntries.entrySet()) {
+         if (!newEntries.containsKey(entry.getKey())) {
+            removals.add(Operation.nested(RM, path, entry.getKey(), null, image(entry.getValue()), ABSENT));
+         }
+      }
+      if (shippedSize >= newSize / 2) {
+         return Optional.empty();
+      }
+
+      List<Operation> operations = new ArrayList<>(additions);
+      operations.addAll(replacements);
+      operations.addAll(removals);
+      return Optional.of(operations);
+   }
+
+   private static String image(byte[] content) {
+      return ArchiveDiff.hex(ArchiveDiff.sha256(content));
+   }
+
+   /**
+    * @return entry contents by name, or {@code null} if the archive cannot be updated entry by entry
+    */
+   private static Map<String, byte[]> entries(byte[] archive) {
+      Map<String, byte[]> entries = new LinkedHashMap<>();
+      byte[] buffer = new byte[BUFFER_SIZE];
+      try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(archive))) {
+         ZipEntry entry;
+         while ((entry = in.getNextEntry()) != null) {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+               content.write(buffer, 0, read);
+            }
+            if (entry.getName().contains(Operation.NESTED_SEPARATOR)
+                  || entries.put(entry.getName(), content.toByteArray()) != null) {
+               return null;
+            }
+         }
+      } catch (IOException e) {
+         return null;
+      }
+      return entries.isEmpty() || entries.size() >= MAX_ENTRIES ? null : entries;
+   }
+}
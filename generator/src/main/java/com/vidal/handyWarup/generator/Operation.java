@@ -0,0 +1,155 @@
+package com.vidal.handyWarup.generator;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.unmodifiableList;
+
+/**
+ * Single line of a {@code batch.warup} file.
+ */
+class Operation {
+
+   static final String DELTAS = ".warup/deltas/";
+   static final String BLOBS = ".warup/blobs/";
+   static final String NESTED_SEPARATOR = "!/";
+
+   enum Kind {
+      ADD, REPLACE, PATCH, RM, BLOB
+   }
+
+   private final Kind kind;
+   private final String path;
+   private final byte[] payload;
+   private final List<String> targets;
+   private final String preImage;
+   private final String postImage;
+
+   private Operation(Kind kind, String path, byte[] payload) {
+      this(kind, path, payload, emptyList(), null, null);
+   }
+
+   private Operation(Kind kind, String path, byte[] payload, List<String> targets, String preImage, String postImage) {
+      this.kind = kind;
+      this.path = path;
+      this.payload = payload;
+      this.targets = targets;
+      this.preImage = preImage;
+      this.postImage = postImage;
+   }
+
+   public static Operation add(String path) {
+      return new Operation(Kind.ADD, path, null);
+   }
+
+   public static Operation replace(String path) {
+      return new Operation(Kind.REPLACE, path, null);
+   }
+
+   public static Operation patch(String path, byte[] delta) {
+      return new Operation(Kind.PATCH, path, delta);
+   }
+
+   public static Operation rm(String path) {
+      return new Operation(Kind.RM, path, null);
+   }
+
+   /**
+    * @param hash hex encoded SHA-256 of the content shared by all targets
+    * @param targets paths of the files that have this content, in batch order
+    */
+   public static Operation blob(String hash, List<String> targets) {
+      return new Operation(Kind.BLOB, hash, null, unmodifiableList(new ArrayList<>(targets)), null, null);
+   }
+
+   /**
+    * @param kind {@link Kind#ADD}, {@link Kind#REPLACE} or {@link Kind#RM}
+    * @param archive path of the nested archive
+    * @param entry name of the entry in the nested archive, ending with '/' for directories
+    * @param content content of added and replaced file entries, {@code null} otherwise
+    * @param preImage manifest image of the entry before the operation
+    * @param postImage manifest image of the entry after the operation
+    */
+   public static Operation nested(Kind kind, String archive, String entry, byte[] content, String preImage, String postImage) {
+      return new Operation(kind, archive + NESTED_SEPARATOR + entry, content, emptyList(), preImage, postImage);
+   }
+
+   public Kind kind() {
+      return kind;
+   }
+
+   public String path() {
+      return path;
+   }
+
+   /**
+    * @return paths of the files written by a {@link Kind#BLOB} operation
+    */
+   public List<String> targets() {
+      return targets;
+   }
+
+   /**
+    * @return manifest image of a nested entry before the operation
+    */
+   public String preImage() {
+      return preImage;
+   }
+
+   /**
+    * @return manifest image of a nested entry after the operation
+    */
+   public String postImage() {
+      return postImage;
+   }
+
+   public boolean isNested() {
+      return path.contains(NESTED_SEPARATOR);
+   }
+
+   /**
+    * @return the delta of patches and the content of nested entries, {@code null} for other operations
+    */
+   public byte[] payload() {
+      return payload;
+   }
+
+   public String payloadPath() {
+      switch (kind) {
+         case PATCH:
+            return DELTAS + path;
+         case BLOB:
+            return BLOBS + path;
+         default:
+            return path;
+      }
+   }
+
+   /**
+    * Formats the operation the way the original Bash generator did, leading slashes included.
+    * Operations on nested archive entries always have leading slashes.
+    */
+   public String toBatchLine() {
+      if (isNested()) {
+         return kind == Kind.RM
+               ? "rm --from=/" + path
+               : kind.name().toLowerCase() + " --from=/" + path + " --to=/" + path;
+      }
+      switch (kind) {
+         case ADD:
+            String source = path.indexOf('/') < 0 ? "/" + path : path;
+            return "add --from=" + source + " --to=" + source;
+         case REPLACE:
+            return "replace --from=" + path + " --to=" + path;
+         case PATCH:
+            return "patch --from=/" + payloadPath() + " --to=/" + path;
+         case BLOB:
+            StringBuilder line = new StringBuilder("add --blob=").append(path);
+            targets.forEach(target -> line.append(" --to=/").append(target));
+            return line.toString();
+         default:
+            return "rm --from=/" + path;
+      }
+   }
+}
@@ -0,0 +1,201 @@
+package com.vidal.handyWarup.generator;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Writes an update archive in a single pass: the batch first, as text or in binary,
+ * the optional manifest, then the payload of each operation, in batch order.
+ * Files written by a blob operation are left out of the trees shipped by other operations.
+ */
+class PatchWriter {
+
+   static final String BATCH = "batch.warup";
+   static final String BINARY_BATCH = "batch.warupb";
+
+   private static final byte[] BINARY_MAGIC = {'H', 'W', 'B', '1'};
+   private static final int END = 0;
+   private static final int ADD = 1;
+   private static final int REPLACE = 2;
+   private static final int RM = 3;
+   private static final int PATCH = 4;
+   private static final int BLOB = 5;
+   private static final int BUFFER_SIZE = 64 * 1024;
+
+   private final byte[] buffer = new byte[BUFFER_SIZE];
+   private final boolean binaryBatch;
+
+   /**
+    * @param binaryBatch whether to write a binary {@code batch.warupb}, stored uncompressed,
+    *                    rather than a text {@code batch.warup}
+    */
+   public PatchWriter(boolean binaryBatch) {
+      this.binaryBatch = binaryBatch;
+   }
+
+   /**
+    * @param manifest content of the manifest, {@code null} to write none
+    */
+   public void write(ArchiveIndex newer, List<Operation> operations, byte[] manifest, Path patch) throws IOException {
+      Set<String> blobTargets = new HashSet<>();
+      operations.stream()
+            .filter(operation -> operation.kind() == Operation.Kind.BLOB)
+            .forEach(operation -> blobTargets.addAll(operation.targets()));
+      try (ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(patch)))) {
+         if (binaryBatch) {
+            byte[] batch = binaryBatch(operations);
+            out.putNextEntry(storedEntry(BINARY_BATCH, batch));
+            out.write(batch);
+         } else {
+            out.putNextEntry(new ZipEntry(BATCH));
+            out.write(batch(operations));
+         }
+         out.closeEntry();
+         if (manifest != null) {
+            out.putNextEntry(new ZipEntry(ManifestWriter.MANIFEST));
+            out.write(manifest);
+            out.closeEntry();
+         }
+
+         for (Operation operation : operations) {
+            switch (operation.kind()) {
+               case ADD:
+               case REPLACE:
+                  if (operation.isNested()) {
+                     writePayload(operation, out);
+                  } else {
+                     writeTree(newer, operation.path(), blobTargets, out);
+                  }
+                  break;
+               case PATCH:
+                  writePayload(operation, out);
+                  break;
+               case BLOB:
+                  writeFile(newer, operation.targets().get(0), operation.payloadPath(), out);
+                  break;
+               default:
+                  break;
+            }
+         }
+      }
+   }
+
+   static byte[] batch(List<Operation> operations) {
+      StringBuilder batch = new StringBuilder();
+      operations.forEach(operation -> batch.append(operation.toBatchLine()).append('\n'));
+      return batch.toString().getBytes(UTF_8);
+   }
+
+   /**
+    * Encodes operations in the binary batch format read by the applier's {@code BatchParser}.
+    */
+   static byte[] binaryBatch(List<Operation> operations) {
+      ByteArrayOutputStream batch = new ByteArrayOutputStream();
+      batch.write(BINARY_MAGIC, 0, BINARY_MAGIC.length);
+      for (Operation operation : operations) {
+         switch (operation.kind()) {
+            case ADD:
+            case REPLACE:
+               batch.write(operation.kind() == Operation.Kind.ADD ? ADD : REPLACE);
+               writeString(batch, operation.path());
+               writeString(batch, operation.path());
+               break;
+            case PATCH:
+               batch.write(PATCH);
+               writeString(batch, operation.payloadPath());
+               writeString(batch, operation.path());
+               break;
+            case BLOB:
+               batch.write(BLOB);
+               for (int i = 0; i < operation.path().length(); i += 2) {
+                  batch.write(Integer.parseInt(operation.path().substring(i, i + 2), 16));
+               }
+               writeVarint(batch, operation.targets().size());
+               operation.targets().forEach(target -> writeString(batch, target));
+               break;
+            default:
+               batch.write(RM);
+               writeString(batch, operation.path());
+               break;
+         }
+      }
+      batch.write(END);
+      return batch.toByteArray();
+   }
+
+   private static void writeString(ByteArrayOutputStream out, String value) {
+      byte[] bytes = value.getBytes(UTF_8);
+      writeVarint(out, bytes.length);
+      out.write(bytes, 0, bytes.length);
+   }
+
+   private static void writeVarint(ByteArrayOutputStream out, long value) {
+      while ((value & ~0x7FL) != 0) {
+         out.write((int) ((value & 0x7F) | 0x80));
+         value >>>= 7;
+      }
+      out.write((int) value);
+   }
+
+   private static ZipEntry storedEntry(String name, byte[] content) {
+      CRC32 crc = new CRC32();
+      crc.update(content);
+      ZipEntry entry = new ZipEntry(name);
+      entry.setMethod(ZipEntry.STORED);
+      entry.setSize(content.length);
+      entry.setCompressedSize(content.length);
+      entry.setCrc(crc.getValue());
+      return entry;
+   }
+
+   private static void writePayload(Operation operation, ZipOutputStream out) throws IOException {
+      if (operation.payload() == null) {
+         return;
+      }
+      out.putNextEntry(new ZipEntry(operation.payloadPath()));
+      out.write(operation.payload());
+      out.closeEntry();
+   }
+
+   private void writeTree(ArchiveIndex newer, String path, Set<String> excluded, ZipOutputStream out) throws IOException {
+      if (newer.isFile(path)) {
+         if (!excluded.contains(path)) {
+            writeFile(newer, path, path, out);
+         }
+         return;
+      }
+      out.putNextEntry(new ZipEntry(path + "/"));
+      out.closeEntry();
+      for (String child : newer.children(path)) {
+         writeTree(newer, ArchiveIndex.child(path, child), excluded, out);
+      }
+   }
+
+   private void writeFile(ArchiveIndex newer, String path, String payloadPath, ZipOutputStream out) throws IOException {
+      out.putNextEntry(new ZipEntry(payloadPath));
+      try (InputStream in = newer.zipFile().getInputStream(newer.entry(path))) {
+         copy(in, out);
+      }
+      out.closeEntry();
+   }
+
+   private void copy(InputStream in, OutputStream out) throws IOException {
+      int read;
+      while ((read = in.read(buffer)) > 0) {
+         out.write(buffer, 0, read);
+      }
+   }
+}
@@ -0,0 +1,78 @@
+package com.vidal.handyWarup.generator;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipFile;
+
+import static com.vidal.handyWarup.generator.Zip.zipFile;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ArchiveDiffTest {
+
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   @Test
+   public void orders_additions_then_replacements_then_removals() throws IOException {
+      Map<String, byte[]> newEntries = new LinkedHashMap<>();
+      newEntries.put("z-added.txt", bytes("added"));
+      newEntries.put("changed.txt", bytes("new"));
+      Map<String, byte[]> oldEntries = new LinkedHashMap<>();
+      oldEntries.put("a-removed.txt", bytes("removed"));
+      oldEntries.put("changed.txt", bytes("old"));
+
+      assertThat(batch(newEntries, oldEntries)).containsExactly(
+            "add --from=/z-added.txt --to=/z-added.txt",
+            "replace --from=changed.txt --to=changed.txt",
+            "rm --from=/a-removed.txt");
+   }
+
+   @Test
+   public void removes_then_adds_path_whose_type_changed() throws IOException {
+      Map<String, byte[]> newEntries = new LinkedHashMap<>();
+      newEntries.put("added.txt", bytes("added"));
+      newEntries.put("lib/file.txt", bytes("now a directory"));
+      newEntries.put("conf", bytes("now a file"));
+      Map<String, byte[]> oldEntries = new LinkedHashMap<>();
+      oldEntries.put("lib", bytes("was a file"));
+      oldEntries.put("conf/file.txt", bytes("was a directory"));
+      oldEntries.put("removed.txt", bytes("removed"));
+
+      assertThat(batch(newEntries, oldEntries)).containsExactly(
+            "add --from=/added.txt --to=/added.txt",
+            "rm --from=/conf",
+            "add --from=/conf --to=/conf",
+            "rm --from=/lib",
+            "add --from=/lib --to=/lib",
+            "rm --from=/removed.txt");
+   }
+
+   @Test
+   public void ignores_identical_files() throws IOException {
+      Map<String, byte[]> entries = new LinkedHashMap<>();
+      entries.put("WEB-INF/web.xml", bytes("<web-app/>"));
+
+      assertThat(batch(entries, entries)).isEmpty();
+   }
+
+   private List<String> batch(Map<String, byte[]> newEntries, Map<String, byte[]> oldEntries) throws IOException {
+      try (ZipFile newer = zipFile(newEntries, folder);
+           ZipFile older = zipFile(oldEntries, folder)) {
+         return new ArchiveDiff(false, false).apply(new ArchiveIndex(newer), new ArchiveIndex(older)).stream()
+               .map(Operation::toBatchLine)
+               .collect(toList());
+      }
+   }
+
+   private static byte[] bytes(String content) {
+      return content.getBytes(UTF_8);
+   }
+}
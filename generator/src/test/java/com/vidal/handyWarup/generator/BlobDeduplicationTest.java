@@ -0,0 +1,88 @@
+package com.vidal.handyWarup.generator;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipFile;
+
+import static com.vidal.handyWarup.generator.Zip.zipFile;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BlobDeduplicationTest {
+
+   private static final String SAME_HASH = ArchiveDiff.hex(ArchiveDiff.sha256(bytes("same")));
+
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   @Test
+   public void places_blobs_after_additions_and_replacements_and_before_removals() throws IOException {
+      Map<String, byte[]> newEntries = new LinkedHashMap<>();
+      newEntries.put("a/same.txt", bytes("same"));
+      newEntries.put("b/same.txt", bytes("same"));
+      newEntries.put("changed.txt", bytes("new"));
+      Map<String, byte[]> oldEntries = new LinkedHashMap<>();
+      oldEntries.put("changed.txt", bytes("old"));
+      oldEntries.put("removed.txt", bytes("removed"));
+
+      assertThat(batch(newEntries, oldEntries)).containsExactly(
+            "add --from=/a --to=/a",
+            "add --from=/b --to=/b",
+            "replace --from=changed.txt --to=changed.txt",
+            "add --blob=" + SAME_HASH + " --to=/a/same.txt --to=/b/same.txt",
+            "rm --from=/removed.txt");
+   }
+
+   @Test
+   public void places_blobs_after_additions_of_paths_whose_type_changed() throws IOException {
+      Map<String, byte[]> newEntries = new LinkedHashMap<>();
+      newEntries.put("added.txt", bytes("same"));
+      newEntries.put("lib/same.txt", bytes("same"));
+      Map<String, byte[]> oldEntries = new LinkedHashMap<>();
+      oldEntries.put("lib", bytes("was a file"));
+      oldEntries.put("removed.txt", bytes("removed"));
+
+      assertThat(batch(newEntries, oldEntries)).containsExactly(
+            "rm --from=/lib",
+            "add --from=/lib --to=/lib",
+            "add --blob=" + SAME_HASH + " --to=/added.txt --to=/lib/same.txt",
+            "rm --from=/removed.txt");
+   }
+
+   @Test
+   public void leaves_operations_untouched_without_duplicates() throws IOException {
+      Map<String, byte[]> newEntries = new LinkedHashMap<>();
+      newEntries.put("a.txt", bytes("a"));
+      newEntries.put("b.txt", bytes("b"));
+      Map<String, byte[]> oldEntries = new LinkedHashMap<>();
+      oldEntries.put("removed.txt", bytes("removed"));
+
+      assertThat(batch(newEntries, oldEntries)).containsExactly(
+            "add --from=/a.txt --to=/a.txt",
+            "add --from=/b.txt --to=/b.txt",
+            "rm --from=/removed.txt");
+   }
+
+   private List<String> batch(Map<String, byte[]> newEntries, Map<String, byte[]> oldEntries) throws IOException {
+      try (ZipFile newerZip = zipFile(newEntries, folder);
+           ZipFile olderZip = zipFile(oldEntries, folder)) {
+         ArchiveIndex newer = new ArchiveIndex(newerZip);
+         ArchiveIndex older = new ArchiveIndex(olderZip);
+         List<Operation> operations = new ArchiveDiff(false, false).apply(newer, older);
+         return new BlobDeduplication(newer, older).apply(operations).stream()
+               .map(Operation::toBatchLine)
+               .collect(toList());
+      }
+   }
+
+   private static byte[] bytes(String content) {
+      return content.getBytes(UTF_8);
+   }
+}
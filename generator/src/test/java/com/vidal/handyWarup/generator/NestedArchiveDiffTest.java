@@ -0,0 +1,67 @@
+package com.vidal.handyWarup.generator;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static com.vidal.handyWarup.generator.Zip.zipBytes;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.toList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class NestedArchiveDiffTest {
+
+   private NestedArchiveDiff diff = new NestedArchiveDiff();
+
+   @Test
+   public void updates_archive_entry_by_entry_when_less_than_half_of_it_is_shipped() {
+      Map<String, byte[]> oldEntries = entries();
+      oldEntries.put("a/Removed.class", bytes("removed"));
+      Map<String, byte[]> newEntries = entries();
+      newEntries.put("a/Changed.class", bytes("changed"));
+      newEntries.put("a/Added.class", bytes("added"));
+
+      Optional<List<Operation>> operations = diff.apply("WEB-INF/lib/lib.jar", zipBytes(newEntries), zipBytes(oldEntries));
+
+      assertThat(operations.isPresent()).isTrue();
+      assertThat(operations.get().stream().map(Operation::toBatchLine).collect(toList())).containsExactly(
+            "add --from=/WEB-INF/lib/lib.jar!/a/Added.class --to=/WEB-INF/lib/lib.jar!/a/Added.class",
+            "replace --from=/WEB-INF/lib/lib.jar!/a/Changed.class --to=/WEB-INF/lib/lib.jar!/a/Changed.class",
+            "rm --from=/WEB-INF/lib/lib.jar!/a/Removed.class");
+   }
+
+   @Test
+   public void ships_whole_archive_when_at_least_half_of_it_changed() {
+      Map<String, byte[]> oldEntries = new LinkedHashMap<>();
+      oldEntries.put("a/Kept.class", bytes("kept!"));
+      oldEntries.put("a/Changed.class", bytes("before"));
+      Map<String, byte[]> newEntries = new LinkedHashMap<>();
+      newEntries.put("a/Kept.class", bytes("kept!"));
+      newEntries.put("a/Changed.class", bytes("after!"));
+
+      assertThat(diff.apply("lib.jar", zipBytes(newEntries), zipBytes(oldEntries)).isPresent()).isFalse();
+   }
+
+   @Test
+   public void ships_whole_archive_that_cannot_be_read_entry_by_entry() {
+      Map<String, byte[]> entries = entries();
+
+      assertThat(diff.apply("lib.jar", bytes("not a zip"), zipBytes(entries)).isPresent()).isFalse();
+   }
+
+   private static Map<String, byte[]> entries() {
+      Map<String, byte[]> entries = new LinkedHashMap<>();
+      entries.put("a/Changed.class", bytes("unchanged"));
+      for (int i = 0; i < 10; i++) {
+         entries.put("a/Kept" + i + ".class", bytes("kept class number " + i));
+      }
+      return entries;
+   }
+
+   private static byte[] bytes(String content) {
+      return content.getBytes(UTF_8);
+   }
+}
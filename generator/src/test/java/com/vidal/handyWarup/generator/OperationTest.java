@@ -0,0 +1,52 @@
+package com.vidal.handyWarup.generator;
+
+import org.junit.Test;
+
+import static com.vidal.handyWarup.generator.Operation.Kind.ADD;
+import static com.vidal.handyWarup.generator.Operation.Kind.REPLACE;
+import static com.vidal.handyWarup.generator.Operation.Kind.RM;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class OperationTest {
+
+   @Test
+   public void formats_additions_like_the_original_generator() {
+      assertThat(Operation.add("hello.txt").toBatchLine()).isEqualTo("add --from=/hello.txt --to=/hello.txt");
+      assertThat(Operation.add("WEB-INF/lib").toBatchLine()).isEqualTo("add --from=WEB-INF/lib --to=WEB-INF/lib");
+   }
+
+   @Test
+   public void formats_replacements_and_removals() {
+      assertThat(Operation.replace("WEB-INF/web.xml").toBatchLine()).isEqualTo("replace --from=WEB-INF/web.xml --to=WEB-INF/web.xml");
+      assertThat(Operation.rm("WEB-INF/old.xml").toBatchLine()).isEqualTo("rm --from=/WEB-INF/old.xml");
+   }
+
+   @Test
+   public void formats_patches_with_their_delta_path() {
+      Operation patch = Operation.patch("WEB-INF/web.xml", new byte[0]);
+
+      assertThat(patch.toBatchLine()).isEqualTo("patch --from=/.warup/deltas/WEB-INF/web.xml --to=/WEB-INF/web.xml");
+   }
+
+   @Test
+   public void formats_blobs_with_all_their_targets() {
+      Operation blob = Operation.blob("cafe", asList("a/same.txt", "b/same.txt"));
+
+      assertThat(blob.toBatchLine()).isEqualTo("add --blob=cafe --to=/a/same.txt --to=/b/same.txt");
+      assertThat(blob.payloadPath()).isEqualTo(".warup/blobs/cafe");
+   }
+
+   @Test
+   public void formats_nested_entries_with_leading_slashes() {
+      byte[] content = "class".getBytes(UTF_8);
+
+      assertThat(Operation.nested(ADD, "WEB-INF/lib/lib.jar", "a/B.class", content, "-", "cafe").toBatchLine())
+            .isEqualTo("add --from=/WEB-INF/lib/lib.jar!/a/B.class --to=/WEB-INF/lib/lib.jar!/a/B.class");
+      assertThat(Operation.nested(REPLACE, "lib.jar", "a/C.class", content, "cafe", "babe").toBatchLine())
+            .isEqualTo("replace --from=/lib.jar!/a/C.class --to=/lib.jar!/a/C.class");
+      assertThat(Operation.nested(RM, "lib.jar", "a/", null, "/", "-").toBatchLine())
+            .isEqualTo("rm --from=/lib.jar!/a/");
+   }
+}
@@ -0,0 +1,41 @@
+package com.vidal.handyWarup.generator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import org.junit.rules.TemporaryFolder;
+
+public class Zip {
+
+   /**
+    * @param entries content of each entry, in archive order
+    */
+   public static byte[] zipBytes(Map<String, byte[]> entries) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (ZipOutputStream outputStream = new ZipOutputStream(bytes)) {
+         for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            outputStream.putNextEntry(new ZipEntry(entry.getKey()));
+            outputStream.write(entry.getValue());
+            outputStream.closeEntry();
+         }
+      } catch (IOException e) {
+         throw new RuntimeException(e);
+      }
+      return bytes.toByteArray();
+   }
+
+   public static ZipFile zipFile(Map<String, byte[]> entries, TemporaryFolder folder) {
+      try {
+         File archive = folder.newFile();
+         Files.write(archive.toPath(), zipBytes(entries));
+         return new ZipFile(archive);
+      } catch (IOException e) {
+         throw new RuntimeException(e);
+      }
+   }
+}
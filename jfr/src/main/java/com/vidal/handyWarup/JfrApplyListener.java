@@ -0,0 +1,123 @@
+package com.vidal.handyWarup;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import java.nio.file.Path;
+
+/**
+ * {@link ApplyListener} that records phases, commands and I/O as Java Flight Recorder events,
+ * so that they line up with GC, I/O and CPU samples of the same recording.
+ *
+ * Events are only recorded while a recording with them enabled is running, e.g. with
+ * {@code -XX:StartFlightRecording}. Requires a runtime that provides {@code jdk.jfr}: Java 11, or Java 8 from update 262.
+ *
+ * Built on Java 11 and later only, in its own module, so that the applier still builds on earlier Java 8 updates:
+ * the applier looks it up by name and registers it when this module is on its class path.
+ */
+public class JfrApplyListener implements ApplyListener {
+
+   @Override
+   public void phaseEnded(Path subject, ApplyPhase phase, long nanos) {
+      PhaseEvent event = new PhaseEvent();
+      if (event.shouldCommit()) {
+         event.subject = subject.toString();
+         event.phase = phase.name();
+         event.elapsed = nanos;
+         event.commit();
+      }
+   }
+
+   @Override
+   public void commandExecuted(Path target, Command command, long nanos) {
+      CommandEvent event = new CommandEvent();
+      if (event.shouldCommit()) {
+         event.target = target.toString();
+         event.command = command.getClass().getSimpleName();
+         event.paths = command.targets().toString();
+         event.elapsed = nanos;
+         event.commit();
+      }
+   }
+
+   @Override
+   public void filesCopied(int files, long bytes) {
+      io("copied", files, bytes);
+   }
+
+   @Override
+   public void filesLinked(int files) {
+      io("linked", files, 0);
+   }
+
+   @Override
+   public void filesExtracted(int files, long bytes) {
+      io("extracted", files, bytes);
+   }
+
+   @Override
+   public void filesDeleted(int files, long bytes) {
+      io("deleted", files, bytes);
+   }
+
+   private static void io(String operation, int files, long bytes) {
+      FilesEvent event = new FilesEvent();
+      if (event.shouldCommit()) {
+         event.operation = operation;
+         event.files = files;
+         event.bytes = bytes;
+         event.commit();
+      }
+   }
+
+   @Name("com.vidal.handyWarup.Phase")
+   @Label("Update Phase")
+   @Category("Handy Warup")
+   @StackTrace(false)
+   static class PhaseEvent extends Event {
+      @Label("Subject")
+      @Description("Target, or update archive when it is opened")
+      String subject;
+      @Label("Phase")
+      String phase;
+      @Label("Phase Duration")
+      @Timespan
+      long elapsed;
+   }
+
+   @Name("com.vidal.handyWarup.Command")
+   @Label("Update Command")
+   @Category("Handy Warup")
+   @StackTrace(false)
+   static class CommandEvent extends Event {
+      @Label("Target")
+      String target;
+      @Label("Command")
+      String command;
+      @Label("Paths")
+      String paths;
+      @Label("Command Duration")
+      @Timespan
+      long elapsed;
+   }
+
+   @Name("com.vidal.handyWarup.Files")
+   @Label("Update Files")
+   @Category("Handy Warup")
+   @StackTrace(false)
+   static class FilesEvent extends Event {
+      @Label("Operation")
+      String operation;
+      @Label("Files")
+      int files;
+      @Label("Bytes")
+      @DataAmount
+      long bytes;
+   }
+}